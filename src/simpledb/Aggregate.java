@@ -1,21 +1,46 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Aggregator operator that computes an aggregate (e.g., sum, avg, max,
- * min).  Note that we only support aggregates over a single column, grouped
- * by a single column.
+ * The Aggregator operator that computes aggregates (e.g., sum, avg, max,
+ * min), grouped by any number of columns.  All the aggregates are computed
+ * in one pass over the child.
+ * <p>
+ * The groups are kept in memory while they fit in the memory budget.  Once
+ * they do not, the aggregate starts over: it reads the child again and
+ * writes its tuples to partition files by a hash of their group-by value
+ * (see {@link TupleSpillFile}), so that all the tuples of a group land in
+ * the same partition.  Each partition is then aggregated on its own, and
+ * its results are written to a result file that the aggregate returns.  A
+ * partition that still has too many groups is partitioned again with
+ * another hash function, up to MAX_DEPTH times; past that, it is
+ * aggregated in memory regardless.
  */
 public class Aggregate extends AbstractDbIterator {
 
+    /** Default memory budget, in bytes of aggregate state. */
+    public static final long DEFAULT_MEMORY_BYTES = 16L * 1024 * 1024;
+    /** Number of times a partition may be partitioned again. */
+    public static final int MAX_DEPTH = 3;
+    private static final int MAX_PARTITIONS = 64;
+    // memory taken by the aggregate state and hash table slots of a group,
+    // besides its group-by value
+    private static final int GROUP_OVERHEAD = 32;
+
     private DbIterator childIterator;
-    private int aggregateField;
-    private int groupField;
-    private Aggregator.Op aggregationOperator;
+    private int[] aggregateFields;
+    private int[] groupFields;
+    private Aggregator.Op[] aggregationOperators;
+    private long memoryBytes;
 
     private Aggregator aggregator;
     private DbIterator aggregatorIterator;
+    // the results, if the groups did not fit in memory
+    private TupleSpillFile results;
+    private TupleSpillFile.Reader resultsReader;
+    private int partitionsWritten = 0;
 
     /**
      * Constructor.  
@@ -30,38 +55,94 @@ public class Aggregate extends AbstractDbIterator {
      * @param aop The aggregation operator to use
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, afield, gfield, aop, DEFAULT_MEMORY_BYTES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param child The DbIterator that is feeding us tuples.
+     * @param afield The column over which we are computing an aggregate.
+     * @param gfield The column over which we are grouping the result, or -1 if there is no grouping
+     * @param aop The aggregation operator to use
+     * @param memoryBytes the memory budget for the groups
+     * @see #Aggregate(DbIterator, int, int, Aggregator.Op)
+     */
+    public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop, long memoryBytes) {
+        this(child, new int[] { afield }, new Aggregator.Op[] { aop },
+             gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield }, memoryBytes);
+    }
+
+    /**
+     * Constructor for several aggregates, grouped by several columns.
+     *
+     * @param child The DbIterator that is feeding us tuples.
+     * @param afields The columns over which we are computing aggregates.
+     * @param aops The aggregation operator of each column of afields
+     * @param gfields The columns over which we are grouping the result; none if there is no grouping
+     */
+    public Aggregate(DbIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields) {
+        this(child, afields, aops, gfields, DEFAULT_MEMORY_BYTES);
+    }
+
+    /**
+     * Constructor for several aggregates, grouped by several columns.
+     *
+     * @param child The DbIterator that is feeding us tuples.
+     * @param afields The columns over which we are computing aggregates.
+     * @param aops The aggregation operator of each column of afields
+     * @param gfields The columns over which we are grouping the result; none if there is no grouping
+     * @param memoryBytes the memory budget for the groups
+     * @see #Aggregate(DbIterator, int[], Aggregator.Op[], int[])
+     */
+    public Aggregate(DbIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields, long memoryBytes) {
+        if (afields.length == 0 || afields.length != aops.length) {
+            throw new IllegalArgumentException("Expected an operator for each of one or more aggregates.");
+        }
+        if (memoryBytes <= 0) {
+            throw new IllegalArgumentException("The memory budget must be positive.");
+        }
         this.childIterator = child;
-        this.aggregateField = afield;
-        this.groupField = gfield;
-        this.aggregationOperator = aop;
+        this.aggregateFields = afields.clone();
+        this.groupFields = gfields.clone();
+        this.aggregationOperators = aops.clone();
+        this.memoryBytes = memoryBytes;
+        this.aggregator = this.newAggregator();
+    }
 
+    private Aggregator newAggregator() {
         TupleDesc tupleDesc = this.childIterator.getTupleDesc();
-        switch (tupleDesc.getType(this.aggregateField)) {
+        if (this.aggregateFields.length > 1 || this.groupFields.length > 1) {
+            Type[] groupTypes = new Type[this.groupFields.length];
+            for (int i = 0; i < groupTypes.length; i++) {
+                groupTypes[i] = tupleDesc.getType(this.groupFields[i]);
+            }
+            Type[] aggregateTypes = new Type[this.aggregateFields.length];
+            for (int a = 0; a < aggregateTypes.length; a++) {
+                aggregateTypes[a] = tupleDesc.getType(this.aggregateFields[a]);
+            }
+            return new MultiAggregator(this.groupFields, groupTypes, this.aggregateFields, aggregateTypes,
+                                       this.aggregationOperators);
+        }
+
+        int groupField = this.groupFields.length == 0 ? Aggregator.NO_GROUPING : this.groupFields[0];
+        Type groupType = groupField == Aggregator.NO_GROUPING ? null : tupleDesc.getType(groupField);
+        int aggregateField = this.aggregateFields[0];
+        switch (tupleDesc.getType(aggregateField)) {
             case INT_TYPE:
-                this.aggregator = new IntAggregator(
-                    this.groupField,
-                    this.groupField == Aggregator.NO_GROUPING
-                        ? null
-                        : tupleDesc.getType(this.groupField),
-                    this.aggregateField,
-                    this.aggregationOperator
-                );
-                break;
+                return new IntAggregator(groupField, groupType, aggregateField, this.aggregationOperators[0]);
             case STRING_TYPE:
-                this.aggregator = new StringAggregator(
-                    this.groupField,
-                    this.groupField == Aggregator.NO_GROUPING
-                        ? null
-                        : tupleDesc.getType(this.groupField),
-                    this.aggregateField,
-                    this.aggregationOperator
-                );
-                break;
+                return new StringAggregator(groupField, groupType, aggregateField, this.aggregationOperators[0]);
             default:
-                break;
+                throw new IllegalArgumentException("Cannot aggregate " + tupleDesc.getType(aggregateField) + ".");
         }
     }
 
+    /** @return the number of partition files written since created. */
+    public int getPartitionsWritten() {
+        return this.partitionsWritten;
+    }
+
     public static String aggName(Aggregator.Op aop) {
         switch (aop) {
         case MIN:
@@ -81,23 +162,158 @@ public class Aggregate extends AbstractDbIterator {
     public void open()
         throws NoSuchElementException, DbException, TransactionAbortedException {
         this.childIterator.open();
+        this.deleteResults();
+        this.aggregator = this.newAggregator();
         while (this.childIterator.hasNext()) {
             this.aggregator.merge(this.childIterator.next());
+            if (this.aggregator.numGroups() > this.maxGroups()) {
+                this.spill();
+                return;
+            }
         }
         this.aggregatorIterator = this.aggregator.iterator();
         this.aggregatorIterator.open();
     }
 
+    /** @return the number of groups that fit in the memory budget */
+    private long maxGroups() {
+        TupleDesc tupleDesc = this.childIterator.getTupleDesc();
+        int groupSize = GROUP_OVERHEAD * this.aggregateFields.length;
+        for (int field : this.groupFields) {
+            groupSize += tupleDesc.getType(field).getLen();
+        }
+        return Math.max(1, this.memoryBytes / groupSize);
+    }
+
+    /** @return the partition of the group of a tuple */
+    private int partitionOf(Tuple t, int depth, int numPartitions) {
+        int h = 0;
+        for (int field : this.groupFields) {
+            h = 31 * h + t.getField(field).hashCode();
+        }
+        return HashJoin.partitionOf(h, depth, numPartitions);
+    }
+
     /**
-     * Returns the next tuple.  If there is a group by field, then 
-     * the first field is the field by which we are
-     * grouping, and the second field is the result of computing the aggregate,
-     * If there is no group by field, then the result tuple should contain
-     * one field representing the result of the aggregate.
+     * Aggregates the child partition by partition, as its groups do not
+     * fit in memory.
+     */
+    private void spill() throws DbException, TransactionAbortedException {
+        TupleDesc resultDesc = this.aggregator.iterator().getTupleDesc();
+        this.aggregator = null;
+        this.childIterator.rewind();
+        TupleSpillFile[] parts = null;
+        try {
+            parts = this.newPartitions();
+            while (this.childIterator.hasNext()) {
+                Tuple t = this.childIterator.next();
+                parts[this.partitionOf(t, 0, parts.length)].add(t);
+            }
+            this.results = new TupleSpillFile(resultDesc);
+            for (TupleSpillFile part : parts) {
+                this.aggregatePartition(part, 1);
+            }
+            this.resultsReader = this.results.read();
+        } catch (IOException e) {
+            this.deleteResults();
+            throw new DbException("Cannot spill aggregate partitions: " + e.getMessage());
+        } finally {
+            // the partitions not aggregated, if it failed
+            TupleSpillFile.deleteAll(parts);
+        }
+    }
+
+    private TupleSpillFile[] newPartitions() throws IOException {
+        // each partition being written needs a buffer
+        int numPartitions = (int) Math.max(2, Math.min(MAX_PARTITIONS, this.memoryBytes / TupleSpillFile.BUFFER_SIZE));
+        TupleSpillFile[] parts = TupleSpillFile.create(this.childIterator.getTupleDesc(), numPartitions);
+        this.partitionsWritten += numPartitions;
+        return parts;
+    }
+
+    /**
+     * Aggregates a partition and appends its groups to the results,
+     * partitioning it again if its groups do not fit in memory.  Deletes
+     * the partition.
+     */
+    private void aggregatePartition(TupleSpillFile part, int depth)
+        throws IOException, DbException, TransactionAbortedException {
+        try {
+            Aggregator partAggregator = this.newAggregator();
+            TupleSpillFile.Reader reader = part.read();
+            try {
+                Tuple t;
+                while ((t = reader.next()) != null) {
+                    partAggregator.merge(t);
+                    if (partAggregator.numGroups() > this.maxGroups() && depth < MAX_DEPTH) {
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            if (partAggregator.numGroups() > this.maxGroups() && depth < MAX_DEPTH) {
+                TupleSpillFile[] parts = this.newPartitions();
+                try {
+                    reader = part.read();
+                    try {
+                        Tuple t;
+                        while ((t = reader.next()) != null) {
+                            parts[this.partitionOf(t, depth, parts.length)].add(t);
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                    for (TupleSpillFile p : parts) {
+                        this.aggregatePartition(p, depth + 1);
+                    }
+                } finally {
+                    TupleSpillFile.deleteAll(parts);
+                }
+                return;
+            }
+
+            DbIterator it = partAggregator.iterator();
+            it.open();
+            while (it.hasNext()) {
+                this.results.add(it.next());
+            }
+        } finally {
+            part.delete();
+        }
+    }
+
+    private void deleteResults() {
+        if (this.resultsReader != null) {
+            try {
+                this.resultsReader.close();
+            } catch (IOException e) {
+                // nothing more to read
+            }
+            this.resultsReader = null;
+        }
+        if (this.results != null) {
+            this.results.delete();
+            this.results = null;
+        }
+    }
+
+    /**
+     * Returns the next tuple.  The first fields are the fields by which we
+     * are grouping, if any, and the next ones are the results of computing
+     * the aggregates, in the order given to the constructor.
      * Should return null if there are no more tuples.
      */
     protected Tuple readNext() throws TransactionAbortedException, DbException {
-        if (this.aggregatorIterator.hasNext()) {
+        if (this.resultsReader != null) {
+            try {
+                return this.resultsReader.next();
+            } catch (IOException e) {
+                throw new DbException("Cannot read aggregate results: " + e.getMessage());
+            }
+        }
+        if (this.aggregatorIterator != null && this.aggregatorIterator.hasNext()) {
             return this.aggregatorIterator.next();
         } else {
             return null;
@@ -105,18 +321,29 @@ public class Aggregate extends AbstractDbIterator {
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        this.aggregatorIterator.rewind();
+        if (this.results != null) {
+            try {
+                this.resultsReader.close();
+                this.resultsReader = this.results.read();
+            } catch (IOException e) {
+                throw new DbException("Cannot read aggregate results: " + e.getMessage());
+            }
+        } else {
+            this.aggregatorIterator.rewind();
+        }
     }
 
-    private String getAggregationFieldName() {
-        return Aggregate.aggName(this.aggregationOperator) + " " + "(" + this.aggregateField + ")";
+    private String getAggregationFieldName(int aggregate) {
+        TupleDesc tupleDesc = this.childIterator.getTupleDesc();
+        return Aggregate.aggName(this.aggregationOperators[aggregate])
+            + " (" + tupleDesc.getFieldName(this.aggregateFields[aggregate]) + ")";
     }
 
     /**
      * Returns the TupleDesc of this Aggregate.
-     * If there is no group by field, this will have one field - the aggregate column.
-     * If there is a group by field, the first field will be the group by field, and the second
-     * will be the aggregate value column.
+     * The first fields are the group by fields, if any, and the next ones
+     * are the aggregate value columns.  The type of all aggregates is INT,
+     * including a count of strings.
      * 
      * The name of an aggregate column should be informative.  For example:
      * "aggName(aop) (child_td.getFieldName(afield))"
@@ -125,34 +352,27 @@ public class Aggregate extends AbstractDbIterator {
      */
     public TupleDesc getTupleDesc() {
         TupleDesc tupleDesc = this.childIterator.getTupleDesc();
-
-        if (this.groupField == Aggregator.NO_GROUPING) {
-            return new TupleDesc(
-                new Type[]{
-                    tupleDesc.getType(this.groupField),
-                    tupleDesc.getType(this.aggregateField)
-                },
-                new String[]{
-                    tupleDesc.getFieldName(this.groupField),
-                    this.getAggregationFieldName()
-                }
-            );
-        } else {
-            return new TupleDesc(
-                new Type[]{
-                    tupleDesc.getType(this.groupField),
-                    tupleDesc.getType(this.aggregateField)
-                },
-                new String[]{
-                    tupleDesc.getFieldName(this.groupField),
-                    this.getAggregationFieldName()
-                }
-            );
+        int numFields = this.groupFields.length + this.aggregateFields.length;
+        Type[] types = new Type[numFields];
+        String[] names = new String[numFields];
+        for (int i = 0; i < this.groupFields.length; i++) {
+            types[i] = tupleDesc.getType(this.groupFields[i]);
+            names[i] = tupleDesc.getFieldName(this.groupFields[i]);
         }
+        for (int a = 0; a < this.aggregateFields.length; a++) {
+            types[this.groupFields.length + a] = Type.INT_TYPE;
+            names[this.groupFields.length + a] = this.getAggregationFieldName(a);
+        }
+        return new TupleDesc(types, names);
     }
 
     public void close() {
-        this.aggregatorIterator.close();
+        super.close();
+        if (this.aggregatorIterator != null) {
+            this.aggregatorIterator.close();
+            this.aggregatorIterator = null;
+        }
+        this.deleteResults();
         this.childIterator.close();
     }
 }
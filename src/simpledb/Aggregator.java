@@ -40,6 +40,11 @@ public interface Aggregator {
      */
     public void merge(Tuple tup);
 
+    /**
+     * @return the number of distinct groups merged so far
+     */
+    public int numGroups();
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
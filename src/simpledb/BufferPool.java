@@ -1,8 +1,17 @@
 package simpledb;
 
 import java.io.*;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
 /**
  * BufferPool manages the reading and writing of pages into memory from
  * disk. Access methods call into it to retrieve pages, and it fetches
@@ -11,6 +20,21 @@ import java.util.Map.Entry;
  * The BufferPool is also responsible for locking; when a transaction fetches
  * a page, BufferPool which check that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Page replacement is least recently used, adjusted by the per-table
+ * {@link TableCachePolicy} stored in the Catalog.  Evicted clean pages can
+ * be kept compressed in a {@link CompressedPageCache}, see
+ * {@link #setCompressedCacheSize}.
+ * <p>
+ * Transactions are isolated in one of three ways:
+ * <ul>
+ * <li> by strict two-phase page locking, if enabled (see
+ *      {@link #setLocking});
+ * <li> optimistically, for transactions that validate their reads at
+ *      commit (see {@link #beginOptimistic});
+ * <li> by snapshots, for read-only transactions (see
+ *      {@link #beginSnapshot}).
+ * </ul>
  */
 public class BufferPool {
 
@@ -23,7 +47,35 @@ public class BufferPool {
     public static final int DEFAULT_PAGES = 50;
 
     private int maxNumPages;
-    private HashMap<PageId, Page> pageIdToPage;
+    // Kept in access order, so that iteration starts at the least recently
+    // used page; eviction and shrinking walk it from the cold end.
+    private LinkedHashMap<PageId, Page> pageIdToPage;
+    private HashMap<Integer, Integer> tableIdToNumPages;
+    // Pages each running transaction requested with write permission
+    private HashMap<TransactionId, HashSet<PageId>> tidToWrittenPages;
+    // Optional second tier for clean pages evicted from this pool
+    private CompressedPageCache compressedCache;
+    // Old page versions read by snapshot transactions
+    private VersionStore versions;
+    // Page locks, or null if locking is disabled
+    private LockManager lockManager;
+
+    // The private state of an optimistic transaction: the version of each
+    // page it read, and its private copies of the pages it writes
+    private static class Workspace {
+        private final HashMap<PageId, Long> readVersions = new HashMap<>();
+        private final HashMap<PageId, Page> privatePages = new HashMap<>();
+    }
+    private HashMap<TransactionId, Workspace> workspaces;
+    // Number of commits and aborts of each page; optimistic transactions
+    // compare them at commit to detect concurrent writers
+    private HashMap<PageId, Long> pageVersions;
+    // Pages installed by optimistic transactions that have not completed
+    private HashMap<PageId, TransactionId> committingPages;
+    private long optimisticAborts = 0;
+    // Pages of asynchronously committed transactions that are logged but
+    // not written yet, mapped to the log offset just past their records
+    private HashMap<PageId, Long> asyncPages;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -31,8 +83,219 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        if (numPages <= 0) {
+            throw new IllegalArgumentException("A buffer pool needs at least one page.");
+        }
+
         this.maxNumPages = numPages;
-        this.pageIdToPage = new HashMap<>();
+        this.pageIdToPage = new LinkedHashMap<>(16, 0.75f, true);
+        this.tableIdToNumPages = new HashMap<>();
+        this.tidToWrittenPages = new HashMap<>();
+        this.versions = new VersionStore();
+        this.lockManager = null;
+        this.workspaces = new HashMap<>();
+        this.pageVersions = new HashMap<>();
+        this.committingPages = new HashMap<>();
+        this.asyncPages = new HashMap<>();
+    }
+
+    /**
+     * @return the maximum number of pages this buffer pool may cache.
+     */
+    public synchronized int getNumPages() {
+        return this.maxNumPages;
+    }
+
+    /**
+     * @return the number of pages currently resident in this buffer pool.
+     */
+    public synchronized int getNumResidentPages() {
+        return this.pageIdToPage.size();
+    }
+
+    /**
+     * Enables, resizes or disables the compressed second tier of this
+     * buffer pool.  Clean pages evicted from the pool are kept there,
+     * compressed, and are decompressed back into a frame instead of being
+     * read from disk.  Resizing the tier drops its contents.
+     *
+     * @param bytes the number of compressed bytes to keep, or 0 to disable
+     *   the tier
+     */
+    public synchronized void setCompressedCacheSize(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("The compressed cache size cannot be negative.");
+        }
+        this.compressedCache = bytes == 0 ? null : new CompressedPageCache(bytes);
+    }
+
+    /**
+     * @return the compressed second tier of this buffer pool, or null if it
+     *   is disabled.
+     */
+    public synchronized CompressedPageCache getCompressedCache() {
+        return this.compressedCache;
+    }
+
+    /**
+     * Changes the capacity of this buffer pool in place, keeping the pages
+     * that are already cached.
+     * <p>
+     * Growing only raises the limit. Shrinking lowers the limit right away
+     * and then evicts the least recently used pages one at a time, releasing
+     * the buffer pool between evictions so that concurrent readers are not
+     * stalled for the whole resize. Pages that cannot be evicted yet (dirty
+     * pages) stay resident; the pool drains below the new limit as later
+     * calls to {@link #getPage} evict them once they are clean.
+     *
+     * @param numPages the new maximum number of pages in this buffer pool.
+     * @return the number of pages evicted by this call.
+     */
+    public int resize(int numPages) {
+        if (numPages <= 0) {
+            throw new IllegalArgumentException("A buffer pool needs at least one page.");
+        }
+
+        synchronized (this) {
+            this.maxNumPages = numPages;
+        }
+
+        int evicted = 0;
+        while (true) {
+            synchronized (this) {
+                if (this.pageIdToPage.size() <= this.maxNumPages || !this.hasEvictablePage()) {
+                    return evicted;
+                }
+
+                try {
+                    this.evictPage();
+                    evicted++;
+                } catch (DbException e) {
+                    return evicted;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the ids of the resident pages to the specified file, from the
+     * least to the most recently used, so that a later
+     * {@link #prefetchWorkingSet} can warm up a fresh buffer pool.
+     *
+     * @param f the file to write the working set to
+     * @return the number of page ids written
+     */
+    public synchronized int saveWorkingSet(File f) throws IOException {
+        DataOutputStream dos = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            dos.writeInt(this.pageIdToPage.size());
+            for (PageId pid : this.pageIdToPage.keySet()) {
+                int[] pageInfo = pid.serialize();
+                dos.writeUTF(pid.getClass().getName());
+                dos.writeInt(pageInfo.length);
+                for (int i = 0; i < pageInfo.length; i++) {
+                    dos.writeInt(pageInfo[i]);
+                }
+            }
+        } finally {
+            dos.close();
+        }
+        return this.pageIdToPage.size();
+    }
+
+    /**
+     * Reads a working set written by {@link #saveWorkingSet} and starts a
+     * background thread that loads those pages into free frames of this
+     * buffer pool.  If the pool is smaller than the working set, the most
+     * recently used pages are kept.  Pages are read in table and page number
+     * order, so that each table is read sequentially.  Pages of tables that
+     * are no longer in the catalog are skipped, and prefetching never evicts
+     * pages.
+     *
+     * @param f the file holding the working set
+     * @return the started prefetching thread
+     */
+    public Thread prefetchWorkingSet(File f) throws IOException {
+        List<PageId> pageIds = readWorkingSet(f);
+        int numPages = this.getNumPages();
+        if (pageIds.size() > numPages) {
+            pageIds = new ArrayList<>(pageIds.subList(pageIds.size() - numPages, pageIds.size()));
+        }
+        Collections.sort(pageIds, new Comparator<PageId>() {
+            public int compare(PageId p1, PageId p2) {
+                if (p1.getTableId() != p2.getTableId()) {
+                    return Integer.compare(p1.getTableId(), p2.getTableId());
+                }
+                return Integer.compare(p1.pageno(), p2.pageno());
+            }
+        });
+
+        final List<PageId> toLoad = pageIds;
+        Thread prefetcher = new Thread("BufferPool prefetcher") {
+            public void run() {
+                int loaded = 0;
+                for (PageId pid : toLoad) {
+                    if (BufferPool.this.prefetchPage(pid)) {
+                        loaded++;
+                    }
+                }
+                Debug.log("Prefetched %d of %d pages of the saved working set", loaded, toLoad.size());
+            }
+        };
+        prefetcher.setDaemon(true);
+        prefetcher.start();
+        return prefetcher;
+    }
+
+    /**
+     * Loads the specified page into a free frame, unless it is already
+     * resident.  Never evicts a page.
+     *
+     * @return true if the page was loaded
+     */
+    public synchronized boolean prefetchPage(PageId pid) {
+        if (this.pageIdToPage.containsKey(pid) || this.pageIdToPage.size() >= this.maxNumPages) {
+            return false;
+        }
+
+        Page page;
+        try {
+            page = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
+        } catch (NoSuchElementException e) {
+            return false; // the table was dropped
+        } catch (IllegalArgumentException e) {
+            return false; // the page no longer exists
+        }
+
+        this.addToPool(pid, page);
+        return true;
+    }
+
+    private static List<PageId> readWorkingSet(File f) throws IOException {
+        DataInputStream dis = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(f)));
+        try {
+            int numPages = dis.readInt();
+            List<PageId> pageIds = new ArrayList<>(numPages);
+            for (int i = 0; i < numPages; i++) {
+                String idClassName = dis.readUTF();
+                int numIdArgs = dis.readInt();
+                Object[] idArgs = new Object[numIdArgs];
+                for (int j = 0; j < numIdArgs; j++) {
+                    idArgs[j] = dis.readInt();
+                }
+                try {
+                    Constructor<?>[] idConsts = Class.forName(idClassName).getDeclaredConstructors();
+                    pageIds.add((PageId) idConsts[0].newInstance(idArgs));
+                } catch (ReflectiveOperationException e) {
+                    throw new IOException("Cannot restore page id of class " + idClassName, e);
+                }
+            }
+            return pageIds;
+        } finally {
+            dis.close();
+        }
     }
 
     /**
@@ -49,9 +312,84 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
+     * @see #beginSnapshot
+     * @see #beginOptimistic
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
+        LockManager locks;
+        this.awaitAsyncPages(pid, false);
+        synchronized (this) {
+            Long snapshot = this.versions.getSnapshot(tid);
+            if (snapshot != null) {
+                if (perm == Permissions.READ_WRITE) {
+                    throw new DbException("Snapshot transactions are read-only.");
+                }
+                Page version = this.versions.getVersion(snapshot, pid);
+                if (version != null) {
+                    return version;
+                }
+                // the current committed version, whatever running
+                // transactions did to the page since
+                return this.loadPage(pid).getBeforeImage();
+            }
+
+            Workspace workspace = tid == null ? null : this.workspaces.get(tid);
+            if (workspace != null) {
+                return this.getOptimisticPage(workspace, pid, perm);
+            }
+            locks = this.lockManager;
+        }
+
+        // wait for the lock outside the monitor, so that the holder can
+        // still complete
+        if (locks != null && tid != null) {
+            locks.acquire(tid, pid, perm == Permissions.READ_WRITE);
+        }
+
+        this.awaitAsyncPages(pid, perm == Permissions.READ_WRITE && tid != null);
+        synchronized (this) {
+            if (perm == Permissions.READ_WRITE && tid != null) {
+                this.tidToWrittenPages.computeIfAbsent(tid, k -> new HashSet<>()).add(pid);
+                // the copy on disk must hold the committed changes before
+                // the page is dirtied again, as an abort rereads it
+                this.writeAsyncPageOrFail(pid);
+            }
+            return this.loadPage(pid);
+        }
+    }
+
+    /**
+     * Returns a page to an optimistic transaction, recording the version it
+     * read.  Pages it writes are private copies of their last committed
+     * versions.
+     */
+    private Page getOptimisticPage(Workspace workspace, PageId pid, Permissions perm)
+        throws DbException {
+        Page copy = workspace.privatePages.get(pid);
+        if (copy != null) {
+            return copy;
+        }
+
+        workspace.readVersions.putIfAbsent(pid, this.pageVersions.getOrDefault(pid, 0L));
+        Page page = this.loadPage(pid);
+        if (perm == Permissions.READ_WRITE) {
+            copy = page.getBeforeImage();
+            workspace.privatePages.put(pid, copy);
+            return copy;
+        }
+        if (page.isDirty() != null || this.committingPages.containsKey(pid)) {
+            // not committed yet
+            return page.getBeforeImage();
+        }
+        return page;
+    }
+
+    /**
+     * Returns the specified page from the pool, reading it into the pool
+     * if it is not resident.
+     */
+    private Page loadPage(PageId pid) throws DbException {
         Page existingPage = this.pageIdToPage.get(pid);
         if (existingPage != null) {
             return existingPage;
@@ -59,13 +397,43 @@ public class BufferPool {
 
         Catalog globalCatalog =  Database.getCatalog();
         DbFile dbFile = globalCatalog.getDbFile(pid.getTableId());
-        Page page = dbFile.readPage(pid);
+        Page page = null;
+        if (this.compressedCache != null) {
+            // dropped from the compressed tier only once the page has a
+            // frame, as eviction may fail
+            page = this.compressedCache.get(pid);
+        }
+        if (page == null) {
+            page = dbFile.readPage(pid);
+        }
+
+        // A table at its maximum share replaces one of its own pages, even
+        // if the pool has free frames.
+        if (this.isAtMaxShare(pid.getTableId())) {
+            PageId ownVictim = this.oldestCleanPage(pid.getTableId());
+            if (ownVictim != null) {
+                this.evict(ownVictim);
+            }
+        }
 
-        if (this.pageIdToPage.size() == this.maxNumPages) {
-            this.evictPage();
+        // Pages of asynchronous commits cannot be evicted until they are
+        // written.
+        if (this.pageIdToPage.size() >= this.maxNumPages && !this.hasEvictablePage()) {
+            for (PageId asyncPid : new ArrayList<>(this.asyncPages.keySet())) {
+                this.writeAsyncPageOrFail(asyncPid);
+            }
+        }
+
+        // The pool may be above its limit after a shrink, so keep evicting
+        // until there is room for the new page.
+        while (this.pageIdToPage.size() >= this.maxNumPages) {
+            this.evictPage(pid);
         }
         
-        this.pageIdToPage.put(pid, page);
+        this.addToPool(pid, page);
+        if (this.compressedCache != null) {
+            this.compressedCache.invalidate(pid);
+        }
         return page;
     }
 
@@ -79,8 +447,13 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public void releasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        LockManager locks;
+        synchronized (this) {
+            locks = this.lockManager;
+        }
+        if (locks != null) {
+            locks.release(tid, pid);
+        }
     }
 
     /**
@@ -89,15 +462,137 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        this.transactionComplete(tid, true);
+    }
+
+    /**
+     * Starts a snapshot for a read-only transaction.  Until the transaction
+     * completes, {@link #getPage} returns the pages as they were committed
+     * when the snapshot started, without locking and no matter what other
+     * transactions write or commit meanwhile.  Requesting a page with
+     * {@link Permissions#READ_WRITE} fails.
+     *
+     * @param tid the read-only transaction
+     * @see Transaction#Transaction(boolean)
+     */
+    public synchronized void beginSnapshot(TransactionId tid) {
+        this.versions.beginSnapshot(tid);
+    }
+
+    /**
+     * @return the store of the old page versions read by snapshots.
+     */
+    public synchronized VersionStore getVersionStore() {
+        return this.versions;
+    }
+
+    /**
+     * Enables or disables strict two-phase page locking.  With locking,
+     * {@link #getPage} acquires a shared lock for {@link Permissions#READ_ONLY}
+     * and an exclusive lock for {@link Permissions#READ_WRITE}, and may block
+     * until other transactions complete; locks are released by
+     * {@link #transactionComplete}.  A transaction that locks many pages of
+     * one table, e.g. a large scan, gets a table lock instead (see
+     * {@link LockManager#setEscalationThreshold}).  Locking is disabled by
+     * default.  It should only be changed while no transaction runs.
+     */
+    public synchronized void setLocking(boolean locking) {
+        if (locking && this.lockManager == null) {
+            this.lockManager = new LockManager();
+        } else if (!locking) {
+            this.lockManager = null;
+        }
+    }
+
+    /**
+     * @return the lock manager, or null if locking is disabled.
+     */
+    public synchronized LockManager getLockManager() {
+        return this.lockManager;
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        LockManager locks;
+        synchronized (this) {
+            locks = this.lockManager;
+        }
+        return locks != null && locks.holdsLock(tid, p);
+    }
+
+    /**
+     * Starts an optimistic transaction.  It takes no locks; instead,
+     * {@link #getPage} records the version of each page it reads, and the
+     * pages it writes are private copies that other transactions do not
+     * see.  At commit, {@link #installOptimistic} validates that no other
+     * transaction committed or aborted writes to those pages since, and
+     * installs the private copies; the transaction then commits like any
+     * other.
+     *
+     * @param tid the optimistic transaction
+     * @see Transaction#setOptimistic
+     */
+    public synchronized void beginOptimistic(TransactionId tid) {
+        this.workspaces.put(tid, new Workspace());
+    }
+
+    /**
+     * Validates an optimistic transaction and installs its private pages
+     * into the pool as pages it dirtied.  If validation fails, the private
+     * pages are dropped.
+     *
+     * @param tid the committing optimistic transaction
+     * @throws TransactionAbortedException if another transaction wrote a
+     *   page the transaction read or writes since it read it, or holds a
+     *   lock on a page it writes
+     */
+    public synchronized void installOptimistic(TransactionId tid)
+        throws TransactionAbortedException, DbException {
+        Workspace workspace = this.workspaces.remove(tid);
+        if (workspace == null) {
+            return;
+        }
+
+        for (Entry<PageId, Long> read : workspace.readVersions.entrySet()) {
+            PageId pid = read.getKey();
+            TransactionId committer = this.committingPages.get(pid);
+            boolean changed = this.pageVersions.getOrDefault(pid, 0L).longValue() != read.getValue()
+                || (committer != null && !committer.equals(tid));
+            if (changed) {
+                this.optimisticAborts++;
+                throw new TransactionAbortedException();
+            }
+        }
+        for (PageId pid : workspace.privatePages.keySet()) {
+            Page resident = this.pageIdToPage.get(pid);
+            boolean dirtiedByOthers = resident != null && resident.isDirty() != null
+                && !resident.isDirty().equals(tid);
+            // never wait for a lock here: its holder may need the monitor
+            // to complete.  The locks keep locking transactions out until
+            // the commit completes, and are released if validation fails.
+            boolean locked = this.lockManager != null && !this.lockManager.tryAcquire(tid, pid, true);
+            if (dirtiedByOthers || locked) {
+                this.optimisticAborts++;
+                throw new TransactionAbortedException();
+            }
+        }
+
+        HashSet<PageId> written = this.tidToWrittenPages.computeIfAbsent(tid, k -> new HashSet<>());
+        for (Entry<PageId, Page> e : workspace.privatePages.entrySet()) {
+            PageId pid = e.getKey();
+            this.writeAsyncPageOrFail(pid);
+            this.loadPage(pid);
+            this.pageIdToPage.put(pid, e.getValue());
+            this.committingPages.put(pid, tid);
+            written.add(pid);
+        }
+    }
+
+    /**
+     * @return the number of optimistic transactions that failed validation.
+     */
+    public synchronized long getOptimisticAborts() {
+        return this.optimisticAborts;
     }
 
     /**
@@ -109,8 +604,54 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        if (commit) {
+            // FORCE: the pages of a committed transaction are on disk, and
+            // become the before images of later transactions.
+            this.flushPages(tid);
+        }
+        synchronized (this) {
+            this.completeTransaction(tid, commit);
+        }
+    }
+
+    private void completeTransaction(TransactionId tid, boolean commit) {
+        if (this.versions.getSnapshot(tid) != null) {
+            this.versions.endSnapshot(tid);
+            return;
+        }
+        this.workspaces.remove(tid);
+        if (this.lockManager != null) {
+            this.lockManager.releaseAll(tid);
+        }
+
+        HashSet<PageId> written = this.tidToWrittenPages.remove(tid);
+        if (written == null) {
+            return;
+        }
+        // optimistic transactions that read these pages must not commit,
+        // whether the writes stay or are rolled back
+        for (PageId pid : written) {
+            this.pageVersions.merge(pid, 1L, Long::sum);
+            this.committingPages.remove(pid, tid);
+        }
+        // before the before images are replaced
+        if (commit) {
+            this.versions.commit(this.pageIdToPage, written);
+        } else {
+            this.versions.abort(written);
+        }
+        for (PageId pid : written) {
+            Page page = this.pageIdToPage.get(pid);
+            if (page == null) {
+                continue;
+            }
+            if (commit) {
+                page.setBeforeImage();
+            } else if (page.isDirty() != null && page.isDirty().equals(tid)) {
+                // the copy on disk is the one from before the transaction
+                this.discardPage(pid);
+            }
+        }
     }
 
     /**
@@ -164,9 +705,22 @@ public class BufferPool {
      *     break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-        // some code goes here
-        for (PageId pageId : this.pageIdToPage.keySet()) {
-            this.flushPage(pageId);
+        for (PageId pid : new ArrayList<>(this.asyncPages.keySet())) {
+            this.writeAsyncPage(pid);
+        }
+        ArrayList<Page> pages = new ArrayList<>();
+        for (Page page : this.pageIdToPage.values()) {
+            if (page.isDirty() != null) {
+                pages.add(page);
+            }
+        }
+        if (pages.isEmpty()) {
+            return;
+        }
+        this.logPageWrites(pages);
+        Database.getLogFile().force();
+        for (Page page : pages) {
+            this.writePage(page);
         }
     }
 
@@ -176,12 +730,15 @@ public class BufferPool {
         cache.
     */
     public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // only necessary for lab5
+        this.removeFromPool(pid);
+        if (this.compressedCache != null) {
+            this.compressedCache.invalidate(pid);
+        }
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk, writing its UPDATE record to the log
+     * first (write-ahead logging).
      * @param pid an ID indicating the page to flush
      */
     private synchronized void flushPage(PageId pid) throws IOException {
@@ -193,17 +750,193 @@ public class BufferPool {
         if (page.isDirty() == null) {
             return;
         }
+        if (this.asyncPages.containsKey(pid)) {
+            // logged already
+            this.writeAsyncPage(pid);
+            return;
+        }
+
+        this.logPageWrites(Collections.singletonList(page));
+        Database.getLogFile().force();
+        this.writePage(page);
+    }
+
+    /**
+     * Write all pages of the specified transaction to disk.  All their
+     * UPDATE records are appended first, and the log is forced once,
+     * outside the pool's monitor: the force may be shared with concurrent
+     * commits (see {@link LogFile#awaitDurable}), and other transactions
+     * can use the pool meanwhile.
+     */
+    public void flushPages(TransactionId tid) throws IOException {
+        ArrayList<Page> pages = new ArrayList<>();
+        long lsn;
+        synchronized (this) {
+            HashSet<PageId> written = this.tidToWrittenPages.get(tid);
+            if (written == null) {
+                return;
+            }
+            for (PageId pid : written) {
+                Page page = this.pageIdToPage.get(pid);
+                if (page != null && page.isDirty() != null && page.isDirty().equals(tid)
+                    && !this.asyncPages.containsKey(pid)) {
+                    pages.add(page);
+                }
+            }
+            if (pages.isEmpty()) {
+                return;
+            }
+            lsn = this.logPageWrites(pages);
+        }
+
+        Database.getLogFile().awaitDurable(lsn);
+
+        synchronized (this) {
+            for (Page page : pages) {
+                // unless flushAllPages() wrote it meanwhile
+                if (tid.equals(page.isDirty()) && this.pageIdToPage.get(page.getId()) == page) {
+                    this.writePage(page);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes UPDATE records for dirty pages (write-ahead logging).
+     *
+     * @return the log offset that must be durable before the pages are
+     *   written
+     */
+    private long logPageWrites(List<Page> pages) throws IOException {
+        LogFile logFile = Database.getLogFile();
+        for (Page page : pages) {
+            logFile.logWrite(page.isDirty(), page.getBeforeImage(), page);
+        }
+        return logFile.getCurrentLsn();
+    }
+
+    private void writePage(Page page) throws IOException {
+        HeapFile heapFile = (HeapFile) Database.getCatalog().getDbFile(page.getId().getTableId());
+        heapFile.writePage(page);
+        page.markDirty(false, null);
+    }
+
+    /**
+     * Logs the pages of the specified transaction without writing them
+     * (NO-FORCE), for an asynchronous commit.  The pages stay dirty and
+     * cannot be evicted until {@link #writeAsyncPages} writes them, once
+     * their log records are durable.
+     *
+     * @see Transaction.CommitMode#ASYNC
+     */
+    public synchronized void logPages(TransactionId tid) throws IOException {
+        HashSet<PageId> written = this.tidToWrittenPages.get(tid);
+        if (written == null) {
+            return;
+        }
+        LogFile logFile = Database.getLogFile();
+        for (PageId pid : written) {
+            Page page = this.pageIdToPage.get(pid);
+            if (page != null && page.isDirty() != null && page.isDirty().equals(tid)
+                && !this.asyncPages.containsKey(pid)) {
+                logFile.logWrite(tid, page.getBeforeImage(), page);
+                this.asyncPages.put(pid, logFile.getCurrentLsn());
+            }
+        }
+    }
+
+    /**
+     * Writes the pages of asynchronous commits whose log records end at
+     * or before the specified log offset, forcing the log first if it is
+     * not durable that far yet.
+     *
+     * @param lsn the log offset, see {@link LogFile#getCurrentLsn}
+     */
+    public synchronized void writeAsyncPages(long lsn) throws IOException {
+        for (PageId pid : new ArrayList<>(this.asyncPages.keySet())) {
+            if (this.asyncPages.get(pid) <= lsn) {
+                this.writeAsyncPage(pid);
+            }
+        }
+    }
+
+    /**
+     * @return the pages of asynchronous commits that are not written yet
+     */
+    synchronized Set<PageId> getAsyncPages() {
+        return new HashSet<>(this.asyncPages.keySet());
+    }
+
+    /**
+     * Waits until the log records of the asynchronous commits that
+     * {@link #getPage} has to write to load pid, and to dirty it if write,
+     * are durable.  This waits outside the pool's monitor, since a group
+     * commit leader waits out its window before forcing, and getPage
+     * then finds the records durable.
+     */
+    private void awaitAsyncPages(PageId pid, boolean write) throws DbException {
+        long lsn = 0;
+        synchronized (this) {
+            if (this.asyncPages.isEmpty()) {
+                return;
+            }
+            if (write && this.asyncPages.containsKey(pid)) {
+                lsn = this.asyncPages.get(pid);
+            }
+            if (!this.pageIdToPage.containsKey(pid) && this.pageIdToPage.size() >= this.maxNumPages
+                && !this.hasEvictablePage()) {
+                for (long pageLsn : this.asyncPages.values()) {
+                    lsn = Math.max(lsn, pageLsn);
+                }
+            }
+        }
+        if (lsn == 0) {
+            return;
+        }
+        try {
+            Database.getLogFile().awaitDurable(lsn);
+        } catch (IOException e) {
+            throw new DbException("Cannot force the log: " + e.getMessage());
+        }
+    }
 
+    private void writeAsyncPageOrFail(PageId pid) throws DbException {
+        try {
+            this.writeAsyncPage(pid);
+        } catch (IOException e) {
+            throw new DbException("Cannot write page " + pid.toString() + " to the disk.");
+        }
+    }
+
+    /**
+     * Writes a page of an asynchronous commit once its log records are
+     * durable.  Does nothing if the page is not waiting to be written.
+     */
+    private void writeAsyncPage(PageId pid) throws IOException {
+        Long lsn = this.asyncPages.remove(pid);
+        if (lsn == null) {
+            return;
+        }
+        Database.getLogFile().awaitDurable(lsn);
+        Page page = this.pageIdToPage.get(pid);
+        if (page == null || page.isDirty() == null) {
+            return;
+        }
         HeapFile heapFile = (HeapFile) Database.getCatalog().getDbFile(pid.getTableId());
         heapFile.writePage(page);
         page.markDirty(false, null);
     }
 
-    /** Write all pages of the specified transaction to disk.
+    /**
+     * @return true if at least one resident page can currently be evicted.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2|lab3
+    private boolean hasEvictablePage() {
+        for (Page page : this.pageIdToPage.values()) {
+            if (page.isDirty() == null) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -211,23 +944,160 @@ public class BufferPool {
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
     private synchronized void evictPage() throws DbException {
+        this.evictPage(null);
+    }
+
+    /**
+     * Discards a page from the buffer pool to make room for the page
+     * incoming, following the tables' {@link TableCachePolicy}s.
+     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     *
+     * @param incoming the page about to be added, or null if none
+     */
+    private synchronized void evictPage(PageId incoming) throws DbException {
+        PageId victim = this.chooseVictim(incoming);
+        if (victim == null) {
+            throw new DbException("Cannot evict any pages from the buffer pool.");
+        }
+        this.evict(victim);
+    }
+
+    /**
+     * Flushes the specified page and removes it from the buffer pool,
+     * moving it to the compressed second tier if that is enabled.
+     *
+     * @param victim the page to evict
+     */
+    private void evict(PageId victim) throws DbException {
+        try {
+            this.flushPage(victim);
+        } catch (IOException e) {
+            throw new DbException("Cannot flush page " + victim.toString() + " to the disk.");
+        }
+        Page page = this.pageIdToPage.get(victim);
+        if (page != null && this.isWrittenByRunningTransaction(victim)) {
+            this.versions.evicted(page);
+        }
+        if (this.compressedCache != null && page != null) {
+            this.compressedCache.put(page);
+        }
+        this.removeFromPool(victim);
+    }
+
+    /**
+     * Picks the clean page to evict, walking the pool from the least
+     * recently used page:
+     * <ol>
+     * <li> if the table of the incoming page has reached its maximum share,
+     *      one of that table's own pages;
+     * <li> otherwise a page of a table that holds more than its reserved
+     *      pages, taking lower priority classes first;
+     * <li> otherwise any page, as the reservations cannot all be honoured.
+     * </ol>
+     *
+     * @return the page to evict, or null if no page can be evicted
+     */
+    private PageId chooseVictim(PageId incoming) {
+        TableCachePolicy.Priority[] priorities = TableCachePolicy.Priority.values();
+        PageId[] unreservedByPriority = new PageId[priorities.length];
+        PageId anyClean = null;
+
+        if (incoming != null && this.isAtMaxShare(incoming.getTableId())) {
+            PageId ownClean = this.oldestCleanPage(incoming.getTableId());
+            if (ownClean != null) {
+                return ownClean;
+            }
+        }
+
         for (Entry<PageId, Page> entry : this.pageIdToPage.entrySet()) {
+            if (entry.getValue().isDirty() != null) {
+                continue;
+            }
+
             PageId pageId = entry.getKey();
-            Page page = entry.getValue();
+            int tableId = pageId.getTableId();
+            if (anyClean == null) {
+                anyClean = pageId;
+            }
 
-            if (page.isDirty() == null) {
-                try {
-                    this.flushPage(pageId);
-                    this.pageIdToPage.remove(pageId);
+            TableCachePolicy policy = this.getCachePolicy(tableId);
+            int priority = policy.getPriority().ordinal();
+            if (unreservedByPriority[priority] == null
+                && this.numCachedPages(tableId) > policy.getReservedPages()) {
+                unreservedByPriority[priority] = pageId;
+            }
+        }
 
-                    return;
-                } catch (IOException e) {
-                    throw new DbException("Cannot flush page " + pageId.toString() + " to the disk.");
-                }
+        for (PageId pageId : unreservedByPriority) {
+            if (pageId != null) {
+                return pageId;
+            }
+        }
+        return anyClean;
+    }
+
+    /**
+     * @return true if the table holds as many pages as its maximum share allows.
+     */
+    private boolean isAtMaxShare(int tableId) {
+        return this.numCachedPages(tableId)
+            >= this.getCachePolicy(tableId).getMaxPages(this.maxNumPages);
+    }
+
+    /**
+     * @return the least recently used clean page of the table, or null if
+     *   the table has no clean page in the pool.
+     */
+    private PageId oldestCleanPage(int tableId) {
+        for (Entry<PageId, Page> entry : this.pageIdToPage.entrySet()) {
+            if (entry.getKey().getTableId() == tableId && entry.getValue().isDirty() == null) {
+                return entry.getKey();
             }
         }
+        return null;
+    }
 
-        throw new DbException("Cannot evict any pages from the buffer pool.");
+    /**
+     * @return the cache policy of the table, or the default policy if the
+     *   table is no longer in the catalog.
+     */
+    private TableCachePolicy getCachePolicy(int tableId) {
+        try {
+            return Database.getCatalog().getCachePolicy(tableId);
+        } catch (NoSuchElementException e) {
+            return TableCachePolicy.DEFAULT;
+        }
+    }
+
+    /**
+     * @return the number of pages of the table resident in this buffer pool.
+     */
+    public synchronized int numCachedPages(int tableId) {
+        return this.tableIdToNumPages.getOrDefault(tableId, 0);
+    }
+
+    private boolean isWrittenByRunningTransaction(PageId pid) {
+        for (HashSet<PageId> written : this.tidToWrittenPages.values()) {
+            if (written.contains(pid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addToPool(PageId pid, Page page) {
+        if (this.pageIdToPage.put(pid, page) == null) {
+            this.tableIdToNumPages.merge(pid.getTableId(), 1, Integer::sum);
+        }
+    }
+
+    private void removeFromPool(PageId pid) {
+        if (this.pageIdToPage.remove(pid) != null) {
+            int remaining = this.tableIdToNumPages.merge(pid.getTableId(), -1, Integer::sum);
+            if (remaining == 0) {
+                this.tableIdToNumPages.remove(pid.getTableId());
+            }
+        }
     }
 
 }
@@ -19,6 +19,7 @@ public class Catalog {
         private DbFile dbFile;
         private String name;
         private String pkeyField;
+        private TableCachePolicy cachePolicy;
 
         public Table(DbFile dbFile, String name, String pkeyField) {
             if (name == null) {
@@ -28,6 +29,7 @@ public class Catalog {
             this.dbFile = dbFile;
             this.name = name;
             this.pkeyField = pkeyField;
+            this.cachePolicy = TableCachePolicy.DEFAULT;
         }
     }
 
@@ -126,6 +128,29 @@ public class Catalog {
         return this.getTable(tableid).pkeyField;
     }
 
+    /**
+     * Sets how the specified table may use the buffer pool.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     * @param policy the buffer pool policy of the table
+     */
+    public void setCachePolicy(int tableid, TableCachePolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Cache policy cannot be null.");
+        }
+        this.getTable(tableid).cachePolicy = policy;
+    }
+
+    /**
+     * Returns the buffer pool policy of the specified table, which is
+     * {@link TableCachePolicy#DEFAULT} unless one was set.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public TableCachePolicy getCachePolicy(int tableid) throws NoSuchElementException {
+        return this.getTable(tableid).cachePolicy;
+    }
+
     public Iterator<Integer> tableIdIterator() {
         return this.tableIdToTable.values()
             .stream()
@@ -137,9 +162,44 @@ public class Catalog {
         return this.getTable(id).name;
     }
     
+    /**
+     * Parses the optional buffer pool settings that may follow a table's
+     * schema in the catalog file, e.g. <tt>reserve=8 share=0.5 priority=high</tt>.
+     * @return the cache policy, or null if there are no settings
+     */
+    private TableCachePolicy parseCachePolicy(String settings) {
+        settings = settings.trim();
+        if (settings.isEmpty()) {
+            return null;
+        }
+
+        int reservedPages = TableCachePolicy.DEFAULT.getReservedPages();
+        double maxShare = TableCachePolicy.DEFAULT.getMaxShare();
+        TableCachePolicy.Priority priority = TableCachePolicy.DEFAULT.getPriority();
+        for (String setting : settings.split("\\s+")) {
+            String[] kv = setting.split("=");
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Invalid table setting " + setting);
+            }
+            String key = kv[0].trim().toLowerCase();
+            if (key.equals("reserve"))
+                reservedPages = Integer.parseInt(kv[1].trim());
+            else if (key.equals("share"))
+                maxShare = Double.parseDouble(kv[1].trim());
+            else if (key.equals("priority"))
+                priority = TableCachePolicy.Priority.parse(kv[1]);
+            else
+                throw new IllegalArgumentException("Unknown table setting " + kv[0]);
+        }
+        return new TableCachePolicy(reservedPages, maxShare, priority);
+    }
+
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line may end with buffer pool settings for the table, for example
+     * <tt>orders (id int pk, total int) reserve=16 share=0.25 priority=high</tt>.
      * @param catalogFile
+     * @see TableCachePolicy
      */
     public void loadSchema(String catalogFile) {
         String line = "";
@@ -181,10 +241,19 @@ public class Catalog {
                 HeapFile tabHf = new HeapFile(new File(name + ".dat"), t);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+
+                TableCachePolicy policy = parseCachePolicy(line.substring(line.indexOf(")") + 1));
+                if (policy != null) {
+                    setCachePolicy(tabHf.getId(), policy);
+                    System.out.println("Table " + name + " buffer pool policy: " + policy);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid catalog entry : " + line + " (" + e.getMessage() + ")");
+            System.exit(0);
         } catch (IndexOutOfBoundsException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
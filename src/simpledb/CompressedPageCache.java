@@ -0,0 +1,175 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Constructor;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * CompressedPageCache is an optional second tier behind the BufferPool.  It
+ * keeps clean pages that were evicted from the BufferPool, deflated, within
+ * a budget of bytes, so that reading them again does not need a disk read.
+ * Heap pages are mostly zero padding (empty slots, short strings), so they
+ * usually compress to a small fraction of {@link BufferPool#PAGE_SIZE}.
+ * <p>
+ * Only clean pages may be added; a page that is read back is removed from
+ * this cache, since the BufferPool owns it again from then on.
+ *
+ * @see BufferPool#setCompressedCacheSize
+ */
+public class CompressedPageCache {
+
+    private static class CompressedPage {
+        private final Class<?> pageClass;
+        private final byte[] data;
+
+        public CompressedPage(Class<?> pageClass, byte[] data) {
+            this.pageClass = pageClass;
+            this.data = data;
+        }
+    }
+
+    private final long maxBytes;
+    private long usedBytes;
+    // access order, so that the least recently used page is dropped first
+    private final LinkedHashMap<PageId, CompressedPage> pages;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maxBytes the maximum number of compressed bytes to keep
+     */
+    public CompressedPageCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("The compressed cache needs a positive size.");
+        }
+        this.maxBytes = maxBytes;
+        this.usedBytes = 0;
+        this.pages = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Compresses and adds a clean page, dropping the least recently added
+     * pages if the budget is exceeded.
+     *
+     * @param page the evicted page
+     */
+    public synchronized void put(Page page) {
+        PageId pid = page.getId();
+        this.invalidate(pid);
+
+        byte[] compressed = compress(page.getPageData());
+        if (compressed.length > this.maxBytes) {
+            return;
+        }
+
+        Iterator<Entry<PageId, CompressedPage>> it = this.pages.entrySet().iterator();
+        while (this.usedBytes + compressed.length > this.maxBytes && it.hasNext()) {
+            this.usedBytes -= it.next().getValue().data.length;
+            it.remove();
+        }
+
+        this.pages.put(pid, new CompressedPage(page.getClass(), compressed));
+        this.usedBytes += compressed.length;
+    }
+
+    /**
+     * Returns the specified page decompressed, leaving it in this cache
+     * until it is {@link #invalidate invalidated}.
+     *
+     * @param pid the id of the page to look up
+     * @return the page, or null if it is not in this cache
+     */
+    public synchronized Page get(PageId pid) throws DbException {
+        CompressedPage compressed = this.pages.get(pid);
+        if (compressed == null) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+
+        byte[] data = decompress(compressed.data);
+        try {
+            // pages must have a constructor of the form Page(PageId id, byte[] data)
+            Constructor<?> pageConst = compressed.pageClass.getDeclaredConstructor(pid.getClass(), byte[].class);
+            return (Page) pageConst.newInstance(pid, data);
+        } catch (ReflectiveOperationException e) {
+            throw new DbException("Cannot rebuild page " + pid + " from the compressed cache.");
+        }
+    }
+
+    /**
+     * Drops the specified page, e.g. because its contents on disk changed.
+     */
+    public synchronized void invalidate(PageId pid) {
+        CompressedPage compressed = this.pages.remove(pid);
+        if (compressed != null) {
+            this.usedBytes -= compressed.data.length;
+        }
+    }
+
+    /** @return the maximum number of compressed bytes kept. */
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /** @return the number of compressed bytes currently kept. */
+    public synchronized long getUsedBytes() {
+        return this.usedBytes;
+    }
+
+    /** @return the number of pages currently kept. */
+    public synchronized int getNumPages() {
+        return this.pages.size();
+    }
+
+    /** @return the number of lookups that found their page. */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /** @return the number of lookups that did not find their page. */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(data);
+        deflater.finish();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 4);
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            int len = deflater.deflate(buffer);
+            baos.write(buffer, 0, len);
+        }
+        deflater.end();
+        return baos.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] compressed) throws DbException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+
+        byte[] data = new byte[BufferPool.PAGE_SIZE];
+        try {
+            int len = 0;
+            while (!inflater.finished() && len < data.length) {
+                len += inflater.inflate(data, len, data.length - len);
+            }
+        } catch (DataFormatException e) {
+            throw new DbException("Corrupt page in the compressed cache.");
+        } finally {
+            inflater.end();
+        }
+        return data;
+    }
+}
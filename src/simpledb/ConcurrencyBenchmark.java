@@ -0,0 +1,176 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ConcurrencyBenchmark compares strict two-phase locking with optimistic
+ * concurrency control at several levels of contention.  Each transaction
+ * reads one page and updates a tuple on another, both picked at random
+ * among a number of hot pages of the same table: the fewer hot pages, the
+ * more often transactions conflict.  Aborted transactions are retried
+ * until they commit.
+ * <p>
+ * Usage: <tt>java simpledb.ConcurrencyBenchmark [threads]
+ * [transactions per thread] [pages]</tt>
+ *
+ * @see BufferPool#setLocking
+ * @see Transaction#setOptimistic
+ */
+public class ConcurrencyBenchmark {
+
+    private static final int COLUMNS = 2;
+
+    /** The outcome of one run. */
+    public static class Result {
+        public final boolean optimistic;
+        public final int hotPages;
+        public final long commits;
+        public final long aborts;
+        public final long millis;
+
+        public Result(boolean optimistic, int hotPages, long commits, long aborts, long millis) {
+            this.optimistic = optimistic;
+            this.hotPages = hotPages;
+            this.commits = commits;
+            this.aborts = aborts;
+            this.millis = millis;
+        }
+
+        /** @return the committed transactions per second. */
+        public double getThroughput() {
+            return this.millis == 0 ? 0 : this.commits * 1000.0 / this.millis;
+        }
+
+        public String toString() {
+            return String.format("%-4s %6d hot pages: %8.1f commits/s, %6d aborts",
+                this.optimistic ? "OCC" : "2PL", this.hotPages, this.getThroughput(), this.aborts);
+        }
+    }
+
+    /**
+     * Creates a table of two integer columns with full pages, and adds it
+     * to the catalog.
+     */
+    public static HeapFile createTable(int numPages) throws IOException {
+        int tupleSize = Utility.getTupleDesc(COLUMNS).getSize();
+        int tuplesPerPage = BufferPool.PAGE_SIZE * 8 / (tupleSize * 8 + 1);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < numPages * tuplesPerPage; i++) {
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, 0)));
+        }
+        File f = File.createTempFile("benchmark", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.PAGE_SIZE, COLUMNS);
+        HeapFile table = Utility.openHeapFile(COLUMNS, f);
+        Database.getCatalog().addTable(table, "benchmark" + table.getId());
+        return table;
+    }
+
+    /**
+     * Runs the benchmark once.
+     *
+     * @param optimistic whether to use optimistic transactions rather than
+     *   locking
+     * @param table the table to update, see {@link #createTable}
+     * @param hotPages the number of pages transactions pick from
+     * @param threads the number of concurrent clients
+     * @param transactionsPerThread the number of transactions each client
+     *   commits
+     */
+    public static Result run(final boolean optimistic, final HeapFile table, final int hotPages,
+                             int threads, final int transactionsPerThread) throws Exception {
+        final BufferPool pool = Database.getBufferPool();
+        pool.setLocking(!optimistic);
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        Thread[] clients = new Thread[threads];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            final Random random = new Random(i);
+            clients[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < transactionsPerThread; j++) {
+                            while (!runTransaction(table, optimistic, random, hotPages)) {
+                                aborts.incrementAndGet();
+                            }
+                            commits.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            clients[i].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        long millis = System.currentTimeMillis() - start;
+        pool.setLocking(false);
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return new Result(optimistic, hotPages, commits.get(), aborts.get(), millis);
+    }
+
+    /** @return true if the transaction committed, false if it aborted */
+    private static boolean runTransaction(HeapFile table, boolean optimistic, Random random, int hotPages)
+        throws Exception {
+        Transaction t = new Transaction();
+        t.setOptimistic(optimistic);
+        t.start();
+        try {
+            BufferPool pool = Database.getBufferPool();
+            HeapPageId read = new HeapPageId(table.getId(), random.nextInt(hotPages));
+            HeapPageId written = new HeapPageId(table.getId(), random.nextInt(hotPages));
+
+            // read the page for update if it is also written, so that two
+            // lockers do not deadlock upgrading their shared locks
+            Permissions readPerm = read.equals(written) ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+            long sum = 0;
+            HeapPage page = (HeapPage) pool.getPage(t.getId(), read, readPerm);
+            for (java.util.Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+                sum += ((IntField) it.next().getField(1)).getValue();
+            }
+
+            page = (HeapPage) pool.getPage(t.getId(), written, Permissions.READ_WRITE);
+            Tuple victim = page.iterator().next();
+            Tuple updated = new Tuple(victim.getTupleDesc());
+            updated.setField(0, victim.getField(0));
+            updated.setField(1, new IntField((int) (sum % 1000) + 1));
+            page.deleteTuple(victim);
+            page.addTuple(updated);
+            page.markDirty(true, t.getId());
+
+            t.commitOptimistic();
+            return true;
+        } catch (TransactionAbortedException e) {
+            // an optimistic transaction that failed validation is aborted
+            // already
+            t.transactionComplete(true);
+            return false;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int transactions = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int numPages = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        HeapFile table = createTable(numPages);
+        for (int hotPages = 1; hotPages <= numPages; hotPages *= 4) {
+            System.out.println(run(false, table, hotPages, threads, transactions));
+            System.out.println(run(true, table, hotPages, threads, transactions));
+        }
+    }
+}
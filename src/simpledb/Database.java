@@ -16,6 +16,7 @@ public class Database {
     private BufferPool _bufferpool; 
 
     private final static String LOGFILENAME = "log";
+    private final static String WORKINGSETFILENAME = "workingset";
     private LogFile _logfile;
 
     private Database() {
@@ -36,6 +37,14 @@ public class Database {
         return _instance._logfile;
     }
 
+    /** Return the file where the buffer pool's working set is saved
+        on shutdown
+        @see BufferPool#saveWorkingSet
+    */
+    public static File getWorkingSetFile() {
+        return new File(WORKINGSETFILENAME);
+    }
+
     /** Return the buffer pool of the static Database instance*/
     public static BufferPool getBufferPool() {
         return _instance._bufferpool;
@@ -46,6 +55,15 @@ public class Database {
         return _instance._catalog;
     }
 
+    /** Change the capacity of the buffer pool in place, keeping its
+        cached pages.
+        @see BufferPool#resize
+    */
+    public static BufferPool resizeBufferPool(int pages) {
+        _instance._bufferpool.resize(pages);
+        return _instance._bufferpool;
+    }
+
     /** Method used for testing -- create a new instance of the
         buffer pool and return it
     */
@@ -56,6 +74,10 @@ public class Database {
 
     //reset the database, used for unit tests only.
     public static void reset() {
+        // the old log's unflushed records die with it, as in a crash
+        if (_instance._logfile != null) {
+            _instance._logfile.discard();
+        }
     	_instance = new Database();
     }
 
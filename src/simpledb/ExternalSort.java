@@ -0,0 +1,294 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * ExternalSort returns the tuples of its child sorted by a comparator,
+ * within a memory budget.
+ * <p>
+ * Tuples are read into memory until they reach the budget, sorted, and
+ * written to a temporary file as a sorted run (see {@link TupleSpillFile}).
+ * If the whole child fits in memory, no run is written.  Otherwise the
+ * runs are merged with a heap holding the next tuple of each run; as each
+ * run being merged needs a read buffer, at most a budget's worth of
+ * buffers of runs are merged at once, and more runs are first merged into
+ * longer ones.  The last merge streams its output, so the first tuples are
+ * returned before the merge is over.
+ * <p>
+ * The sort is stable.  With a {@link TupleComparator}, tuples are sorted
+ * in memory by their normalized keys (see {@link TupleComparator#sort}).
+ */
+public class ExternalSort extends AbstractDbIterator {
+
+    /** Default memory budget, in bytes of tuple data. */
+    public static final long DEFAULT_MEMORY_BYTES = 16L * 1024 * 1024;
+
+    private final DbIterator child;
+    private final Comparator<Tuple> comparator;
+    private final long memoryBytes;
+
+    // the sorted tuples, if they all fit in memory
+    private ArrayList<Tuple> sorted;
+    private Iterator<Tuple> it;
+    // otherwise the sorted runs, and the merge of them
+    private ArrayList<TupleSpillFile> runs;
+    private Merge merge;
+    private int runsWritten = 0;
+
+    /**
+     * Creates a sort of the tuples of child with the default memory budget.
+     *
+     * @param child the tuples to sort
+     * @param comparator the order to sort them in
+     */
+    public ExternalSort(DbIterator child, Comparator<Tuple> comparator) {
+        this(child, comparator, DEFAULT_MEMORY_BYTES);
+    }
+
+    /**
+     * Creates a sort of the tuples of child.
+     *
+     * @param child the tuples to sort
+     * @param comparator the order to sort them in
+     * @param memoryBytes the memory budget, in bytes of tuple data
+     */
+    public ExternalSort(DbIterator child, Comparator<Tuple> comparator, long memoryBytes) {
+        if (memoryBytes <= 0) {
+            throw new IllegalArgumentException("The memory budget must be positive.");
+        }
+        this.child = child;
+        this.comparator = comparator;
+        this.memoryBytes = memoryBytes;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.child.getTupleDesc();
+    }
+
+    /** @return the number of sorted runs written to disk since created. */
+    public int getRunsWritten() {
+        return this.runsWritten;
+    }
+
+    public void open()
+        throws DbException, NoSuchElementException, TransactionAbortedException {
+        this.child.open();
+        try {
+            this.sort();
+        } catch (IOException e) {
+            this.deleteRuns();
+            throw new DbException("Cannot spill sorted runs: " + e.getMessage());
+        }
+    }
+
+    private void sort() throws IOException, DbException, TransactionAbortedException {
+        long tupleSize = Math.max(1, this.getTupleDesc().getSize());
+        long maxTuples = Math.max(1, this.memoryBytes / tupleSize);
+        ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+        this.deleteRuns();
+        this.sorted = null;
+        this.it = null;
+        this.runs = new ArrayList<TupleSpillFile>();
+        while (this.child.hasNext()) {
+            buffer.add(this.child.next());
+            if (buffer.size() >= maxTuples) {
+                this.runs.add(this.writeRun(buffer));
+                buffer = new ArrayList<Tuple>();
+            }
+        }
+
+        if (this.runs.isEmpty()) {
+            this.sortBuffer(buffer);
+            this.sorted = buffer;
+            this.it = this.sorted.iterator();
+            return;
+        }
+        if (!buffer.isEmpty()) {
+            this.runs.add(this.writeRun(buffer));
+        }
+
+        // each run being merged needs a read buffer
+        int fanIn = (int) Math.max(2, Math.min(Integer.MAX_VALUE, this.memoryBytes / TupleSpillFile.BUFFER_SIZE));
+        while (this.runs.size() > fanIn) {
+            ArrayList<TupleSpillFile> merged = new ArrayList<TupleSpillFile>();
+            try {
+                for (int i = 0; i < this.runs.size(); i += fanIn) {
+                    List<TupleSpillFile> group = this.runs.subList(i, Math.min(i + fanIn, this.runs.size()));
+                    merged.add(this.mergeRuns(group));
+                }
+            } catch (IOException e) {
+                // the runs not merged yet are deleted with this.runs
+                for (TupleSpillFile run : merged) {
+                    run.delete();
+                }
+                throw e;
+            }
+            this.runs = merged;
+        }
+        this.merge = new Merge(this.runs);
+    }
+
+    /** Sorts tuples in memory, by normalized keys if the comparator has them. */
+    private void sortBuffer(ArrayList<Tuple> buffer) {
+        if (this.comparator instanceof TupleComparator) {
+            ((TupleComparator) this.comparator).sort(buffer);
+        } else {
+            Collections.sort(buffer, this.comparator);
+        }
+    }
+
+    private TupleSpillFile writeRun(ArrayList<Tuple> buffer) throws IOException {
+        this.sortBuffer(buffer);
+        TupleSpillFile run = new TupleSpillFile(this.getTupleDesc());
+        try {
+            for (Tuple t : buffer) {
+                run.add(t);
+            }
+        } catch (IOException e) {
+            run.delete();
+            throw e;
+        }
+        this.runsWritten++;
+        return run;
+    }
+
+    /** Merges runs into a new run, deleting them. */
+    private TupleSpillFile mergeRuns(List<TupleSpillFile> group) throws IOException {
+        TupleSpillFile run = new TupleSpillFile(this.getTupleDesc());
+        try {
+            Merge m = new Merge(group);
+            try {
+                Tuple t;
+                while ((t = m.next()) != null) {
+                    run.add(t);
+                }
+            } finally {
+                m.close();
+            }
+        } catch (IOException e) {
+            run.delete();
+            throw e;
+        }
+        for (TupleSpillFile f : group) {
+            f.delete();
+        }
+        this.runsWritten++;
+        return run;
+    }
+
+    public void close() {
+        super.close();
+        this.child.close();
+        this.deleteRuns();
+        this.sorted = null;
+        this.it = null;
+    }
+
+    private void deleteRuns() {
+        if (this.merge != null) {
+            this.merge.close();
+            this.merge = null;
+        }
+        if (this.runs != null) {
+            for (TupleSpillFile run : this.runs) {
+                run.delete();
+            }
+            this.runs = null;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (this.sorted != null) {
+            this.it = this.sorted.iterator();
+        } else if (this.runs != null) {
+            this.merge.close();
+            try {
+                this.merge = new Merge(this.runs);
+            } catch (IOException e) {
+                throw new DbException("Cannot read sorted runs: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * AbstractDbIterator.readNext implementation.
+     * Returns the tuples of the child in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more tuples
+     */
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        if (this.it != null) {
+            return this.it.hasNext() ? this.it.next() : null;
+        }
+        if (this.merge == null) {
+            return null;
+        }
+        try {
+            return this.merge.next();
+        } catch (IOException e) {
+            throw new DbException("Cannot read sorted runs: " + e.getMessage());
+        }
+    }
+
+    /** A k-way merge of sorted runs. */
+    private class Merge {
+        // the next tuple of a run, and the run's position for stability
+        private class Head {
+            private final Tuple tuple;
+            private final int run;
+
+            private Head(Tuple tuple, int run) {
+                this.tuple = tuple;
+                this.run = run;
+            }
+        }
+
+        private final ArrayList<TupleSpillFile.Reader> readers = new ArrayList<TupleSpillFile.Reader>();
+        private final PriorityQueue<Head> heads;
+
+        private Merge(List<TupleSpillFile> runs) throws IOException {
+            this.heads = new PriorityQueue<Head>(Math.max(1, runs.size()), (a, b) -> {
+                int c = comparator.compare(a.tuple, b.tuple);
+                return c != 0 ? c : Integer.compare(a.run, b.run);
+            });
+            try {
+                for (TupleSpillFile run : runs) {
+                    TupleSpillFile.Reader reader = run.read();
+                    this.readers.add(reader);
+                    Tuple t = reader.next();
+                    if (t != null) {
+                        this.heads.add(new Head(t, this.readers.size() - 1));
+                    }
+                }
+            } catch (IOException e) {
+                this.close();
+                throw e;
+            }
+        }
+
+        private Tuple next() throws IOException {
+            Head head = this.heads.poll();
+            if (head == null) {
+                return null;
+            }
+            Tuple t = this.readers.get(head.run).next();
+            if (t != null) {
+                this.heads.add(new Head(t, head.run));
+            }
+            return head.tuple;
+        }
+
+        private void close() {
+            for (TupleSpillFile.Reader reader : this.readers) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing more to read
+                }
+            }
+            this.readers.clear();
+            this.heads.clear();
+        }
+    }
+}
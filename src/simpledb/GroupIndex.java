@@ -0,0 +1,194 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * GroupIndex numbers the distinct values of the group-by fields 0, 1, 2,
+ * ... in the order they are first seen, so that aggregators can keep the
+ * state of each group in primitive arrays indexed by group number.
+ * <p>
+ * Integer values are looked up in an open-addressing hash table of
+ * primitive keys with linear probing, which finds or inserts a value in
+ * one probe sequence without boxing it.  Strings are dictionary-encoded
+ * first: the dictionary maps each distinct string of a field to a number.
+ * A group of several fields is numbered one field at a time: the number of
+ * the first i + 1 fields is looked up in the table of field i, keyed by
+ * the number of the first i fields and the value of field i packed into a
+ * long.  Without grouping, every tuple is in group 0.
+ */
+class GroupIndex {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // per group-by field: the dictionary of its strings, and the numbers
+    // of the groups of the fields up to it
+    private final ArrayList<HashMap<String, Integer>> dictionaries = new ArrayList<HashMap<String, Integer>>();
+    private final ArrayList<KeyTable> tables = new ArrayList<KeyTable>();
+
+    // the group-by values of each group, empty without grouping
+    private final ArrayList<Field[]> groups = new ArrayList<Field[]>();
+
+    /** @return the number of groups */
+    public int size() {
+        return this.groups.size();
+    }
+
+    /** @return the group-by value of a group of one field, or null without
+        grouping */
+    public Field getGroup(int group) {
+        Field[] values = this.groups.get(group);
+        return values.length == 0 ? null : values[0];
+    }
+
+    /** @return the group-by values of a group */
+    public Field[] getGroupFields(int group) {
+        return this.groups.get(group);
+    }
+
+    /**
+     * Finds the group number of a group-by value, numbering it if it was
+     * not seen before.
+     *
+     * @param value the group-by value, or null without grouping
+     * @return the group number, which is {@link #size}() - 1 for a new group
+     */
+    public int groupOf(Field value) {
+        if (value == null) {
+            return this.noGroup();
+        }
+        int group = this.table(0).numberOf(this.key(0, value));
+        if (group == this.groups.size()) {
+            this.groups.add(new Field[] { value });
+        }
+        return group;
+    }
+
+    /**
+     * Finds the group number of the group-by values of a tuple, numbering
+     * them if they were not seen before.
+     *
+     * @param t the tuple
+     * @param fields the group-by fields of the tuple; none without grouping
+     * @return the group number, which is {@link #size}() - 1 for a new group
+     */
+    public int groupOf(Tuple t, int[] fields) {
+        if (fields.length == 0) {
+            return this.noGroup();
+        }
+        int group = this.table(0).numberOf(this.key(0, t.getField(fields[0])));
+        for (int i = 1; i < fields.length; i++) {
+            long key = ((long) group << 32) | (this.key(i, t.getField(fields[i])) & 0xFFFFFFFFL);
+            group = this.table(i).numberOf(key);
+        }
+        if (group == this.groups.size()) {
+            Field[] values = new Field[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = t.getField(fields[i]);
+            }
+            this.groups.add(values);
+        }
+        return group;
+    }
+
+    private int noGroup() {
+        if (this.groups.isEmpty()) {
+            this.groups.add(new Field[0]);
+        }
+        return 0;
+    }
+
+    private KeyTable table(int field) {
+        while (this.tables.size() <= field) {
+            this.tables.add(new KeyTable());
+            this.dictionaries.add(null);
+        }
+        return this.tables.get(field);
+    }
+
+    /** @return an int that identifies a value of a group-by field */
+    private int key(int field, Field value) {
+        if (value instanceof IntField) {
+            return ((IntField) value).getValue();
+        }
+
+        this.table(field);
+        HashMap<String, Integer> dictionary = this.dictionaries.get(field);
+        if (dictionary == null) {
+            dictionary = new HashMap<String, Integer>();
+            this.dictionaries.set(field, dictionary);
+        }
+        String s = ((StringField) value).getValue();
+        Integer code = dictionary.get(s);
+        if (code == null) {
+            code = dictionary.size();
+            dictionary.put(s, code);
+        }
+        return code;
+    }
+
+    /** Numbers distinct long keys 0, 1, 2, ... in an open-addressing table. */
+    private static class KeyTable {
+        private static final int EMPTY = -1;
+
+        private long[] keys;
+        private int[] numbers;
+        private int mask;
+        private int size = 0;
+
+        private KeyTable() {
+            this.allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity) {
+            this.keys = new long[capacity];
+            this.numbers = new int[capacity];
+            Arrays.fill(this.numbers, EMPTY);
+            this.mask = capacity - 1;
+        }
+
+        /** @return the number of a key, which is the number of keys
+            numbered before if it is new */
+        private int numberOf(long key) {
+            int slot = hash(key) & this.mask;
+            while (this.numbers[slot] != EMPTY) {
+                if (this.keys[slot] == key) {
+                    return this.numbers[slot];
+                }
+                slot = (slot + 1) & this.mask;
+            }
+
+            int number = this.size++;
+            this.keys[slot] = key;
+            this.numbers[slot] = number;
+            // keep the table at most half full so probe sequences stay short
+            if (2 * this.size > this.numbers.length) {
+                this.rehash();
+            }
+            return number;
+        }
+
+        private void rehash() {
+            long[] oldKeys = this.keys;
+            int[] oldNumbers = this.numbers;
+            this.allocate(2 * oldNumbers.length);
+            for (int i = 0; i < oldNumbers.length; i++) {
+                if (oldNumbers[i] != EMPTY) {
+                    int slot = hash(oldKeys[i]) & this.mask;
+                    while (this.numbers[slot] != EMPTY) {
+                        slot = (slot + 1) & this.mask;
+                    }
+                    this.keys[slot] = oldKeys[i];
+                    this.numbers[slot] = oldNumbers[i];
+                }
+            }
+        }
+
+        /** Spreads the bits of a key, so that runs of keys do not cluster. */
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package simpledb;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The HashJoin operator implements an equi-join by building an in-memory
+ * hash table over one child and probing it with the tuples of the other,
+ * reading each child once.
+ * <p>
+ * As DbIterators do not know their cardinalities, HashJoin finds the
+ * smaller child by reading both children in turn until one of them runs
+ * out; that one is hashed.  The tuples read from the other child so far
+ * are probed first, followed by the rest of that child.
+ * <p>
+ * If both children grow past the memory budget, HashJoin turns into a
+ * grace hash join: it partitions both children on the hash of their join
+ * fields into temporary files (see {@link TupleSpillFile}), and joins
+ * each pair of partitions on its own, hashing the smaller one.  A
+ * partition that still does not fit is partitioned again with another
+ * hash function, up to MAX_DEPTH times; past that, its join values are
+ * too skewed for partitioning to help, and it is hashed in chunks that
+ * fit, each probed with the whole other partition.
+ * <p>
+ * Like {@link Join}, HashJoin returns the concatenation of the left and
+ * right tuples, whichever child is hashed.
+ */
+public class HashJoin extends AbstractDbIterator {
+
+    /** Default memory budget, in bytes of tuple data. */
+    public static final long DEFAULT_MEMORY_BYTES = 16L * 1024 * 1024;
+
+    /** How many times a partition may be partitioned again. */
+    public static final int MAX_DEPTH = 3;
+
+    // the most partitions a child is split into at a time
+    private static final int MAX_PARTITIONS = 64;
+
+    private JoinPredicate predicate;
+    private DbIterator leftRelationDbIterator;
+    private DbIterator rightRelationDbIterator;
+    private final long memoryBytes;
+
+    // the tuples of the hashed side by join field, or null before the
+    // first table is built
+    private HashMap<Field, ArrayList<Tuple>> table;
+    private boolean buildLeft;
+    private TupleSource probe;
+    private Tuple probeTuple;
+    private Iterator<Tuple> matches;
+
+    // a pair of partitions of the children, with the same hash values
+    private static class Partition {
+        private final TupleSpillFile left;
+        private final TupleSpillFile right;
+        private final int depth;
+
+        private Partition(TupleSpillFile left, TupleSpillFile right, int depth) {
+            this.left = left;
+            this.right = right;
+            this.depth = depth;
+        }
+
+        private void delete() {
+            this.left.delete();
+            this.right.delete();
+        }
+    }
+    // partitions not joined yet, and the one being joined
+    private ArrayDeque<Partition> pending = new ArrayDeque<Partition>();
+    private Partition current;
+    // the rest of the current partition's hashed side, if it is hashed
+    // in chunks
+    private TupleSpillFile.Reader chunks;
+    private TupleSpillFile.Reader probeReader;
+    private int partitionsWritten = 0;
+
+    /** A stream of tuples to probe the hash table with. */
+    private interface TupleSource {
+        /** @return the next tuple, or null if there are no more tuples */
+        Tuple next() throws DbException, TransactionAbortedException;
+    }
+
+    /**
+     * Constructor.  Accepts two children to join and the predicate to
+     * join them on, and joins within the default memory budget.
+     *
+     * @param p The predicate to use to join the children; its operator
+     *   must be Predicate.Op.EQUALS
+     * @param child1 Iterator for the left relation to join
+     * @param child2 Iterator for the right relation to join
+     */
+    public HashJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_BYTES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p The predicate to use to join the children
+     * @param child1 Iterator for the left relation to join
+     * @param child2 Iterator for the right relation to join
+     * @param memoryBytes the memory budget for the hash table, in bytes of
+     *   tuple data
+     * @see #HashJoin(JoinPredicate, DbIterator, DbIterator)
+     */
+    public HashJoin(JoinPredicate p, DbIterator child1, DbIterator child2, long memoryBytes) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("A hash join needs an equality predicate.");
+        }
+        if (memoryBytes <= 0) {
+            throw new IllegalArgumentException("The memory budget must be positive.");
+        }
+        this.predicate = p;
+        this.leftRelationDbIterator = child1;
+        this.rightRelationDbIterator = child2;
+        this.memoryBytes = memoryBytes;
+    }
+
+    /**
+     * @see simpledb.TupleDesc#combine(TupleDesc, TupleDesc) for possible implementation logic.
+     */
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.combine(
+            this.leftRelationDbIterator.getTupleDesc(),
+            this.rightRelationDbIterator.getTupleDesc()
+        );
+    }
+
+    /** @return the number of partition files written since created. */
+    public int getPartitionsWritten() {
+        return this.partitionsWritten;
+    }
+
+    public void open()
+        throws DbException, NoSuchElementException, TransactionAbortedException {
+        this.leftRelationDbIterator.open();
+        this.rightRelationDbIterator.open();
+        this.reset();
+    }
+
+    public void close() {
+        super.close();
+        this.leftRelationDbIterator.close();
+        this.rightRelationDbIterator.close();
+        this.reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.leftRelationDbIterator.rewind();
+        this.rightRelationDbIterator.rewind();
+        this.reset();
+    }
+
+    /** Drops the hash table and the partitions, to start over. */
+    private void reset() {
+        this.table = null;
+        this.probe = null;
+        closeQuietly(this.probeReader);
+        this.probeReader = null;
+        this.probeTuple = null;
+        this.matches = null;
+        this.closeChunks();
+        if (this.current != null) {
+            this.current.delete();
+            this.current = null;
+        }
+        for (Partition partition : this.pending) {
+            partition.delete();
+        }
+        this.pending.clear();
+    }
+
+    private void closeChunks() {
+        closeQuietly(this.chunks);
+        this.chunks = null;
+    }
+
+    private static void closeQuietly(TupleSpillFile.Reader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // nothing more to read
+            }
+        }
+    }
+
+    private static long bytes(List<Tuple> tuples, TupleDesc td) {
+        return (long) tuples.size() * td.getSize();
+    }
+
+    /**
+     * Reads both children in turn until one runs out, and hashes that one;
+     * partitions both children if neither fits in memory.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        TupleDesc leftDesc = this.leftRelationDbIterator.getTupleDesc();
+        TupleDesc rightDesc = this.rightRelationDbIterator.getTupleDesc();
+        ArrayList<Tuple> left = new ArrayList<Tuple>();
+        ArrayList<Tuple> right = new ArrayList<Tuple>();
+        while (true) {
+            if (!this.leftRelationDbIterator.hasNext()) {
+                this.buildLeft = true;
+                break;
+            }
+            left.add(this.leftRelationDbIterator.next());
+            if (!this.rightRelationDbIterator.hasNext()) {
+                this.buildLeft = false;
+                break;
+            }
+            right.add(this.rightRelationDbIterator.next());
+
+            if (bytes(left, leftDesc) > this.memoryBytes && bytes(right, rightDesc) > this.memoryBytes) {
+                try {
+                    this.partitionChildren(left, right);
+                } catch (IOException e) {
+                    throw new DbException("Cannot spill the join partitions: " + e.getMessage());
+                }
+                this.table = new HashMap<Field, ArrayList<Tuple>>();
+                return;
+            }
+        }
+
+        this.table = this.hash(this.buildLeft ? left : right, this.buildLeft);
+        if (this.table.isEmpty()) {
+            // nothing can match
+            return;
+        }
+        final Iterator<Tuple> buffered = (this.buildLeft ? right : left).iterator();
+        final DbIterator rest = this.buildLeft ? this.rightRelationDbIterator : this.leftRelationDbIterator;
+        this.probe = () -> {
+            if (buffered.hasNext()) {
+                return buffered.next();
+            }
+            return rest.hasNext() ? rest.next() : null;
+        };
+    }
+
+    private HashMap<Field, ArrayList<Tuple>> hash(Iterable<Tuple> tuples, boolean left) {
+        int field = left ? this.predicate.getField1() : this.predicate.getField2();
+        HashMap<Field, ArrayList<Tuple>> hashed = new HashMap<Field, ArrayList<Tuple>>();
+        for (Tuple t : tuples) {
+            hashed.computeIfAbsent(t.getField(field), k -> new ArrayList<Tuple>()).add(t);
+        }
+        return hashed;
+    }
+
+    /**
+     * Partitions the tuples read so far and the rest of both children.
+     */
+    private void partitionChildren(ArrayList<Tuple> left, ArrayList<Tuple> right)
+        throws IOException, DbException, TransactionAbortedException {
+        int numPartitions = this.numPartitions(bytes(left, this.leftRelationDbIterator.getTupleDesc()));
+        TupleSpillFile[] leftParts = null;
+        TupleSpillFile[] rightParts = null;
+        boolean queued = false;
+        try {
+            leftParts = this.newPartitions(this.leftRelationDbIterator.getTupleDesc(), numPartitions);
+            rightParts = this.newPartitions(this.rightRelationDbIterator.getTupleDesc(), numPartitions);
+            this.writePartitions(left, right, leftParts, rightParts);
+            this.addPartitions(leftParts, rightParts, 1);
+            queued = true;
+        } finally {
+            if (!queued) {
+                TupleSpillFile.deleteAll(leftParts);
+                TupleSpillFile.deleteAll(rightParts);
+            }
+        }
+    }
+
+    /**
+     * Writes the tuples read so far and the rest of both children to
+     * their partitions.
+     */
+    private void writePartitions(ArrayList<Tuple> left, ArrayList<Tuple> right,
+                                 TupleSpillFile[] leftParts, TupleSpillFile[] rightParts)
+        throws IOException, DbException, TransactionAbortedException {
+        int numPartitions = leftParts.length;
+        int leftField = this.predicate.getField1();
+        int rightField = this.predicate.getField2();
+
+        for (Tuple t : left) {
+            leftParts[partitionOf(t.getField(leftField), 0, numPartitions)].add(t);
+        }
+        left.clear();
+        while (this.leftRelationDbIterator.hasNext()) {
+            Tuple t = this.leftRelationDbIterator.next();
+            leftParts[partitionOf(t.getField(leftField), 0, numPartitions)].add(t);
+        }
+        for (Tuple t : right) {
+            rightParts[partitionOf(t.getField(rightField), 0, numPartitions)].add(t);
+        }
+        right.clear();
+        while (this.rightRelationDbIterator.hasNext()) {
+            Tuple t = this.rightRelationDbIterator.next();
+            rightParts[partitionOf(t.getField(rightField), 0, numPartitions)].add(t);
+        }
+    }
+
+    /** Partitions a pair of partitions again with the next hash function. */
+    private void repartition(Partition partition) throws IOException {
+        long bytes = Math.min(partition.left.getBytes(), partition.right.getBytes());
+        int numPartitions = this.numPartitions(bytes);
+        TupleSpillFile[] leftParts = null;
+        TupleSpillFile[] rightParts = null;
+        boolean queued = false;
+        try {
+            leftParts = this.newPartitions(partition.left.getTupleDesc(), numPartitions);
+            rightParts = this.newPartitions(partition.right.getTupleDesc(), numPartitions);
+            this.split(partition.left, this.predicate.getField1(), partition.depth, leftParts);
+            this.split(partition.right, this.predicate.getField2(), partition.depth, rightParts);
+            this.addPartitions(leftParts, rightParts, partition.depth + 1);
+            queued = true;
+        } finally {
+            if (!queued) {
+                TupleSpillFile.deleteAll(leftParts);
+                TupleSpillFile.deleteAll(rightParts);
+            }
+        }
+    }
+
+    private void split(TupleSpillFile from, int field, int depth, TupleSpillFile[] to) throws IOException {
+        TupleSpillFile.Reader reader = from.read();
+        try {
+            Tuple t;
+            while ((t = reader.next()) != null) {
+                to[partitionOf(t.getField(field), depth, to.length)].add(t);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private int numPartitions(long bytes) {
+        // one more than needed, so that the partitions likely fit
+        long needed = bytes / this.memoryBytes + 2;
+        return (int) Math.min(MAX_PARTITIONS, needed);
+    }
+
+    private TupleSpillFile[] newPartitions(TupleDesc td, int numPartitions) throws IOException {
+        TupleSpillFile[] parts = TupleSpillFile.create(td, numPartitions);
+        this.partitionsWritten += numPartitions;
+        return parts;
+    }
+
+    /** Queues the pairs of partitions that may produce tuples. */
+    private void addPartitions(TupleSpillFile[] leftParts, TupleSpillFile[] rightParts, int depth) {
+        for (int i = 0; i < leftParts.length; i++) {
+            Partition partition = new Partition(leftParts[i], rightParts[i], depth);
+            if (leftParts[i].size() == 0 || rightParts[i].size() == 0) {
+                partition.delete();
+            } else {
+                this.pending.push(partition);
+            }
+        }
+    }
+
+    /**
+     * @return the partition of a join value; each depth hashes
+     *   differently, so that a partition can be split again
+     */
+    static int partitionOf(Field key, int depth, int numPartitions) {
+        return partitionOf(key.hashCode(), depth, numPartitions);
+    }
+
+    /** @return the partition of the hash code of a join value
+        @see #partitionOf(Field, int, int) */
+    static int partitionOf(int hashCode, int depth, int numPartitions) {
+        int h = hashCode ^ (depth * 0x9E3779B9);
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, numPartitions);
+    }
+
+    /**
+     * Builds the hash table of the next pair of partitions, or of the next
+     * chunk of the current one.
+     *
+     * @return false if there is nothing left to join
+     */
+    private boolean nextTable() throws IOException {
+        this.table = null;
+        this.probe = null;
+        closeQuietly(this.probeReader);
+        this.probeReader = null;
+        if (this.chunks != null) {
+            if (this.nextChunk()) {
+                return true;
+            }
+            this.closeChunks();
+        }
+
+        while (true) {
+            if (this.current != null) {
+                this.current.delete();
+                this.current = null;
+            }
+            if (this.pending.isEmpty()) {
+                return false;
+            }
+            this.current = this.pending.pop();
+
+            this.buildLeft = this.current.left.getBytes() <= this.current.right.getBytes();
+            TupleSpillFile build = this.buildLeft ? this.current.left : this.current.right;
+            if (build.getBytes() <= this.memoryBytes) {
+                this.table = this.hash(this.readAll(build), this.buildLeft);
+                this.probeCurrent();
+                return true;
+            }
+            if (this.current.depth < MAX_DEPTH) {
+                this.repartition(this.current);
+                continue;
+            }
+            // skewed: hash the partition a chunk at a time
+            this.chunks = build.read();
+            if (this.nextChunk()) {
+                return true;
+            }
+            this.closeChunks();
+        }
+    }
+
+    private ArrayList<Tuple> readAll(TupleSpillFile file) throws IOException {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>(file.size());
+        TupleSpillFile.Reader reader = file.read();
+        try {
+            Tuple t;
+            while ((t = reader.next()) != null) {
+                tuples.add(t);
+            }
+        } finally {
+            reader.close();
+        }
+        return tuples;
+    }
+
+    /** Hashes the next chunk of the current partition's hashed side. */
+    private boolean nextChunk() throws IOException {
+        TupleDesc td = this.buildLeft ? this.current.left.getTupleDesc() : this.current.right.getTupleDesc();
+        long maxTuples = Math.max(1, this.memoryBytes / Math.max(1, td.getSize()));
+        ArrayList<Tuple> chunk = new ArrayList<Tuple>();
+        Tuple t;
+        while (chunk.size() < maxTuples && (t = this.chunks.next()) != null) {
+            chunk.add(t);
+        }
+        if (chunk.isEmpty()) {
+            return false;
+        }
+        this.table = this.hash(chunk, this.buildLeft);
+        this.probeCurrent();
+        return true;
+    }
+
+    /** Probes with the current partition's other side, from its start. */
+    private void probeCurrent() throws IOException {
+        final TupleSpillFile.Reader reader = (this.buildLeft ? this.current.right : this.current.left).read();
+        this.probeReader = reader;
+        this.probe = () -> {
+            try {
+                return reader.next();
+            } catch (IOException e) {
+                throw new DbException("Cannot read a join partition: " + e.getMessage());
+            }
+        };
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are
+     * no more tuples.
+     *
+     * @return The next matching tuple.
+     * @see Join#readNext
+     */
+    protected Tuple readNext() throws TransactionAbortedException, DbException {
+        if (this.table == null && this.current == null && this.pending.isEmpty()) {
+            this.build();
+        }
+
+        while (this.matches == null || !this.matches.hasNext()) {
+            this.probeTuple = this.probe == null ? null : this.probe.next();
+            if (this.probeTuple == null) {
+                this.matches = null;
+                try {
+                    if (!this.nextTable()) {
+                        // keep an empty table, so that the join is not
+                        // built again
+                        this.table = new HashMap<Field, ArrayList<Tuple>>();
+                        return null;
+                    }
+                } catch (IOException e) {
+                    throw new DbException("Cannot read a join partition: " + e.getMessage());
+                }
+                continue;
+            }
+            int field = this.buildLeft ? this.predicate.getField2() : this.predicate.getField1();
+            ArrayList<Tuple> bucket = this.table.get(this.probeTuple.getField(field));
+            this.matches = bucket == null ? null : bucket.iterator();
+        }
+
+        Tuple match = this.matches.next();
+        return this.buildLeft
+            ? Tuple.combine(match, this.probeTuple)
+            : Tuple.combine(this.probeTuple, match);
+    }
+}
@@ -182,6 +182,18 @@ public class HeapFile implements DbFile {
         randomAccessFile.close();
     }
 
+    /**
+     * Forces the pages written to this file to disk.
+     */
+    public void force() throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "rw");
+        try {
+            randomAccessFile.getChannel().force(true);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
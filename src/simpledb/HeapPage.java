@@ -1,12 +1,20 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.IntStream;
 import java.io.*;
 
 /**
  * HeapPage stores pages of HeapFiles and implements the Page interface that
  * is used by BufferPool.
+ * <p>
+ * Every page has a reader/writer latch that protects its header and tuple
+ * slots while a single physical operation runs: adding or deleting a tuple
+ * holds it exclusively, while reading slots, serializing the page or
+ * starting an iterator hold it shared.  Latches are short-term and separate
+ * from the transactional page locks; they never outlive the call that took
+ * them, so they cannot deadlock with those locks.
  *
  * @see HeapFile
  * @see BufferPool
@@ -24,6 +32,8 @@ public class HeapPage implements Page {
 
     private byte[] oldData;
 
+    private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -85,8 +95,15 @@ public class HeapPage implements Page {
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
+        byte[] data;
+        this.latch.readLock().lock();
+        try {
+            data = this.oldData;
+        } finally {
+            this.latch.readLock().unlock();
+        }
         try {
-            return new HeapPage(this.pid, this.oldData);
+            return new HeapPage(this.pid, data);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -96,7 +113,13 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
-        this.oldData = this.getPageData().clone();
+        byte[] data = this.getPageData();
+        this.latch.writeLock().lock();
+        try {
+            this.oldData = data;
+        } finally {
+            this.latch.writeLock().unlock();
+        }
     }
 
     /**
@@ -112,7 +135,7 @@ public class HeapPage implements Page {
     private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
         // if associated bit is not set, read forward to the next tuple, and
         // return null.
-        if (!this.getSlot(slotId)) {
+        if (!this.isSlotUsed(slotId)) {
             for (int i = 0; i < this.td.getSize(); i++) {
                 try {
                     dis.readByte();
@@ -152,6 +175,18 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
+        this.latch.readLock().lock();
+        try {
+            return this.serialize();
+        } finally {
+            this.latch.readLock().unlock();
+        }
+    }
+
+    /**
+     * Serializes this page; the caller must hold the latch.
+     */
+    private byte[] serialize() {
         int len = BufferPool.PAGE_SIZE;
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -170,7 +205,7 @@ public class HeapPage implements Page {
         for (int i = 0; i < this.tuples.length; i++) {
 
             // empty slot
-            if (!this.getSlot(i)) {
+            if (!this.isSlotUsed(i)) {
                 for (int j = 0; j < this.td.getSize(); j++) {
                     try {
                         dos.writeByte(0);
@@ -242,12 +277,17 @@ public class HeapPage implements Page {
             throw new DbException("The tuple " + t.toString() + " does not reside in the page " + this.pid.toString() + ".");
         }
 
-        if (!this.getSlot(recordId.tupleno())) {
-            throw new DbException("The tuple slot for " + t.toString() + " is already empty.");
-        }
+        this.latch.writeLock().lock();
+        try {
+            if (!this.isSlotUsed(recordId.tupleno())) {
+                throw new DbException("The tuple slot for " + t.toString() + " is already empty.");
+            }
 
-        this.tuples[recordId.tupleno()] = null;
-        this.setSlot(recordId.tupleno(), false);
+            this.tuples[recordId.tupleno()] = null;
+            this.setSlot(recordId.tupleno(), false);
+        } finally {
+            this.latch.writeLock().unlock();
+        }
     }
 
     /**
@@ -264,13 +304,18 @@ public class HeapPage implements Page {
         }
 
         // Locate an empty slot
-        for (int i = 0; i < this.numSlots; i++) {
-            if (!this.getSlot(i)) {
-                this.tuples[i] = t;
-                this.setSlot(i, true);
-                t.setRecordId(new RecordId(this.pid, i));
-                return;
+        this.latch.writeLock().lock();
+        try {
+            for (int i = 0; i < this.numSlots; i++) {
+                if (!this.isSlotUsed(i)) {
+                    this.tuples[i] = t;
+                    this.setSlot(i, true);
+                    t.setRecordId(new RecordId(this.pid, i));
+                    return;
+                }
             }
+        } finally {
+            this.latch.writeLock().unlock();
         }
 
         throw new DbException("The page is full and has no empty slots.");
@@ -281,10 +326,15 @@ public class HeapPage implements Page {
      * that did the dirtying
      */
     public void markDirty(boolean dirty, TransactionId tid) {
-        this.isDirty = dirty;
+        this.latch.writeLock().lock();
+        try {
+            this.isDirty = dirty;
 
-        if (dirty) {
-            this.dirtiedTransactionId = tid;
+            if (dirty) {
+                this.dirtiedTransactionId = tid;
+            }
+        } finally {
+            this.latch.writeLock().unlock();
         }
     }
 
@@ -292,32 +342,125 @@ public class HeapPage implements Page {
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
     public TransactionId isDirty() {
-        if (!this.isDirty) {
-            return null;
+        this.latch.readLock().lock();
+        try {
+            if (!this.isDirty) {
+                return null;
+            }
+            return this.dirtiedTransactionId;
+        } finally {
+            this.latch.readLock().unlock();
         }
-        return this.dirtiedTransactionId;
     }
 
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        return (int) IntStream.range(0, this.numSlots)
-            .filter(idx -> !this.getSlot(idx))
-            .count();
+        this.latch.readLock().lock();
+        try {
+            return (int) IntStream.range(0, this.numSlots)
+                .filter(idx -> !this.isSlotUsed(idx))
+                .count();
+        } finally {
+            this.latch.readLock().unlock();
+        }
     }
 
     /**
      * Returns true if associated slot on this page is filled.
      */
     public boolean getSlot(int i) {
+        this.latch.readLock().lock();
+        try {
+            return this.isSlotUsed(i);
+        } finally {
+            this.latch.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads a slot bit of the header; the caller must hold the latch, unless
+     * the page is still being constructed.
+     */
+    private boolean isSlotUsed(int i) {
         byte slotGroup = this.header[i / 8];
         int slotGroupIdx = i % 8;
         return (slotGroup & (1 << slotGroupIdx)) != 0;
     }
 
     /**
-     * Abstraction to fill or clear a slot on this page.
+     * @return the number of tuple slots on this page.
+     */
+    public int getNumSlots() {
+        return this.numSlots;
+    }
+
+    /**
+     * Returns the serialized contents of a slot, as they appear in
+     * {@link #getPageData}; an empty slot is all zeroes.  Used to log
+     * changes to single slots.
+     */
+    public byte[] getSlotData(int i) {
+        this.latch.readLock().lock();
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(this.td.getSize());
+            DataOutputStream dos = new DataOutputStream(baos);
+            try {
+                if (this.isSlotUsed(i)) {
+                    for (int j = 0; j < this.td.numFields(); j++) {
+                        this.tuples[i].getField(j).serialize(dos);
+                    }
+                } else {
+                    dos.write(new byte[this.td.getSize()]);
+                }
+                dos.flush();
+            } catch (IOException e) {
+                // this really shouldn't happen
+                e.printStackTrace();
+            }
+            return baos.toByteArray();
+        } finally {
+            this.latch.readLock().unlock();
+        }
+    }
+
+    /**
+     * Overwrites a slot with serialized contents returned by
+     * {@link #getSlotData}, filling or clearing its header bit.  Used by
+     * recovery to redo and undo changes to single slots.
+     *
+     * @param i the slot to overwrite
+     * @param used whether the slot holds a tuple
+     * @param data the serialized tuple, ignored if the slot is not used
+     */
+    public void setSlotData(int i, boolean used, byte[] data) {
+        Tuple t = null;
+        if (used) {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+            t = new Tuple(this.td);
+            t.setRecordId(new RecordId(this.pid, i));
+            try {
+                for (int j = 0; j < this.td.numFields(); j++) {
+                    t.setField(j, this.td.getType(j).parse(dis));
+                }
+            } catch (java.text.ParseException e) {
+                throw new NoSuchElementException("parsing error!");
+            }
+        }
+
+        this.latch.writeLock().lock();
+        try {
+            this.tuples[i] = t;
+            this.setSlot(i, used);
+        } finally {
+            this.latch.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Abstraction to fill or clear a slot on this page; the caller must hold
+     * the latch exclusively.
      */
     private void setSlot(int i, boolean value) {
         int slotGroupIdx = i % 8;
@@ -331,12 +474,23 @@ public class HeapPage implements Page {
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * <p>
+     * The iterator runs over a snapshot of the slots taken under the latch,
+     * so concurrent changes to the page do not affect it.
      */
     public Iterator<Tuple> iterator() {
-        return IntStream.range(0, this.tuples.length)
-            .filter(idx -> this.getSlot(idx))
-            .mapToObj(idx -> this.tuples[idx])
-            .iterator();
+        List<Tuple> snapshot = new ArrayList<>();
+        this.latch.readLock().lock();
+        try {
+            for (int i = 0; i < this.tuples.length; i++) {
+                if (this.isSlotUsed(i)) {
+                    snapshot.add(this.tuples[i]);
+                }
+            }
+        } finally {
+            this.latch.readLock().unlock();
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
     }
 
 }
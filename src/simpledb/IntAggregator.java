@@ -1,64 +1,64 @@
 package simpledb;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
-import java.util.Map.Entry;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Groups are numbered by a {@link GroupIndex}, and the aggregate state of
+ * group g is in position g of parallel primitive arrays, so merging a
+ * tuple is one group lookup and an array update, without allocating.
  */
 public class IntAggregator implements Aggregator {
 
     private class IntAggregatorIterator implements DbIterator {
         private IntAggregator intAggregator;
-        private Iterator<Entry<Field, AggregateValue>> iterator;
+        private TupleDesc tupleDesc;
+        // the next group to return, or -1 if not open
+        private int position = -1;
 
         public IntAggregatorIterator(IntAggregator intAggregator) {
             this.intAggregator = intAggregator;
+            this.tupleDesc = this.getTupleDesc();
         }
 
         public void open() throws DbException, TransactionAbortedException {
-            this.iterator = this.intAggregator.aggregatedValues.entrySet().iterator();
+            this.position = 0;
         }
 
         public boolean hasNext() throws DbException, TransactionAbortedException {
-            if (this.iterator == null) {
+            if (this.position == -1) {
                 return false;
             }
 
-            return this.iterator.hasNext();
+            return this.position < this.intAggregator.groups.size();
         }
 
         public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-            if (this.iterator == null) {
+            if (this.position == -1) {
                 throw new NoSuchElementException("next() is unsupported on an uninitialized iterator.");
             }
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
 
-            Entry<Field, AggregateValue> entry = this.iterator.next();
-            Field groupByField = entry.getKey();
-            AggregateValue aggregatedValue = entry.getValue();
+            int group = this.position++;
+            Field groupByField = this.intAggregator.groups.getGroup(group);
+            IntField aggregatedValue = new IntField(this.intAggregator.getValue(group));
 
+            Tuple tuple = new Tuple(this.tupleDesc);
             if (groupByField == null) {
-                Tuple tuple = new Tuple(
-                    new TupleDesc(new Type[]{Type.INT_TYPE})
-                );
-                tuple.setField(0, new IntField(aggregatedValue.getValue()));
-
-                return tuple;
+                tuple.setField(0, aggregatedValue);
             } else {
-                Tuple tuple = new Tuple(
-                    new TupleDesc(new Type[]{this.intAggregator.groupByType, Type.INT_TYPE})
-                );
                 tuple.setField(0, groupByField);
-                tuple.setField(1, new IntField(aggregatedValue.getValue()));
-
-                return tuple;
+                tuple.setField(1, aggregatedValue);
             }
+            return tuple;
         }
 
         public void rewind() throws DbException, TransactionAbortedException {
-            this.iterator = this.intAggregator.aggregatedValues.entrySet().iterator();
+            this.position = 0;
         }
 
         public TupleDesc getTupleDesc() {
@@ -73,70 +73,22 @@ public class IntAggregator implements Aggregator {
         }
 
         public void close() {
-            this.iterator = null;
-        }
-    }
-
-    private class AggregateValue {
-        private int value;
-        private int count;
-
-        private Op aggregationOperator;
-
-        public AggregateValue(Op aggregationOperator) {
-            this.count = 0;
-            this.aggregationOperator = aggregationOperator;
-        }
-
-        public void updateValue(int value) {
-            if (this.count == 0) {
-                this.value = value;
-                this.count++;
-                return;
-            }
-
-            switch (this.aggregationOperator) {
-                case MIN:
-                    this.value = Math.min(this.value, value);
-                    break;
-                case MAX:
-                    this.value = Math.max(this.value, value);
-                    break;
-                case SUM:
-                case AVG:
-                    this.value += value;
-                    break;
-                default:
-                    break;
-            }
-
-            this.count++;
-        }
-
-        private int getValue() {
-            switch (this.aggregationOperator) {
-                case MIN:
-                case MAX:
-                case SUM:
-                    return this.value;
-                case COUNT:
-                    return this.count;
-                case AVG:
-                    return this.value / this.count;
-                default:
-                    break;
-            }
-            return this.value;
+            this.position = -1;
         }
     }
 
+    private static final int INITIAL_GROUPS = 64;
 
     private int groupByField;
     private Type groupByType;
     private int aggregateField;
     private Op aggregationOperator;
 
-    private HashMap<Field, AggregateValue> aggregatedValues;
+    private GroupIndex groups;
+    // per group: the min or max, the sum, and the number of values
+    private int[] values;
+    private long[] sums;
+    private int[] counts;
 
     /**
      * Aggregate constructor
@@ -152,7 +104,10 @@ public class IntAggregator implements Aggregator {
         this.aggregateField = afield;
         this.aggregationOperator = what;
 
-        this.aggregatedValues = new HashMap<>();
+        this.groups = new GroupIndex();
+        this.values = new int[INITIAL_GROUPS];
+        this.sums = new long[INITIAL_GROUPS];
+        this.counts = new int[INITIAL_GROUPS];
     }
 
     /**
@@ -163,16 +118,42 @@ public class IntAggregator implements Aggregator {
         Field groupByField = this.groupByField == Aggregator.NO_GROUPING
             ? null
             : tup.getField(this.groupByField);
-        IntField field = (IntField) tup.getField(this.aggregateField);
+        int value = ((IntField) tup.getField(this.aggregateField)).getValue();
+
+        int group = this.groups.groupOf(groupByField);
+        if (group == this.counts.length) {
+            int capacity = 2 * this.counts.length;
+            this.values = Arrays.copyOf(this.values, capacity);
+            this.sums = Arrays.copyOf(this.sums, capacity);
+            this.counts = Arrays.copyOf(this.counts, capacity);
+        }
 
-        if (!this.aggregatedValues.containsKey(groupByField)) {
-            this.aggregatedValues.put(
-                groupByField, new AggregateValue(this.aggregationOperator)
-            );
+        if (this.counts[group] == 0) {
+            this.values[group] = value;
+        } else if (this.aggregationOperator == Op.MIN) {
+            this.values[group] = Math.min(this.values[group], value);
+        } else if (this.aggregationOperator == Op.MAX) {
+            this.values[group] = Math.max(this.values[group], value);
         }
-        
-        this.aggregatedValues.get(groupByField)
-            .updateValue(field.getValue());
+        this.sums[group] += value;
+        this.counts[group]++;
+    }
+
+    private int getValue(int group) {
+        switch (this.aggregationOperator) {
+            case SUM:
+                return (int) this.sums[group];
+            case COUNT:
+                return this.counts[group];
+            case AVG:
+                return (int) (this.sums[group] / this.counts[group]);
+            default:
+                return this.values[group];
+        }
+    }
+
+    public int numGroups() {
+        return this.groups.size();
     }
 
     /**
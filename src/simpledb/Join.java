@@ -2,15 +2,27 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation, for any
+ * join predicate, as a block nested-loop join: it reads a block of left
+ * tuples that fits in its memory budget, and scans the right child once
+ * per block, so the right child is scanned once per block rather than
+ * once per left tuple.
  */
 public class Join extends AbstractDbIterator {
 
+    /** Default memory budget for the block of left tuples, in bytes of
+        tuple data. */
+    public static final long DEFAULT_MEMORY_BYTES = 16L * 1024 * 1024;
+
     private JoinPredicate predicate;
     private DbIterator leftRelationDbIterator;
     private DbIterator rightRelationDbIterator;
+    private final int blockSize;
 
-    private Tuple leftTuple;
+    private ArrayList<Tuple> block = new ArrayList<Tuple>();
+    private Tuple rightTuple;
+    private int blockIndex;
+    private int blocks = 0;
 
     /**
      * Constructor.  Accepts to children to join and the predicate
@@ -21,9 +33,39 @@ public class Join extends AbstractDbIterator {
      * @param child2 Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_BYTES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p The predicate to use to join the children
+     * @param child1 Iterator for the left(outer) relation to join
+     * @param child2 Iterator for the right(inner) relation to join
+     * @param memoryBytes the memory budget for the block of left tuples;
+     *   a block holds at least one tuple
+     * @see LogicalPlan#getOperatorMemory
+     */
+    public Join(JoinPredicate p, DbIterator child1, DbIterator child2, long memoryBytes) {
+        if (memoryBytes <= 0) {
+            throw new IllegalArgumentException("The memory budget must be positive.");
+        }
         this.predicate = p;
         this.leftRelationDbIterator = child1;
         this.rightRelationDbIterator = child2;
+        long tupleSize = Math.max(1, child1.getTupleDesc().getSize());
+        this.blockSize = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBytes / tupleSize));
+    }
+
+    /** @return the number of left tuples in a block. */
+    public int getBlockSize() {
+        return this.blockSize;
+    }
+
+    /** @return the number of blocks read, each a scan of the right child,
+        since created. */
+    public int getBlocks() {
+        return this.blocks;
     }
 
     /**
@@ -43,20 +85,26 @@ public class Join extends AbstractDbIterator {
     }
 
     public void close() {
+        super.close();
         this.leftRelationDbIterator.close();
         this.rightRelationDbIterator.close();
+        this.block.clear();
+        this.rightTuple = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         this.leftRelationDbIterator.rewind();
         this.rightRelationDbIterator.rewind();
+        this.block.clear();
+        this.rightTuple = null;
     }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no more tuples.
      * Logically, this is the next tuple in r1 cross r2 that satisfies the join
-     * predicate.  There are many possible implementations; the simplest is a
-     * nested loops join.
+     * predicate.  This implementation is a block nested-loop join, which
+     * returns the matches of a block of left tuples ordered by the right
+     * tuple.
      * <p>
      * Note that the tuples returned from this particular implementation of
      * Join are simply the concatenation of joining tuples from the left and
@@ -72,25 +120,34 @@ public class Join extends AbstractDbIterator {
      * @see JoinPredicate#filter
      */
     protected Tuple readNext() throws TransactionAbortedException, DbException {
-        if (this.leftTuple == null) {
-            if (this.leftRelationDbIterator.hasNext()) {
-                this.leftTuple = this.leftRelationDbIterator.next();
-            } else {
-                return null;
+        while (true) {
+            if (this.rightTuple != null) {
+                while (this.blockIndex < this.block.size()) {
+                    Tuple leftTuple = this.block.get(this.blockIndex++);
+                    if (this.predicate.filter(leftTuple, this.rightTuple)) {
+                        return Tuple.combine(leftTuple, this.rightTuple);
+                    }
+                }
+                this.rightTuple = null;
             }
 
-            this.rightRelationDbIterator.rewind();
-        }
-
-        while (this.rightRelationDbIterator.hasNext()) {
-            Tuple rightTuple = this.rightRelationDbIterator.next();
-            if (!this.predicate.filter(this.leftTuple, rightTuple)) {
+            if (!this.block.isEmpty() && this.rightRelationDbIterator.hasNext()) {
+                this.rightTuple = this.rightRelationDbIterator.next();
+                this.blockIndex = 0;
                 continue;
             }
-            return Tuple.combine(this.leftTuple, rightTuple);
-        }
 
-        this.leftTuple = null;
-        return this.readNext();
+            // the block is done; read the next one and scan the right
+            // child again
+            this.block.clear();
+            while (this.block.size() < this.blockSize && this.leftRelationDbIterator.hasNext()) {
+                this.block.add(this.leftRelationDbIterator.next());
+            }
+            if (this.block.isEmpty()) {
+                return null;
+            }
+            this.blocks++;
+            this.rightRelationDbIterator.rewind();
+        }
     }
 }
@@ -11,6 +11,16 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /** The join operators instantiateJoin chooses among. */
+    public enum JoinAlgorithm {
+        /** {@link HashJoin}, for equality predicates */
+        HASH,
+        /** {@link SortMergeJoin}, for equality and range predicates */
+        SORT_MERGE,
+        /** {@link Join}, for any predicate */
+        NESTED_LOOP
+    }
+
     /** Constructor
         @param p the logical plan being optimized
         @param joins the list of joins being performed
@@ -54,8 +64,28 @@ public class JoinOptimizer {
         }
         
         JoinPredicate p = new JoinPredicate(t1id,lj.p,t2id);
-       
-        j = new Join(p,plan1,plan2);
+
+        // the base tables' statistics stand in for the children's
+        TableStats stats1 = stats.get(lj.t1);
+        TableStats stats2 = lj.t2 == null ? null : stats.get(lj.t2);
+        JoinAlgorithm algorithm = chooseJoinAlgorithm(lj,
+            stats1 == null ? 0 : stats1.estimateTableCardinality(1.0),
+            stats2 == null ? 0 : stats2.estimateTableCardinality(1.0),
+            stats1 == null ? 0 : stats1.estimateScanCost(),
+            stats2 == null ? 0 : stats2.estimateScanCost());
+
+        long memory = operatorMemory();
+        switch (algorithm) {
+        case HASH:
+            j = new HashJoin(p,plan1,plan2,memory);
+            break;
+        case SORT_MERGE:
+            j = new SortMergeJoin(p,plan1,plan2,memory);
+            break;
+        default:
+            j = new Join(p,plan1,plan2,memory);
+            break;
+        }
         
         return j;
 
@@ -85,10 +115,114 @@ public class JoinOptimizer {
         	// You do not need to implement proper support for these for Lab 4.
         	return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT:  You may need to use the variable "j" if you implemented a join
-            //        algorithm that's more complicated than a basic nested-loops join.
-            return -1.0;
+            return estimateJoinCost(j, chooseJoinAlgorithm(j, card1, card2, cost1, cost2),
+                                    card1, card2, cost1, cost2);
+        }
+    }
+
+    /**
+     * Choose the cheapest join operator that can compute a join; ties go
+     * to the operator listed first in {@link JoinAlgorithm}.
+     *
+     * @see #estimateJoinCost(LogicalJoinNode, int, int, double, double)
+     */
+    public JoinAlgorithm chooseJoinAlgorithm(LogicalJoinNode j, int card1, int card2, double cost1, double cost2) {
+        JoinAlgorithm best = JoinAlgorithm.NESTED_LOOP;
+        double bestCost = Double.MAX_VALUE;
+        for (JoinAlgorithm a : JoinAlgorithm.values()) {
+            double cost = estimateJoinCost(j, a, card1, card2, cost1, cost2);
+            if (cost < bestCost) {
+                best = a;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimate the cost of a join computed by the specified operator, or
+     * Double.MAX_VALUE if the operator cannot compute it.
+     * <ul>
+     * <li> A block nested-loop join scans the right child once per block
+     *      of left tuples that fits in memory, and applies the predicate
+     *      to every pair of tuples.
+     * <li> A hash join scans each child once, and hashes and probes each
+     *      tuple once; if the smaller child does not fit in memory, both
+     *      children are partitioned to disk and read back once.
+     * <li> A sort-merge join scans each child once and sorts it, which
+     *      takes card log card comparisons, and two more passes over the
+     *      data for each merge pass of a sort that does not fit in memory.
+     *      An equality merge then looks at each tuple once; a range merge
+     *      reads the matching right tuples of each left tuple, half of
+     *      them on average.
+     * </ul>
+     *
+     * @see #estimateJoinCost(LogicalJoinNode, int, int, double, double)
+     */
+    public double estimateJoinCost(LogicalJoinNode j, JoinAlgorithm algorithm,
+                                   int card1, int card2, double cost1, double cost2) {
+        switch (algorithm) {
+        case HASH:
+            if (j.p != Predicate.Op.EQUALS) {
+                return Double.MAX_VALUE;
+            }
+            double hash = cost1 + cost2 + card1 + card2;
+            double smaller = Math.min((double) card1 * tupleSize(j.t1), (double) card2 * tupleSize(j.t2));
+            if (smaller > operatorMemory()) {
+                // grace hash join: write the partitions and read them back
+                hash += 2 * (cost1 + cost2);
+            }
+            return hash;
+        case SORT_MERGE:
+            if (!SortMergeJoin.isSupported(j.p)) {
+                return Double.MAX_VALUE;
+            }
+            double merge = j.p == Predicate.Op.EQUALS
+                ? card1 + card2
+                : card1 + (double) card1 * card2 / 2;
+            return cost1 + cost2
+                + estimateSortCost(j.t1, card1, cost1)
+                + estimateSortCost(j.t2, card2, cost2)
+                + merge;
+        default:
+            double blocks = Math.ceil((double) card1 * tupleSize(j.t1) / operatorMemory());
+            return cost1 + Math.max(1, blocks) * cost2 + (double) card1 * card2;
+        }
+    }
+
+    /** @return the memory budget of each join of the plan */
+    private long operatorMemory() {
+        return p == null ? LogicalPlan.DEFAULT_MEMORY_BUDGET : p.getOperatorMemory();
+    }
+
+    /** Estimate the cost of sorting a child of a join with {@link ExternalSort}. */
+    private double estimateSortCost(String table, int card, double scanCost) {
+        if (card <= 1) {
+            return 0;
+        }
+        double cost = card * (Math.log(card) / Math.log(2));
+        double bytes = (double) card * tupleSize(table);
+        long memory = operatorMemory();
+        if (bytes > memory) {
+            // write the runs and read them back, once per merge pass
+            double runs = Math.ceil(bytes / memory);
+            double fanIn = memory / TupleSpillFile.BUFFER_SIZE;
+            double passes = Math.max(1, Math.ceil(Math.log(runs) / Math.log(fanIn)));
+            cost += 2 * scanCost * passes;
+        }
+        return cost;
+    }
+
+    /** @return the size of the tuples of a table in the plan, or of an
+        integer field without a plan or if the table is not in the catalog */
+    private int tupleSize(String table) {
+        if (p == null) {
+            return Type.INT_TYPE.getLen();
+        }
+        try {
+            return Database.getCatalog().getTupleDesc(p.getTableId(table)).getSize();
+        } catch (NoSuchElementException e) {
+            return Type.INT_TYPE.getLen();
         }
     }
 
@@ -26,6 +26,21 @@ public class JoinPredicate {
         this.operation = op;
     }
 
+    /** @return the field index into the first tuple */
+    public int getField1() {
+        return this.field1;
+    }
+
+    /** @return the field index into the second tuple */
+    public int getField2() {
+        return this.field2;
+    }
+
+    /** @return the operation the predicate applies */
+    public Predicate.Op getOperator() {
+        return this.operation;
+    }
+
     /**
      * Apply the predicate to the two specified tuples.
      * The comparison can be made through Field's compare method.
@@ -0,0 +1,69 @@
+package simpledb;
+import java.util.*;
+
+/**
+ * Limit is an operator that returns the first tuples of its child, and
+ * stops reading the child once it has returned them.
+ *
+ * @see TopN
+ */
+public class Limit extends AbstractDbIterator {
+
+    private final DbIterator child;
+    private final int limit;
+    private int returned = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param limit the number of tuples to return.
+     * @param child the child operator.
+     */
+    public Limit(int limit, DbIterator child) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("The limit must not be negative.");
+        }
+        this.limit = limit;
+        this.child = child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.child.getTupleDesc();
+    }
+
+    /** @return the number of tuples this returns at most. */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public void open()
+        throws DbException, NoSuchElementException, TransactionAbortedException {
+        this.child.open();
+        this.returned = 0;
+    }
+
+    public void close() {
+        super.close();
+        this.child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.child.rewind();
+        this.returned = 0;
+    }
+
+    /**
+     * AbstractDbIterator.readNext implementation.
+     *
+     * @return The next tuple of the child, or null if the limit is reached
+     *   or there are no more tuples
+     */
+    protected Tuple readNext()
+        throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (this.returned >= this.limit || !this.child.hasNext()) {
+            return null;
+        }
+        this.returned++;
+        return this.child.next();
+    }
+}
@@ -0,0 +1,448 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * LockManager grants shared and exclusive page locks to transactions for
+ * strict two-phase locking: locks are only released when their
+ * transaction completes.  A transaction that holds the only shared lock on
+ * a page may upgrade it to an exclusive lock.
+ * <p>
+ * Tables are locked too, in one of the modes of {@link Mode}.  Before
+ * locking a page, a transaction takes an intention lock on its table (IS
+ * for a shared page lock, IX for an exclusive one), so that table locks
+ * and page locks conflict as they should.  A transaction whose table lock
+ * covers a page request needs no page lock at all.
+ * <p>
+ * Once a transaction holds more page locks on a table than the escalation
+ * threshold (see {@link #setEscalationThreshold}), its page locks are
+ * replaced by one table lock: S if it only read those pages, X otherwise.
+ * Escalation is only attempted when the table lock can be granted at
+ * once; otherwise the transaction keeps its page locks, and tries again
+ * with its next page lock.  Large scans thus end up with a single lock,
+ * while transactions that touch a few pages keep page-level concurrency.
+ * <p>
+ * A transaction that would wait for a lock held by a transaction that
+ * (transitively) waits for it would deadlock; instead of waiting, it is
+ * aborted with a {@link TransactionAbortedException}.
+ *
+ * @see BufferPool#setLocking
+ */
+public class LockManager {
+
+    /** The default number of page locks on one table that a transaction
+        may hold before they are escalated to a table lock. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 256;
+
+    /** Table lock modes. */
+    public enum Mode {
+        /** intention to lock pages of the table shared */
+        IS,
+        /** intention to lock pages of the table exclusively */
+        IX,
+        /** the whole table, shared */
+        S,
+        /** the whole table, exclusively */
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      X
+            /* IS */ {true,  true,  true,  false},
+            /* IX */ {true,  true,  false, false},
+            /* S  */ {true,  false, true,  false},
+            /* X  */ {false, false, false, false},
+        };
+
+        public boolean isCompatible(Mode other) {
+            return COMPATIBLE[this.ordinal()][other.ordinal()];
+        }
+
+        /** @return the weakest mode that grants both modes; S and IX
+            combine into X, as there is no SIX mode */
+        public Mode join(Mode other) {
+            if (this == other || other == null) {
+                return this;
+            }
+            if (this == X || other == X) {
+                return X;
+            }
+            if ((this == S && other == IX) || (this == IX && other == S)) {
+                return X;
+            }
+            if (this == IS) {
+                return other;
+            }
+            if (other == IS) {
+                return this;
+            }
+            return X;
+        }
+
+        /** @return true if holding this mode grants the other one */
+        public boolean covers(Mode other) {
+            return this.join(other) == this;
+        }
+    }
+
+    private static class PageLock {
+        private final HashSet<TransactionId> shared = new HashSet<TransactionId>();
+        private TransactionId exclusive = null;
+
+        public boolean isFree() {
+            return this.exclusive == null && this.shared.isEmpty();
+        }
+    }
+
+    private final HashMap<PageId, PageLock> pageLocks = new HashMap<PageId, PageLock>();
+    private final HashMap<Integer, HashMap<TransactionId, Mode>> tableLocks =
+        new HashMap<Integer, HashMap<TransactionId, Mode>>();
+    private final HashMap<TransactionId, HashSet<PageId>> heldPages = new HashMap<TransactionId, HashSet<PageId>>();
+    private final HashMap<TransactionId, HashSet<Integer>> heldTables = new HashMap<TransactionId, HashSet<Integer>>();
+    // number of page locks each transaction holds on each table
+    private final HashMap<TransactionId, HashMap<Integer, Integer>> pageCounts =
+        new HashMap<TransactionId, HashMap<Integer, Integer>>();
+    // blocked transactions and the transactions they wait for
+    private final HashMap<TransactionId, Set<TransactionId>> waitsFor = new HashMap<TransactionId, Set<TransactionId>>();
+
+    private int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    private long deadlocks = 0;
+    private long escalations = 0;
+
+    /**
+     * Sets the number of page locks on one table that a transaction may
+     * hold before they are escalated to a table lock.
+     */
+    public synchronized void setEscalationThreshold(int threshold) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("The escalation threshold must be positive.");
+        }
+        this.escalationThreshold = threshold;
+    }
+
+    public synchronized int getEscalationThreshold() {
+        return this.escalationThreshold;
+    }
+
+    /**
+     * Acquires a lock on a page, waiting until no other transaction holds
+     * a conflicting lock on the page or its table.
+     *
+     * @param tid the transaction requesting the lock
+     * @param pid the page to lock
+     * @param exclusive whether to lock the page exclusively
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    public synchronized void acquire(TransactionId tid, PageId pid, boolean exclusive)
+        throws TransactionAbortedException {
+        int tableId = pid.getTableId();
+        Mode tableMode = this.getTableLock(tid, tableId);
+        if (tableMode != null && tableMode.covers(exclusive ? Mode.X : Mode.S)) {
+            return;
+        }
+        this.lockTable(tid, tableId, exclusive ? Mode.IX : Mode.IS);
+
+        PageLock lock = this.pageLocks.computeIfAbsent(pid, k -> new PageLock());
+        while (true) {
+            Set<TransactionId> blockers = this.pageBlockers(lock, tid, exclusive);
+            if (blockers.isEmpty()) {
+                break;
+            }
+            this.await(tid, blockers);
+            // the lock may have been dropped from the table while free
+            lock = this.pageLocks.computeIfAbsent(pid, k -> new PageLock());
+        }
+
+        this.grantPage(tid, pid, lock, exclusive);
+    }
+
+    /**
+     * Acquires a lock on a page if it can be granted at once, without
+     * waiting.  Nothing is locked if it cannot.
+     *
+     * @param tid the transaction requesting the lock
+     * @param pid the page to lock
+     * @param exclusive whether to lock the page exclusively
+     * @return true if the transaction now holds the lock
+     */
+    public synchronized boolean tryAcquire(TransactionId tid, PageId pid, boolean exclusive) {
+        int tableId = pid.getTableId();
+        Mode tableMode = this.getTableLock(tid, tableId);
+        if (tableMode != null && tableMode.covers(exclusive ? Mode.X : Mode.S)) {
+            return true;
+        }
+        Mode wanted = (exclusive ? Mode.IX : Mode.IS).join(tableMode);
+        PageLock lock = this.pageLocks.get(pid);
+        if (!this.tableBlockers(tableId, tid, wanted).isEmpty()
+            || (lock != null && !this.pageBlockers(lock, tid, exclusive).isEmpty())) {
+            return false;
+        }
+
+        this.tableLocks.computeIfAbsent(tableId, k -> new HashMap<TransactionId, Mode>()).put(tid, wanted);
+        this.heldTables.computeIfAbsent(tid, k -> new HashSet<Integer>()).add(tableId);
+        this.grantPage(tid, pid, this.pageLocks.computeIfAbsent(pid, k -> new PageLock()), exclusive);
+        return true;
+    }
+
+    /**
+     * Grants a page lock no other transaction is in the way of, and
+     * escalates the transaction's page locks on the table if there are
+     * too many.
+     */
+    private void grantPage(TransactionId tid, PageId pid, PageLock lock, boolean exclusive) {
+        if (exclusive) {
+            lock.shared.remove(tid);
+            lock.exclusive = tid;
+        } else if (lock.exclusive == null || !lock.exclusive.equals(tid)) {
+            lock.shared.add(tid);
+        }
+        if (this.heldPages.computeIfAbsent(tid, k -> new HashSet<PageId>()).add(pid)) {
+            int count = this.pageCounts.computeIfAbsent(tid, k -> new HashMap<Integer, Integer>())
+                .merge(pid.getTableId(), 1, Integer::sum);
+            if (count > this.escalationThreshold) {
+                this.escalate(tid, pid.getTableId());
+            }
+        }
+    }
+
+    /**
+     * Acquires a table lock, waiting until no other transaction holds a
+     * conflicting one.  A transaction that already holds a lock on the
+     * table gets the join of both modes.
+     *
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    public synchronized void lockTable(TransactionId tid, int tableId, Mode mode)
+        throws TransactionAbortedException {
+        Mode wanted = mode.join(this.getTableLock(tid, tableId));
+        while (true) {
+            Set<TransactionId> blockers = this.tableBlockers(tableId, tid, wanted);
+            if (blockers.isEmpty()) {
+                break;
+            }
+            this.await(tid, blockers);
+        }
+        this.tableLocks.computeIfAbsent(tableId, k -> new HashMap<TransactionId, Mode>()).put(tid, wanted);
+        this.heldTables.computeIfAbsent(tid, k -> new HashSet<Integer>()).add(tableId);
+    }
+
+    /**
+     * Waits to be notified of released locks, unless one of the blockers
+     * waits, transitively, for tid.
+     */
+    private void await(TransactionId tid, Set<TransactionId> blockers) throws TransactionAbortedException {
+        this.waitsFor.put(tid, blockers);
+        try {
+            if (this.waitsFor(blockers, tid, new HashSet<TransactionId>())) {
+                this.deadlocks++;
+                throw new TransactionAbortedException();
+            }
+            this.wait();
+        } catch (InterruptedException e) {
+            throw new TransactionAbortedException();
+        } finally {
+            this.waitsFor.remove(tid);
+        }
+    }
+
+    /**
+     * Replaces a transaction's page locks on a table with a table lock, if
+     * no other transaction is in the way.
+     */
+    private void escalate(TransactionId tid, int tableId) {
+        Mode target = Mode.S;
+        ArrayList<PageId> pages = new ArrayList<PageId>();
+        for (PageId pid : this.heldPages.get(tid)) {
+            if (pid.getTableId() == tableId) {
+                pages.add(pid);
+                PageLock lock = this.pageLocks.get(pid);
+                if (lock.exclusive != null && lock.exclusive.equals(tid)) {
+                    target = Mode.X;
+                }
+            }
+        }
+        Mode wanted = target.join(this.getTableLock(tid, tableId));
+        if (!this.tableBlockers(tableId, tid, wanted).isEmpty()) {
+            return;
+        }
+
+        this.tableLocks.get(tableId).put(tid, wanted);
+        for (PageId pid : pages) {
+            this.releasePageLock(tid, pid);
+        }
+        this.escalations++;
+        this.notifyAll();
+    }
+
+    private Set<TransactionId> pageBlockers(PageLock lock, TransactionId tid, boolean exclusive) {
+        Set<TransactionId> blockers = new HashSet<TransactionId>();
+        if (lock.exclusive != null && !lock.exclusive.equals(tid)) {
+            blockers.add(lock.exclusive);
+        }
+        if (exclusive) {
+            for (TransactionId holder : lock.shared) {
+                if (!holder.equals(tid)) {
+                    blockers.add(holder);
+                }
+            }
+        }
+        return blockers;
+    }
+
+    private Set<TransactionId> tableBlockers(int tableId, TransactionId tid, Mode mode) {
+        Set<TransactionId> blockers = new HashSet<TransactionId>();
+        HashMap<TransactionId, Mode> holders = this.tableLocks.get(tableId);
+        if (holders != null) {
+            for (Map.Entry<TransactionId, Mode> e : holders.entrySet()) {
+                if (!e.getKey().equals(tid) && !e.getValue().isCompatible(mode)) {
+                    blockers.add(e.getKey());
+                }
+            }
+        }
+        return blockers;
+    }
+
+    /** @return true if one of the waiters waits, transitively, for tid */
+    private boolean waitsFor(Set<TransactionId> waiters, TransactionId tid, Set<TransactionId> visited) {
+        for (TransactionId waiter : waiters) {
+            if (waiter.equals(tid)) {
+                return true;
+            }
+            if (visited.add(waiter)) {
+                Set<TransactionId> next = this.waitsFor.get(waiter);
+                if (next != null && this.waitsFor(next, tid, visited)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the transaction's lock on a table, or null if it holds none
+     */
+    public synchronized Mode getTableLock(TransactionId tid, int tableId) {
+        HashMap<TransactionId, Mode> holders = this.tableLocks.get(tableId);
+        return holders == null ? null : holders.get(tid);
+    }
+
+    /**
+     * @return true if the transaction holds a lock on the page, or a
+     *   table lock that covers it
+     */
+    public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
+        HashSet<PageId> pages = this.heldPages.get(tid);
+        if (pages != null && pages.contains(pid)) {
+            return true;
+        }
+        Mode tableMode = this.getTableLock(tid, pid.getTableId());
+        return tableMode == Mode.S || tableMode == Mode.X;
+    }
+
+    /**
+     * @return true if a transaction other than tid holds a lock on the
+     *   page, or on its table, that would keep tid from writing the page
+     */
+    public synchronized boolean isLockedByOthers(TransactionId tid, PageId pid) {
+        if (!this.tableBlockers(pid.getTableId(), tid, Mode.IX).isEmpty()) {
+            return true;
+        }
+        PageLock lock = this.pageLocks.get(pid);
+        return lock != null && !this.pageBlockers(lock, tid, true).isEmpty();
+    }
+
+    /**
+     * Releases a transaction's lock on a page; its table locks are kept.
+     */
+    public synchronized void release(TransactionId tid, PageId pid) {
+        HashSet<PageId> pages = this.heldPages.get(tid);
+        if (pages != null && pages.contains(pid)) {
+            this.releasePageLock(tid, pid);
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Releases all locks of a transaction.
+     */
+    public synchronized void releaseAll(TransactionId tid) {
+        this.pageCounts.remove(tid);
+        HashSet<PageId> pages = this.heldPages.remove(tid);
+        if (pages != null) {
+            for (PageId pid : pages) {
+                this.unlockPage(tid, pid);
+            }
+        }
+        HashSet<Integer> tables = this.heldTables.remove(tid);
+        if (tables != null) {
+            for (int tableId : tables) {
+                HashMap<TransactionId, Mode> holders = this.tableLocks.get(tableId);
+                holders.remove(tid);
+                if (holders.isEmpty()) {
+                    this.tableLocks.remove(tableId);
+                }
+            }
+        }
+        this.notifyAll();
+    }
+
+    private void releasePageLock(TransactionId tid, PageId pid) {
+        HashSet<PageId> pages = this.heldPages.get(tid);
+        pages.remove(pid);
+        if (pages.isEmpty()) {
+            this.heldPages.remove(tid);
+        }
+        HashMap<Integer, Integer> counts = this.pageCounts.get(tid);
+        if (counts.merge(pid.getTableId(), -1, Integer::sum) == 0) {
+            counts.remove(pid.getTableId());
+        }
+        this.unlockPage(tid, pid);
+    }
+
+    private void unlockPage(TransactionId tid, PageId pid) {
+        PageLock lock = this.pageLocks.get(pid);
+        if (lock == null) {
+            return;
+        }
+        lock.shared.remove(tid);
+        if (lock.exclusive != null && lock.exclusive.equals(tid)) {
+            lock.exclusive = null;
+        }
+        if (lock.isFree()) {
+            this.pageLocks.remove(pid);
+        }
+    }
+
+    /** @return the number of page locks currently held. */
+    public synchronized int getNumLocks() {
+        int n = 0;
+        for (HashSet<PageId> pages : this.heldPages.values()) {
+            n += pages.size();
+        }
+        return n;
+    }
+
+    /** @return the number of table locks currently held, intention locks
+        included. */
+    public synchronized int getNumTableLocks() {
+        int n = 0;
+        for (HashMap<TransactionId, Mode> holders : this.tableLocks.values()) {
+            n += holders.size();
+        }
+        return n;
+    }
+
+    /** @return the number of lock requests aborted to break deadlocks. */
+    public synchronized long getDeadlocks() {
+        return this.deadlocks;
+    }
+
+    /** @return the number of times page locks were escalated to a table
+        lock. */
+    public synchronized long getEscalations() {
+        return this.escalations;
+    }
+}
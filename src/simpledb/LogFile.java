@@ -3,6 +3,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.lang.reflect.*;
 
 /**
@@ -39,11 +40,14 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is stored in fixed-size segment files (see LogSegments),
+which together hold the log records.  Log records are variable length,
+and are addressed by their offset from the start of the first segment
+ever written; offsets do not change when old segments are deleted.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> A separate control file, named after the log with a <tt>.ctl</tt>
+suffix, holds a long integer: the offset of the last written
+checkpoint, or -1 if there are no checkpoints
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
@@ -51,21 +55,33 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, SLOT_UPDATE,
+BEGIN, and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  An UPDATE record is
+written for the first change to a page after a checkpoint.
+
+<li>SLOT_UPDATE records are written for later changes to a HeapPage, and
+carry only the slots that changed.  They consist of the page id (see
+writePageId), an integer slot size, an integer count of changed slots,
+and for each changed slot its integer number followed by the before and
+after state of the slot: a boolean header bit and the slot's bytes.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction.  This is followed by the dirty page table:
+an integer count of pages whose latest writes may not have reached the
+disk yet, and for each of them its page id (see writePageId) and the
+long integer offset of its oldest log record that may not be on disk
+(its recLSN).  Checkpoints are fuzzy: they do not write any pages, and
+recovery redoes from the smallest recLSN.
 
 </ul>
 
@@ -74,7 +90,9 @@ for each active transaction.
 public class LogFile {
 
     File logFile;
-    RandomAccessFile raf;
+    File controlFile;
+    long segmentSize;
+    LogSegments raf;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,7 +100,11 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int SLOT_UPDATE_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    // the background flusher writes the log buffer out at least this often
+    static final long FLUSH_INTERVAL_MILLIS = 5;
 
     static int INT_SIZE = 4;
     static int LONG_SIZE = 8;
@@ -93,6 +115,51 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // Dirty page table: pages written to their DbFiles since the files
+    // were last synced, mapped to {recLSN, lastLSN}, the offsets of their
+    // oldest and newest log records that may not be on disk yet
+    HashMap<PageId, long[]> unsyncedPages = new HashMap<PageId, long[]>();
+
+    // background checkpoints, see startCheckpointer()
+    Thread checkpointer = null;
+
+    // pages with a full image in the log since the last checkpoint; later
+    // changes to them are logged as SLOT_UPDATE records
+    HashSet<PageId> imagedSinceCheckpoint = new HashSet<PageId>();
+
+    // number of threads that install page images during recovery
+    int recoveryThreads = Runtime.getRuntime().availableProcessors();
+
+    // Group commit: a committing transaction becomes the leader if no force
+    // is in progress, waits up to groupCommitWindowMicros for other active
+    // transactions to append their COMMIT records (or until
+    // groupCommitBytes are pending), and forces once for all of them.
+    // Log offsets never change (see LogSegments), so a commit waits for
+    // the offset just past its COMMIT record to become durable.
+    long groupCommitWindowMicros = 1000;
+    long groupCommitBytes = 64 * 1024;
+    long durableOffset = 0;    // log bytes before this offset are on disk
+    long forcedOffset = 0;     // log offset covered by the last force
+    boolean forcing = false;   // a group commit leader is forcing the log
+    long commitCount = 0;
+    long commitForces = 0;
+    long forces = 0;           // all forces of the log, for commits or not
+
+    // Asynchronous commits (see logCommit(TransactionId, boolean)) return
+    // before the log force; the async committer thread forces the log at
+    // most asyncCommitDelayMillis after them, and then writes their pages
+    long asyncCommitDelayMillis = 10;
+    long asyncCommitOffset = 0;  // end of the last asynchronous COMMIT
+    long asyncWrittenOffset = 0; // asynchronous commits with pages written
+    long asyncCommitCount = 0;
+    Thread asyncCommitter = null;
+
+    // statistics of the last call to recover()
+    long recoveryRecords = 0;
+    long recoveryBytes = 0;
+    int recoveryPages = 0;
+    long recoveryNanos = 0;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -105,8 +172,21 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        @param f The log file's name; segment and control file names are
+        derived from it
+        @param segmentSize The size of the log's segment files in bytes
+        @see #LogFile(File)
+    */
+    public LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        this.controlFile = new File(f.getPath() + ".ctl");
+        this.segmentSize = segmentSize;
+        raf = new LogSegments(f, segmentSize, false);
+        raf.startFlusher(FLUSH_INTERVAL_MILLIS);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,17 +207,44 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
+            raf.reset();
+            writeCheckpointOffset(NO_CHECKPOINT_ID);
             currentOffset = raf.getFilePointer();
+            imagedSinceCheckpoint.clear();
         }
     }
 
     public int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return the offset of the last checkpoint record, or
+        NO_CHECKPOINT_ID if there is none */
+    synchronized long readCheckpointOffset() throws IOException {
+        if (!controlFile.exists()) {
+            return NO_CHECKPOINT_ID;
+        }
+        DataInputStream dis = new DataInputStream(new FileInputStream(controlFile));
+        try {
+            return dis.readLong();
+        } catch (EOFException e) {
+            return NO_CHECKPOINT_ID;
+        } finally {
+            dis.close();
+        }
+    }
+
+    /** Durably record the offset of the last checkpoint record in the
+        control file. */
+    private void writeCheckpointOffset(long offset) throws IOException {
+        RandomAccessFile control = new RandomAccessFile(controlFile, "rw");
+        try {
+            control.writeLong(offset);
+            control.getChannel().force(true);
+        } finally {
+            control.close();
+        }
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -169,25 +276,235 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force is shared with the other
+        transactions that commit at about the same time (group commit,
+        see {@link #setGroupCommit}); this method returns once the
+        commit record is durable.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        logCommit(tid, true);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Write a commit record for the specified tid.  A synchronous
+        commit returns once the record is durable, like
+        {@link #logCommit(TransactionId)}.  An asynchronous commit returns
+        right after appending it, and the async committer thread forces
+        the log within the delay set by {@link #setAsyncCommitDelay}.
+
+        @param tid The committing transaction.
+        @param sync whether to wait for the commit record to be durable
+    */
+    public void logCommit(TransactionId tid, boolean sync) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            raf.writeInt(COMMIT_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            tidToFirstLogRecord.remove(tid.getId());
+            lsn = currentOffset;
+            commitCount++;
+            if (!sync) {
+                asyncCommitCount++;
+                asyncCommitOffset = lsn;
+                startAsyncCommitter();
+            }
+            // a waiting leader may have enough bytes now, and the async
+            // committer has work
+            notifyAll();
+        }
+        if (sync) {
+            awaitDurable(lsn);
+        }
+    }
+
+    /** Start the thread that makes asynchronous commits durable, unless
+        it is running already. */
+    private synchronized void startAsyncCommitter() {
+        if (asyncCommitter != null) {
+            return;
+        }
+        asyncCommitter = new Thread("LogFile async committer") {
+            public void run() {
+                while (!isInterrupted()) {
+                    try {
+                        long target;
+                        long delay;
+                        synchronized (LogFile.this) {
+                            while (asyncCommitOffset <= asyncWrittenOffset) {
+                                LogFile.this.wait();
+                            }
+                            target = asyncCommitOffset;
+                            delay = asyncCommitDelayMillis;
+                        }
+                        // let more commits join the force
+                        Thread.sleep(delay);
+                        awaitDurable(target);
+                        Database.getBufferPool().writeAsyncPages(target);
+                        synchronized (LogFile.this) {
+                            asyncWrittenOffset = Math.max(asyncWrittenOffset, target);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (InterruptedIOException e) {
+                        return;
+                    } catch (IOException e) {
+                        Debug.log("ASYNC COMMIT FORCE FAILED: " + e.getMessage());
+                    }
+                }
+            }
+        };
+        asyncCommitter.setDaemon(true);
+        asyncCommitter.start();
+    }
+
+    /** Stop the async committer thread; the log force of a checkpoint
+        or of the next commit makes the remaining asynchronous commits
+        durable. */
+    private void stopAsyncCommitter() {
+        Thread t;
+        synchronized (this) {
+            t = asyncCommitter;
+            asyncCommitter = null;
+        }
+        if (t == null) {
+            return;
+        }
+        t.interrupt();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Set how long the async committer waits after an asynchronous
+        commit before forcing the log; commits in that window share the
+        force.  This bounds how much committed work a crash can lose.
+    */
+    public synchronized void setAsyncCommitDelay(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("The async commit delay cannot be negative.");
+        }
+        asyncCommitDelayMillis = millis;
+    }
+
+    /** @return the number of COMMIT records written asynchronously */
+    public synchronized long getAsyncCommitCount() {
+        return asyncCommitCount;
+    }
+
+    /** @return true if every commit so far is durable */
+    public synchronized boolean isDurable() {
+        return asyncCommitOffset <= durableOffset;
+    }
+
+    /** @return the log offset just past the last appended record; once
+        it is durable (see {@link #awaitDurable}), so is every record
+        appended so far */
+    public synchronized long getCurrentLsn() {
+        return currentOffset;
+    }
+
+    /** Wait until the log up to the specified offset is on disk, forcing
+        the log as the group commit leader if no other transaction is
+        doing so.  Appended records first go to an in-memory buffer, which
+        the log's flusher thread writes out in the background, so a force
+        usually only has a little left to write.  Callers should not hold
+        the buffer pool's monitor, as a leader may wait out the group
+        commit window.
+
+        @param lsn the log offset just past the record that must be
+        durable
+    */
+    public void awaitDurable(long lsn) throws IOException {
+        LogSegments segments;
+        long target;
+        synchronized (this) {
+            while (durableOffset < lsn && forcing) {
+                waitQuietly(0);
+            }
+            if (durableOffset >= lsn) {
+                return;
+            }
+
+            // become the leader: give other active transactions a chance
+            // to append their COMMIT records before forcing
+            forcing = true;
+            long deadline = System.nanoTime() + groupCommitWindowMicros * 1000;
+            while (!tidToFirstLogRecord.isEmpty()
+                   && currentOffset - forcedOffset < groupCommitBytes) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                waitQuietly(Math.max(1, remaining / 1000000));
+            }
+            segments = raf;
+            target = currentOffset;
+            forcedOffset = currentOffset;
+        }
+
+        // force outside the monitor, so that others can keep appending
+        try {
+            segments.force();
+        } finally {
+            synchronized (this) {
+                forcing = false;
+                commitForces++;
+                forces++;
+                durableOffset = Math.max(durableOffset, target);
+                notifyAll();
+            }
+        }
+    }
+
+    private void waitQuietly(long millis) throws IOException {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a group commit.");
+        }
+    }
+
+    /** Configure group commit: a commit waits up to windowMicros
+        microseconds for other transactions to commit, or until maxBytes
+        bytes of log are pending, so that they all share one force.
+        A window of 0 forces every commit on its own.
+    */
+    public synchronized void setGroupCommit(long windowMicros, long maxBytes) {
+        if (windowMicros < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Group commit settings cannot be negative.");
+        }
+        groupCommitWindowMicros = windowMicros;
+        groupCommitBytes = maxBytes;
+    }
+
+    /** @return the number of COMMIT records written */
+    public synchronized long getCommitCount() {
+        return commitCount;
+    }
+
+    /** @return the number of log forces done for group commits */
+    public synchronized long getCommitForces() {
+        return commitForces;
+    }
+
+    /** @return the number of log forces, for group commits or otherwise */
+    public synchronized long getForces() {
+        return forces;
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  If the page
+        already has a full image in the log since the last checkpoint,
+        only its changed slots are logged, in a SLOT_UPDATE record.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
@@ -199,6 +516,15 @@ public class LogFile {
         throws IOException  {
         Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
+        PageId pid = after.getId();
+        // the caller writes the page to its DbFile right after this
+        markUnsynced(pid, currentOffset);
+        if (before instanceof HeapPage && after instanceof HeapPage
+            && imagedSinceCheckpoint.contains(pid)) {
+            logSlotUpdate(tid, (HeapPage) before, (HeapPage) after);
+            return;
+        }
+
         /* update record conists of
 
            record type
@@ -214,11 +540,87 @@ public class LogFile {
         writePageData(raf,after);
         raf.writeLong(currentOffset);
         currentOffset = raf.getFilePointer();
+        imagedSinceCheckpoint.add(pid);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    /** Add a page to the dirty page table, or update its newest
+        record. */
+    private void markUnsynced(PageId pid, long offset) {
+        long[] lsns = unsyncedPages.get(pid);
+        if (lsns == null) {
+            unsyncedPages.put(pid, new long[] {offset, offset});
+        } else {
+            lsns[1] = Math.max(lsns[1], offset);
+        }
+    }
+
+    /** Write a SLOT_UPDATE record holding the slots that differ between
+        the before and after images of a heap page. */
+    private void logSlotUpdate(TransactionId tid, HeapPage before, HeapPage after)
+        throws IOException {
+        List<Integer> slots = new ArrayList<Integer>();
+        List<byte[]> beforeData = new ArrayList<byte[]>();
+        List<byte[]> afterData = new ArrayList<byte[]>();
+        for (int i = 0; i < after.getNumSlots(); i++) {
+            byte[] b = before.getSlotData(i);
+            byte[] a = after.getSlotData(i);
+            if (before.getSlot(i) != after.getSlot(i) || !Arrays.equals(b, a)) {
+                slots.add(i);
+                beforeData.add(b);
+                afterData.add(a);
+            }
+        }
+        int slotSize = Database.getCatalog().getTupleDesc(after.getId().getTableId()).getSize();
+
+        raf.writeInt(SLOT_UPDATE_RECORD);
+        raf.writeLong(tid.getId());
+        writePageId(raf, after.getId());
+        raf.writeInt(slotSize);
+        raf.writeInt(slots.size());
+        for (int i = 0; i < slots.size(); i++) {
+            int slot = slots.get(i);
+            raf.writeInt(slot);
+            raf.writeBoolean(before.getSlot(slot));
+            raf.write(beforeData.get(i));
+            raf.writeBoolean(after.getSlot(slot));
+            raf.write(afterData.get(i));
+        }
+        raf.writeLong(currentOffset);
+        currentOffset = raf.getFilePointer();
+
+        Debug.log("SLOT WRITE OFFSET = " + currentOffset + ", " + slots.size() + " SLOTS");
+    }
+
+    /** Write the id of a page: the id class name and its serialized
+        form. */
+    void writePageId(LogSegments raf, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+        raf.writeUTF(pid.getClass().getName());
+        raf.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            raf.writeInt(pageInfo[i]);
+        }
+    }
+
+    /** Read a page id written by writePageId. */
+    PageId readPageId(LogSegments raf) throws IOException {
+        String idClassName = raf.readUTF();
+        int numIdArgs = raf.readInt();
+        Object idArgs[] = new Object[numIdArgs];
+        for (int i = 0; i < numIdArgs; i++) {
+            idArgs[i] = raf.readInt();
+        }
+        try {
+            return (PageId) Class.forName(idClassName).getDeclaredConstructors()[0].newInstance(idArgs);
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
+
+    void writePageData(LogSegments raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -246,7 +648,30 @@ public class LogFile {
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    /** Skip over page data written by writePageData, without
+        deserializing the page.
+        @return the offset where the page data began
+    */
+    long skipPageData(LogSegments raf) throws IOException {
+        long start = raf.getFilePointer();
+        raf.readUTF();
+        raf.readUTF();
+        int numIdArgs = raf.readInt();
+        skipFully(raf, numIdArgs * INT_SIZE);
+        int pageSize = raf.readInt();
+        skipFully(raf, pageSize);
+        return start;
+    }
+
+    private static void skipFully(LogSegments raf, long n) throws IOException {
+        long target = raf.getFilePointer() + n;
+        if (target > raf.length()) {
+            throw new EOFException();
+        }
+        raf.seek(target);
+    }
+
+    Page readPageData(LogSegments raf) throws IOException {
         PageId pid;
         Page newPage = null;
 
@@ -269,7 +694,7 @@ public class LogFile {
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            raf.readFully(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
@@ -316,141 +741,203 @@ public class LogFile {
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        <p>
+        The checkpoint is fuzzy: it does not flush the BufferPool, and
+        holds the BufferPool only for an instant.  It first syncs the
+        DbFiles written since the last checkpoint, without holding any
+        monitor, which empties most of the dirty page table.  It then
+        writes the active transactions and the remaining dirty page table,
+        and truncates the log.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
+        Map<PageId, long[]> toSync = new HashMap<PageId, long[]>();
+        long syncPoint;
+        // page writes happen under the BufferPool monitor right after
+        // their log record, so every record before syncPoint has had its
+        // page written
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                syncPoint = currentOffset;
+                toSync.putAll(unsyncedPages);
             }
+            // except the pages of asynchronous commits, which are logged
+            // before they are written
+            toSync.keySet().removeAll(Database.getBufferPool().getAsyncPages());
         }
 
-        logTruncate();
-    }
-
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        Set<Integer> tableIds = new HashSet<Integer>();
+        for (PageId pid : toSync.keySet()) {
+            tableIds.add(pid.getTableId());
+        }
+        for (int tableId : tableIds) {
+            DbFile f;
+            try {
+                f = Database.getCatalog().getDbFile(tableId);
+            } catch (NoSuchElementException e) {
+                continue;
+            }
+            if (f instanceof HeapFile) {
+                ((HeapFile) f).force();
+            }
+        }
 
-        long minLogRecord = cpLoc;
+        synchronized (this) {
+            // everything logged before syncPoint is on disk now
+            for (PageId pid : toSync.keySet()) {
+                long[] lsns = unsyncedPages.get(pid);
+                if (lsns == null) {
+                    continue;
+                }
+                if (lsns[1] < syncPoint) {
+                    unsyncedPages.remove(pid);
+                } else {
+                    lsns[0] = Math.max(lsns[0], syncPoint);
+                }
+            }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            long startCpOffset, endCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            startCpOffset = raf.getFilePointer();
+            raf.writeInt(CHECKPOINT_RECORD);
+            raf.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            raf.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                raf.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                raf.writeLong(tidToFirstLogRecord.get(key));
+            }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+            //write the dirty page table
+            raf.writeInt(unsyncedPages.size());
+            for (Map.Entry<PageId, long[]> e : unsyncedPages.entrySet()) {
+                writePageId(raf, e.getKey());
+                raf.writeLong(e.getValue()[0]);
             }
 
-            int numOutstanding = raf.readInt();
+            endCpOffset = raf.getFilePointer();
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            force();
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+            //once the CP is durable, make sure the CP location in the
+            // control file is updated
+            writeCheckpointOffset(startCpOffset);
+            imagedSinceCheckpoint.clear();
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
+        logTruncate();
+    }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+    /** Start a background thread that takes a fuzzy checkpoint every
+        intervalMillis milliseconds, bounding the log that recovery has
+        to scan.  Does nothing if the thread is already running.
+    */
+    public synchronized void startCheckpointer(final long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("The checkpoint interval must be positive.");
+        }
+        if (checkpointer != null) {
+            return;
+        }
+        checkpointer = new Thread("LogFile checkpointer") {
+            public void run() {
+                while (!isInterrupted()) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                        logCheckpoint();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        Debug.log("CHECKPOINT FAILED: " + e.getMessage());
+                    }
+                }
+            }
+        };
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
 
-                Debug.log("NEW START = " + newStart);
+    /** Stop the background checkpoints, waiting for a running checkpoint
+        to finish. */
+    public void stopCheckpointer() {
+        Thread t;
+        synchronized (this) {
+            t = checkpointer;
+            checkpointer = null;
+        }
+        if (t == null) {
+            return;
+        }
+        t.interrupt();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+    /** @return the number of pages in the dirty page table */
+    public synchronized int getNumUnsyncedPages() {
+        return unsyncedPages.size();
+    }
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  Only whole segments before the oldest record that
+        recovery may need are deleted; no record is copied. */
+    public synchronized void logTruncate() throws IOException {
+        // a group commit leader may be forcing a segment we delete
+        while (forcing) {
+            waitQuietly(0);
+        }
+        preAppend();
+        long cpLoc = readCheckpointOffset();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+        long minLogRecord = cpLoc;
+        raf.seek(cpLoc);
+        int cpType = raf.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = raf.readLong();
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
 
-            } catch (EOFException e) {
-                break;
+        int numOutstanding = raf.readInt();
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = raf.readLong();
+            long firstLogRecord = raf.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        int numDirty = raf.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            readPageId(raf);
+            long recLSN = raf.readLong();
+            if (recLSN < minLogRecord) {
+                minLogRecord = recLSN;
+            }
+        }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        // we can delete the segments before minLogRecord
+        int deleted = raf.truncateBefore(minLogRecord);
+        raf.seek(currentOffset);
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        Debug.log("TRUNCATING LOG; DELETED " + deleted + " SEGMENTS, NEW START: " + raf.getStartOffset());
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -466,45 +953,457 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord == null) {
+                    // nothing was logged for this transaction
+                    return;
+                }
+
+                Map<PageId, List<Long>> records = new LinkedHashMap<PageId, List<Long>>();
+                raf.seek(firstRecord);
+                while (raf.getFilePointer() < currentOffset) {
+                    long start = raf.getFilePointer();
+                    int type = raf.readInt();
+                    long recordTid = raf.readLong();
+                    PageId pid = skipRecordBody(raf, type);
+                    raf.readLong();
+                    if (pid != null && recordTid == tid.getId()) {
+                        if (!records.containsKey(pid)) {
+                            records.put(pid, new ArrayList<Long>());
+                        }
+                        records.get(pid).add(start);
+                    }
+                }
+
+                // the page on disk holds the state of the last logged
+                // change, so undoing the changes in reverse order restores
+                // the state from before the transaction
+                for (Map.Entry<PageId, List<Long>> e : records.entrySet()) {
+                    List<Long> offsets = e.getValue();
+                    Page page = null;
+                    for (int i = offsets.size() - 1; i >= 0; i--) {
+                        page = applyRecord(raf, offsets.get(i), true, e.getKey(), page);
+                    }
+                    Database.getCatalog().getDbFile(e.getKey().getTableId()).writePage(page);
+                    Database.getBufferPool().discardPage(e.getKey());
+                    // recovery must see these records to repeat the rollback
+                    markUnsynced(e.getKey(), offsets.get(0));
+                }
+                raf.seek(currentOffset);
             }
         }
     }
 
+    /** Skip the body of a log record whose type and transaction id were
+        just read, up to its trailing start offset.
+        @return the id of the page the record changes, or null if it does
+        not change a page
+        @throws EOFException if the type is not a known record type, e.g.
+        because the record was torn
+    */
+    private PageId skipRecordBody(LogSegments raf, int type) throws IOException {
+        switch (type) {
+        case UPDATE_RECORD:
+            skipPageData(raf);
+            long afterStart = raf.getFilePointer();
+            raf.readUTF();
+            PageId pid = readPageId(raf);
+            raf.seek(afterStart);
+            skipPageData(raf);
+            return pid;
+        case SLOT_UPDATE_RECORD:
+            PageId slotPid = readPageId(raf);
+            int slotSize = raf.readInt();
+            int numSlots = raf.readInt();
+            skipFully(raf, (long) numSlots * (INT_SIZE + 2 * (1 + slotSize)));
+            return slotPid;
+        case CHECKPOINT_RECORD:
+            skipFully(raf, (long) raf.readInt() * 2 * LONG_SIZE);
+            int numDirty = raf.readInt();
+            for (int i = 0; i < numDirty; i++) {
+                readPageId(raf);
+                raf.readLong();
+            }
+            return null;
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            return null;
+        default:
+            throw new EOFException();
+        }
+    }
+
+    /** Apply the UPDATE or SLOT_UPDATE record starting at the specified
+        offset to a page.
+        @param undo whether to install the before state of the record
+        rather than its after state
+        @param pid the page the record changes
+        @param page the current state of the page, or null to read it
+        from its DbFile if needed
+        @return the new state of the page
+    */
+    Page applyRecord(LogSegments in, long offset, boolean undo, PageId pid, Page page)
+        throws IOException {
+        in.seek(offset);
+        int type = in.readInt();
+        in.readLong();
+        if (type == UPDATE_RECORD) {
+            Page before = readPageData(in);
+            return undo ? before : readPageData(in);
+        }
+
+        readPageId(in);
+        if (page == null) {
+            page = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
+        }
+        HeapPage heapPage = (HeapPage) page;
+        int slotSize = in.readInt();
+        int numSlots = in.readInt();
+        byte[] before = new byte[slotSize];
+        byte[] after = new byte[slotSize];
+        for (int i = 0; i < numSlots; i++) {
+            int slot = in.readInt();
+            boolean beforeUsed = in.readBoolean();
+            in.readFully(before);
+            boolean afterUsed = in.readBoolean();
+            in.readFully(after);
+            if (undo) {
+                heapPage.setSlotData(slot, beforeUsed, before);
+            } else {
+                heapPage.setSlotData(slot, afterUsed, after);
+            }
+        }
+        return heapPage;
+    }
+
+    /** Stop using this log without writing anything more to it: the
+        records still in the log buffer are lost, as in a crash.  Used
+        when the database is reset. */
+    void discard() {
+        stopCheckpointer();
+        stopAsyncCommitter();
+        try {
+            synchronized (this) {
+                raf.discard();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
-        extensive recovery.)
+        extensive recovery.)  The buffer pool's working set is saved
+        too, so that the cache can be warmed up on start up.
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
+        stopCheckpointer();
+        stopAsyncCommitter();
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
         }
+
+        try {
+            Database.getBufferPool().saveWorkingSet(Database.getWorkingSetFile());
+        } catch (IOException e) {
+            System.out.println("ERROR SAVING BUFFER POOL WORKING SET -- IGNORING.");
+            e.printStackTrace();
+        }
     }
 
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery follows ARIES in three phases:
+        <ul>
+        <li> Analysis scans the log once, from the last checkpoint (or
+        the first record of a transaction that was active at that
+        checkpoint, or the smallest recLSN of its dirty page table), and
+        finds the transactions that never committed
+        or aborted (the losers).  For every page it builds the list of
+        records to apply; only their offsets are remembered, not the
+        images themselves.
+        <li> Redo repeats history: every page updated since the
+        smallest recLSN gets its last full image, followed by the slot
+        updates logged after it.  Rollbacks are not logged, so the
+        changes of an aborted transaction are undone again at the
+        position of its ABORT record.
+        <li> Undo reverts the changes of the losers, newest first, and an
+        ABORT record is written for each loser.
+        </ul>
+        Pages are split across {@link #setRecoveryThreads} worker
+        threads, each reading the records of its pages from the log on
+        its own.  A torn record at the end of the log is discarded.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                long startTime = System.nanoTime();
+
+                // analysis
+                long cpLoc = readCheckpointOffset();
+                long redoStart = cpLoc == NO_CHECKPOINT_ID ? raf.getStartOffset() : cpLoc;
+                Map<Long, Long> active = new HashMap<Long, Long>();
+                long scanStart = redoStart;
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    raf.seek(cpLoc);
+                    raf.readInt();
+                    raf.readLong();
+                    int numOutstanding = raf.readInt();
+                    for (int i = 0; i < numOutstanding; i++) {
+                        long tid = raf.readLong();
+                        long firstLogRecord = raf.readLong();
+                        active.put(tid, firstLogRecord);
+                        scanStart = Math.min(scanStart, firstLogRecord);
+                    }
+                    // the checkpoint did not write pages, so redo from the
+                    // oldest record that may not be on disk
+                    int numDirty = raf.readInt();
+                    for (int i = 0; i < numDirty; i++) {
+                        readPageId(raf);
+                        redoStart = Math.min(redoStart, raf.readLong());
+                    }
+                    scanStart = Math.min(scanStart, redoStart);
+                }
+
+                // per page, the records to apply; see redoOp and undoOp
+                Map<PageId, List<Long>> pageOps = new HashMap<PageId, List<Long>>();
+                // per transaction and page, the offsets of its records
+                Map<Long, Map<PageId, List<Long>>> tidRecords = new HashMap<Long, Map<PageId, List<Long>>>();
+                long records = 0;
+                long validEnd = scanStart;
+                raf.seek(scanStart);
+                while (true) {
+                    try {
+                        long start = raf.getFilePointer();
+                        int type = raf.readInt();
+                        long tid = raf.readLong();
+                        PageId pid = skipRecordBody(raf, type);
+                        if (raf.readLong() != start) {
+                            throw new EOFException();
+                        }
+
+                        switch (type) {
+                        case UPDATE_RECORD:
+                        case SLOT_UPDATE_RECORD:
+                            if (start >= redoStart) {
+                                // a full image makes earlier records moot
+                                if (type == UPDATE_RECORD || !pageOps.containsKey(pid)) {
+                                    pageOps.put(pid, new ArrayList<Long>());
+                                }
+                                pageOps.get(pid).add(redoOp(start));
+                            }
+                            if (!tidRecords.containsKey(tid)) {
+                                tidRecords.put(tid, new HashMap<PageId, List<Long>>());
+                            }
+                            Map<PageId, List<Long>> byPage = tidRecords.get(tid);
+                            if (!byPage.containsKey(pid)) {
+                                byPage.put(pid, new ArrayList<Long>());
+                            }
+                            byPage.get(pid).add(start);
+                            break;
+                        case BEGIN_RECORD:
+                            active.put(tid, start);
+                            break;
+                        case COMMIT_RECORD:
+                            active.remove(tid);
+                            tidRecords.remove(tid);
+                            break;
+                        case ABORT_RECORD:
+                            active.remove(tid);
+                            addUndoOps(pageOps, tidRecords.remove(tid));
+                            break;
+                        }
+                        validEnd = raf.getFilePointer();
+                        records++;
+                    } catch (EOFException e) {
+                        break;
+                    }
+                }
+
+                // redo and undo, page by page
+                for (Long loser : active.keySet()) {
+                    addUndoOps(pageOps, tidRecords.get(loser));
+                }
+                applyPageOps(pageOps);
+                Set<Integer> tableIds = new HashSet<Integer>();
+                for (PageId pid : pageOps.keySet()) {
+                    Database.getBufferPool().discardPage(pid);
+                    tableIds.add(pid.getTableId());
+                }
+                for (int tableId : tableIds) {
+                    DbFile f = Database.getCatalog().getDbFile(tableId);
+                    if (f instanceof HeapFile) {
+                        ((HeapFile) f).force();
+                    }
+                }
+
+                // drop a torn tail, and finish the losers
+                raf.setLength(validEnd);
+                raf.seek(validEnd);
+                currentOffset = validEnd;
+                tidToFirstLogRecord.clear();
+                for (Long loser : active.keySet()) {
+                    raf.writeInt(ABORT_RECORD);
+                    raf.writeLong(loser);
+                    raf.writeLong(currentOffset);
+                    currentOffset = raf.getFilePointer();
+                }
+                force();
+
+                recoveryRecords = records;
+                recoveryBytes = validEnd - scanStart;
+                recoveryPages = pageOps.size();
+                recoveryNanos = System.nanoTime() - startTime;
+                Debug.log("RECOVERED " + records + " RECORDS (" + recoveryBytes + " BYTES), "
+                          + recoveryPages + " PAGES, " + active.size() + " LOSERS IN "
+                          + (recoveryNanos / 1000000) + " MS ("
+                          + (long) getRecoveryThroughput() + " RECORDS/S)");
             }
          }
     }
 
+    // A page operation is the offset of a record, shifted left by one,
+    // with the low bit set if the record is to be undone.
+    private static long redoOp(long offset) {
+        return offset << 1;
+    }
+
+    private static long undoOp(long offset) {
+        return (offset << 1) | 1;
+    }
+
+    /** Append the operations undoing a transaction's records, newest
+        first, to the operations of each page. */
+    private static void addUndoOps(Map<PageId, List<Long>> pageOps, Map<PageId, List<Long>> records) {
+        if (records == null) {
+            return;
+        }
+        for (Map.Entry<PageId, List<Long>> e : records.entrySet()) {
+            if (!pageOps.containsKey(e.getKey())) {
+                pageOps.put(e.getKey(), new ArrayList<Long>());
+            }
+            List<Long> ops = pageOps.get(e.getKey());
+            List<Long> offsets = e.getValue();
+            for (int i = offsets.size() - 1; i >= 0; i--) {
+                ops.add(undoOp(offsets.get(i)));
+            }
+        }
+    }
+
+    /** Apply the operations of each page and write the pages to their
+        DbFiles, splitting the pages across the recovery threads.
+    */
+    private void applyPageOps(Map<PageId, List<Long>> pageOps) throws IOException {
+        if (pageOps.isEmpty()) {
+            return;
+        }
+
+        int numWorkers = Math.max(1, Math.min(recoveryThreads, pageOps.size()));
+        List<List<Map.Entry<PageId, List<Long>>>> partitions = new ArrayList<List<Map.Entry<PageId, List<Long>>>>();
+        for (int i = 0; i < numWorkers; i++) {
+            partitions.add(new ArrayList<Map.Entry<PageId, List<Long>>>());
+        }
+        for (Map.Entry<PageId, List<Long>> e : pageOps.entrySet()) {
+            partitions.get(Math.floorMod(e.getKey().hashCode(), numWorkers)).add(e);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final List<Map.Entry<PageId, List<Long>>> pages : partitions) {
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        LogSegments in = new LogSegments(logFile, segmentSize, true);
+                        try {
+                            for (Map.Entry<PageId, List<Long>> e : pages) {
+                                Page page = null;
+                                for (long op : e.getValue()) {
+                                    page = applyRecord(in, op >>> 1, (op & 1) == 1, e.getKey(), page);
+                                }
+                                Database.getCatalog().getDbFile(e.getKey().getTableId()).writePage(page);
+                            }
+                        } finally {
+                            in.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Recovery was interrupted.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Recovery failed: " + e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /** Set the number of threads that install page images during
+        recovery. */
+    public synchronized void setRecoveryThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Recovery needs at least one thread.");
+        }
+        recoveryThreads = threads;
+    }
+
+    /** @return the number of log records scanned by the last recovery */
+    public synchronized long getRecoveryRecords() {
+        return recoveryRecords;
+    }
+
+    /** @return the number of log bytes scanned by the last recovery */
+    public synchronized long getRecoveryBytes() {
+        return recoveryBytes;
+    }
+
+    /** @return the number of pages written by the last recovery */
+    public synchronized int getRecoveryPages() {
+        return recoveryPages;
+    }
+
+    /** @return the duration of the last recovery in milliseconds */
+    public synchronized long getRecoveryMillis() {
+        return recoveryNanos / 1000000;
+    }
+
+    /** @return the log records recovered per second by the last
+        recovery, or 0 if there was none */
+    public synchronized double getRecoveryThroughput() {
+        if (recoveryNanos == 0) {
+            return 0;
+        }
+        return recoveryRecords * 1e9 / recoveryNanos;
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        raf.force();
+        forces++;
+        // everything appended so far is durable, commits included
+        forcedOffset = currentOffset;
+        durableOffset = Math.max(durableOffset, currentOffset);
+        notifyAll();
     }
 
 }
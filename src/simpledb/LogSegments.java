@@ -0,0 +1,628 @@
+package simpledb;
+
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * LogSegments stores the log as a sequence of fixed-size segment files,
+ * and presents them as one file addressed by log offsets that never
+ * change: the byte at offset o lives in segment o / segmentSize.  Segment
+ * files are named after the log file, followed by a dot and the
+ * zero-padded segment number (<tt>log.00000000</tt>,
+ * <tt>log.00000001</tt>, ...).
+ * <p>
+ * Truncating the head of the log only deletes whole segments, so records
+ * never move and appending never waits on a copy.  Records may span
+ * segment boundaries.
+ * <p>
+ * Appends are collected in an in-memory buffer instead of going to the
+ * segment files one small write at a time; {@link #flush} writes the
+ * buffer out with one large sequential write per segment.  The buffer is
+ * flushed when it fills up, before reads that need its bytes, by
+ * {@link #force}, and by an optional background flusher (see
+ * {@link #startFlusher}), so that forcing rarely has much left to write.
+ * <p>
+ * LogSegments is not thread-safe, except for {@link #flush} and
+ * {@link #force}, which may run concurrently with appends.
+ *
+ * @see LogFile
+ */
+public class LogSegments implements DataInput, DataOutput {
+
+    private final File base;
+    private final long segmentSize;
+    private final boolean readOnly;
+
+    // open segment files by segment number
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<Long, RandomAccessFile>();
+    // segments written to since the last force
+    private final List<RandomAccessFile> unforced = new ArrayList<RandomAccessFile>();
+
+    /** The default size of the append buffer in bytes. */
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    // The segment files (and the lists above) are guarded by fileLock; the
+    // append buffer is guarded by this object's monitor.  A flush swaps
+    // the buffer for the spare one under both, and then writes it under
+    // fileLock only, so that appends continue during the write.
+    private final Object fileLock = new Object();
+    private byte[] buffer;
+    private byte[] spare;
+    private int buffered;
+    private long bufferStart;           // log offset of buffer[0]
+    private volatile long flushedOffset; // bytes before this are in the files
+    private IOException flushFailure;   // the buffer was lost, see flush()
+    private long flushes = 0;
+    private boolean closed = false;
+    private Thread flusher = null;
+
+    private long startOffset;
+    private long length;
+    private long position;
+    // scratch space to encode primitives in, as DataOutputStream does;
+    // only used by the writer, like position
+    private final byte[] writeBuffer = new byte[8];
+
+    /**
+     * Opens the segments of the specified log, creating none, with an
+     * append buffer of {@link #DEFAULT_BUFFER_SIZE} bytes.
+     *
+     * @param base the log file; segment names are derived from it
+     * @param segmentSize the size of each segment in bytes
+     * @param readOnly whether the segments are only read
+     */
+    public LogSegments(File base, long segmentSize, boolean readOnly) throws IOException {
+        this(base, segmentSize, readOnly, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Opens the segments of the specified log, creating none.
+     *
+     * @param base the log file; segment names are derived from it
+     * @param segmentSize the size of each segment in bytes
+     * @param readOnly whether the segments are only read
+     * @param bufferSize the size of the append buffer in bytes; 0 writes
+     *   every append straight to the segment files
+     */
+    public LogSegments(File base, long segmentSize, boolean readOnly, int bufferSize) throws IOException {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Log segments need a positive size.");
+        }
+        if (bufferSize < 0) {
+            throw new IllegalArgumentException("The log buffer cannot have a negative size.");
+        }
+        this.base = base;
+        this.segmentSize = segmentSize;
+        this.readOnly = readOnly;
+        this.buffer = readOnly || bufferSize == 0 ? null : new byte[bufferSize];
+
+        long first = -1;
+        long last = -1;
+        File dir = base.getAbsoluteFile().getParentFile();
+        String prefix = base.getName() + ".";
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.startsWith(prefix)) {
+                    continue;
+                }
+                long number;
+                try {
+                    number = Long.parseLong(name.substring(prefix.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                first = first < 0 ? number : Math.min(first, number);
+                last = Math.max(last, number);
+            }
+        }
+
+        if (last < 0) {
+            this.startOffset = 0;
+            this.length = 0;
+        } else {
+            this.startOffset = first * segmentSize;
+            this.length = last * segmentSize + this.segmentFile(last).length();
+        }
+        this.position = this.startOffset;
+        this.flushedOffset = this.length;
+    }
+
+    private File segmentFile(long number) {
+        return new File(this.base.getPath() + "." + String.format("%08d", number));
+    }
+
+    private RandomAccessFile segment(long number) throws IOException {
+        RandomAccessFile f = this.segments.get(number);
+        if (f == null) {
+            f = new RandomAccessFile(this.segmentFile(number), this.readOnly ? "r" : "rw");
+            this.segments.put(number, f);
+        }
+        return f;
+    }
+
+    /** @return the offset of the first byte still in the log. */
+    public long getStartOffset() {
+        return this.startOffset;
+    }
+
+    /** @return the offset just past the last byte of the log. */
+    public long length() {
+        return this.length;
+    }
+
+    /** @return the offset of the next read or write. */
+    public long getFilePointer() {
+        return this.position;
+    }
+
+    /** Sets the offset of the next read or write. */
+    public void seek(long pos) throws IOException {
+        if (pos < this.startOffset) {
+            throw new IOException("Log offset " + pos + " was truncated; the log starts at " + this.startOffset + ".");
+        }
+        this.position = pos;
+    }
+
+    /**
+     * Deletes every segment and starts an empty log at offset 0.
+     */
+    public void reset() throws IOException {
+        synchronized (this.fileLock) {
+            this.dropBuffer();
+            this.closeSegments();
+            long first = this.startOffset / this.segmentSize;
+            long last = this.length / this.segmentSize;
+            for (long number = first; number <= last; number++) {
+                this.segmentFile(number).delete();
+            }
+            this.startOffset = 0;
+            this.length = 0;
+            this.position = 0;
+            this.flushedOffset = 0;
+        }
+    }
+
+    /**
+     * Cuts the log off at the specified offset, deleting the segments past
+     * it.
+     */
+    public void setLength(long newLength) throws IOException {
+        if (newLength > this.length || newLength < this.startOffset) {
+            throw new IOException("Cannot cut the log off at offset " + newLength + ".");
+        }
+        this.flush();
+        synchronized (this.fileLock) {
+            long keep = newLength / this.segmentSize;
+            for (long number = this.length / this.segmentSize; number > keep; number--) {
+                RandomAccessFile f = this.segments.remove(number);
+                if (f != null) {
+                    this.unforced.remove(f);
+                    f.close();
+                }
+                this.segmentFile(number).delete();
+            }
+            if (this.segmentFile(keep).exists()) {
+                this.segment(keep).setLength(newLength - keep * this.segmentSize);
+            }
+            this.length = newLength;
+            this.position = Math.min(this.position, newLength);
+            this.flushedOffset = newLength;
+        }
+    }
+
+    /**
+     * Deletes the segments that only hold bytes before the specified
+     * offset.
+     *
+     * @return the number of segments deleted
+     */
+    public int truncateBefore(long offset) throws IOException {
+        // the segments must not be recreated by a later flush
+        this.flush();
+        synchronized (this.fileLock) {
+            long firstKept = Math.min(offset, this.length) / this.segmentSize;
+            int deleted = 0;
+            for (long number = this.startOffset / this.segmentSize; number < firstKept; number++) {
+                RandomAccessFile f = this.segments.remove(number);
+                if (f != null) {
+                    this.unforced.remove(f);
+                    f.close();
+                }
+                this.segmentFile(number).delete();
+                deleted++;
+            }
+            this.startOffset = Math.max(this.startOffset, firstKept * this.segmentSize);
+            this.position = Math.max(this.position, this.startOffset);
+            return deleted;
+        }
+    }
+
+    /**
+     * Writes the buffered appends to the segment files, without forcing
+     * them to disk.  May be called while another thread appends.
+     */
+    public void flush() throws IOException {
+        synchronized (this.fileLock) {
+            byte[] out;
+            int n;
+            long start;
+            synchronized (this) {
+                if (this.flushFailure != null) {
+                    throw new IOException("An earlier log flush failed; buffered log records were lost.",
+                        this.flushFailure);
+                }
+                if (this.buffered == 0) {
+                    return;
+                }
+                out = this.buffer;
+                n = this.buffered;
+                start = this.bufferStart;
+                this.buffer = this.spare != null ? this.spare : new byte[out.length];
+                this.spare = null;
+                this.buffered = 0;
+                this.bufferStart = start + n;
+            }
+
+            try {
+                this.writeThrough(start, out, 0, n);
+            } catch (IOException e) {
+                synchronized (this) {
+                    this.flushFailure = e;
+                }
+                throw e;
+            }
+            synchronized (this) {
+                this.spare = out;
+                this.flushedOffset = start + n;
+                this.flushes++;
+            }
+        }
+    }
+
+    /**
+     * Flushes the buffered appends and forces the segments written since
+     * the last force to disk.  May be called while another thread appends.
+     */
+    public void force() throws IOException {
+        this.flush();
+        synchronized (this.fileLock) {
+            for (RandomAccessFile f : this.unforced) {
+                f.getChannel().force(true);
+            }
+            this.unforced.clear();
+        }
+    }
+
+    /**
+     * Starts a daemon thread that flushes the buffer once it is half full,
+     * and at least every intervalMillis milliseconds while it holds
+     * anything.  The thread stops when these segments are closed or no
+     * longer used.
+     */
+    public synchronized void startFlusher(final long intervalMillis) {
+        if (this.buffer == null || this.flusher != null || this.closed) {
+            return;
+        }
+        // the thread only holds a weak reference between flushes, so that
+        // forgotten segments can still be collected
+        final WeakReference<LogSegments> ref = new WeakReference<LogSegments>(this);
+        this.flusher = new Thread("LogSegments flusher") {
+            public void run() {
+                while (true) {
+                    LogSegments segments = ref.get();
+                    if (segments == null) {
+                        return;
+                    }
+                    try {
+                        if (!segments.awaitFlush(intervalMillis)) {
+                            return;
+                        }
+                        segments.flush();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        // reported by the next flush or force
+                        return;
+                    }
+                    segments = null;
+                }
+            }
+        };
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /** Waits for work for the flusher; returns false once closed. */
+    private synchronized boolean awaitFlush(long intervalMillis) throws InterruptedException {
+        if (!this.closed && this.buffered < this.buffer.length / 2) {
+            this.wait(intervalMillis);
+        }
+        return !this.closed;
+    }
+
+    /** @return the number of writes of the buffer to the segment files. */
+    public synchronized long getFlushes() {
+        return this.flushes;
+    }
+
+    /** Flushes the buffer and closes all segment files. */
+    public void close() throws IOException {
+        try {
+            this.flush();
+        } finally {
+            this.discard();
+        }
+    }
+
+    /**
+     * Closes all segment files without flushing the buffer: the appends
+     * not flushed yet are lost, as in a crash.
+     */
+    public void discard() throws IOException {
+        synchronized (this) {
+            this.closed = true;
+            this.notifyAll();
+        }
+        synchronized (this.fileLock) {
+            this.dropBuffer();
+            this.closeSegments();
+        }
+    }
+
+    private synchronized void dropBuffer() {
+        this.buffered = 0;
+        this.flushedOffset = Math.min(this.flushedOffset, this.length);
+    }
+
+    private void closeSegments() throws IOException {
+        for (RandomAccessFile f : this.segments.values()) {
+            f.close();
+        }
+        this.segments.clear();
+        this.unforced.clear();
+    }
+
+    /** Writes straight to the segment files; the caller holds fileLock. */
+    private void writeThrough(long pos, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            long number = pos / this.segmentSize;
+            int segmentOffset = (int) (pos % this.segmentSize);
+            int n = (int) Math.min(len, this.segmentSize - segmentOffset);
+            RandomAccessFile f = this.segment(number);
+            f.seek(segmentOffset);
+            f.write(b, off, n);
+            if (!this.unforced.contains(f)) {
+                this.unforced.add(f);
+            }
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // DataOutput
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (this.buffer == null || this.position != this.length) {
+            // not an append: the buffer must not hold bytes at or after
+            // this position when writing around it
+            this.flush();
+            synchronized (this.fileLock) {
+                this.writeThrough(this.position, b, off, len);
+            }
+            this.position += len;
+            this.length = Math.max(this.length, this.position);
+            this.flushedOffset = Math.max(this.flushedOffset, this.position);
+            return;
+        }
+
+        while (len > 0) {
+            int n;
+            boolean full;
+            synchronized (this) {
+                if (this.buffered == 0) {
+                    this.bufferStart = this.position;
+                }
+                n = Math.min(len, this.buffer.length - this.buffered);
+                System.arraycopy(b, off, this.buffer, this.buffered, n);
+                this.buffered += n;
+                full = this.buffered == this.buffer.length;
+                if (this.buffered >= this.buffer.length / 2) {
+                    this.notifyAll();
+                }
+            }
+            this.position += n;
+            this.length = this.position;
+            off += n;
+            len -= n;
+            if (full) {
+                this.flush();
+            }
+        }
+    }
+
+    public void write(byte[] b) throws IOException {
+        this.write(b, 0, b.length);
+    }
+
+    public void write(int b) throws IOException {
+        this.writeBuffer[0] = (byte) b;
+        this.write(this.writeBuffer, 0, 1);
+    }
+
+    public void writeBoolean(boolean v) throws IOException {
+        this.write(v ? 1 : 0);
+    }
+
+    public void writeByte(int v) throws IOException {
+        this.write(v);
+    }
+
+    public void writeShort(int v) throws IOException {
+        this.writeBuffer[0] = (byte) (v >>> 8);
+        this.writeBuffer[1] = (byte) v;
+        this.write(this.writeBuffer, 0, 2);
+    }
+
+    public void writeChar(int v) throws IOException {
+        this.writeShort(v);
+    }
+
+    public void writeInt(int v) throws IOException {
+        this.writeBuffer[0] = (byte) (v >>> 24);
+        this.writeBuffer[1] = (byte) (v >>> 16);
+        this.writeBuffer[2] = (byte) (v >>> 8);
+        this.writeBuffer[3] = (byte) v;
+        this.write(this.writeBuffer, 0, 4);
+    }
+
+    public void writeLong(long v) throws IOException {
+        for (int i = 0; i < 8; i++) {
+            this.writeBuffer[i] = (byte) (v >>> (56 - 8 * i));
+        }
+        this.write(this.writeBuffer, 0, 8);
+    }
+
+    public void writeFloat(float v) throws IOException {
+        this.writeInt(Float.floatToIntBits(v));
+    }
+
+    public void writeDouble(double v) throws IOException {
+        this.writeLong(Double.doubleToLongBits(v));
+    }
+
+    public void writeBytes(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            this.write(s.charAt(i));
+        }
+    }
+
+    public void writeChars(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            this.writeChar(s.charAt(i));
+        }
+    }
+
+    public void writeUTF(String s) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new DataOutputStream(baos).writeUTF(s);
+        this.write(baos.toByteArray());
+    }
+
+    // DataInput
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        if (this.position + len > this.length) {
+            throw new EOFException();
+        }
+        if (this.position + len > this.flushedOffset) {
+            this.flush();
+        }
+        synchronized (this.fileLock) {
+            while (len > 0) {
+                long number = this.position / this.segmentSize;
+                int segmentOffset = (int) (this.position % this.segmentSize);
+                int n = (int) Math.min(len, this.segmentSize - segmentOffset);
+                RandomAccessFile f = this.segment(number);
+                f.seek(segmentOffset);
+                f.readFully(b, off, n);
+                this.position += n;
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    public void readFully(byte[] b) throws IOException {
+        this.readFully(b, 0, b.length);
+    }
+
+    private ByteBuffer read(int n) throws IOException {
+        byte[] b = new byte[n];
+        this.readFully(b);
+        return ByteBuffer.wrap(b);
+    }
+
+    public int skipBytes(int n) throws IOException {
+        int skipped = (int) Math.max(0, Math.min(n, this.length - this.position));
+        this.position += skipped;
+        return skipped;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return this.readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        return this.read(1).get();
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return this.readByte() & 0xff;
+    }
+
+    public short readShort() throws IOException {
+        return this.read(2).getShort();
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return this.readShort() & 0xffff;
+    }
+
+    public char readChar() throws IOException {
+        return this.read(2).getChar();
+    }
+
+    public int readInt() throws IOException {
+        return this.read(4).getInt();
+    }
+
+    public long readLong() throws IOException {
+        return this.read(8).getLong();
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(this.readInt());
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(this.readLong());
+    }
+
+    /**
+     * Reads bytes up to the next line terminator, as
+     * {@link RandomAccessFile#readLine} does: each byte is a character,
+     * and the line ends at "\n", "\r" or "\r\n", or at the end of the log.
+     *
+     * @return the line without its terminator, or null at the end of the log
+     */
+    public String readLine() throws IOException {
+        if (this.position >= this.length) {
+            return null;
+        }
+        StringBuilder line = new StringBuilder();
+        while (this.position < this.length) {
+            int c = this.readUnsignedByte();
+            if (c == '\n') {
+                break;
+            }
+            if (c == '\r') {
+                if (this.position < this.length && this.readUnsignedByte() != '\n') {
+                    this.position--;
+                }
+                break;
+            }
+            line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
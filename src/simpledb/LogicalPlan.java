@@ -34,14 +34,21 @@ public  class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAscs = new Vector<Boolean>();
+    private int limit = -1;
     private String query;
 
+    /** Default memory budget of a query, in bytes of tuple data. */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+    private static volatile long defaultMemoryBudget = DEFAULT_MEMORY_BUDGET;
+    private long memoryBudget;
+
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
         joins = new Vector<LogicalJoinNode>();
@@ -52,6 +59,46 @@ public  class LogicalPlan {
 
         selectList = new Vector<LogicalSelectListNode>();
         this.query = "";
+        this.memoryBudget = defaultMemoryBudget;
+    }
+
+    /** Set the memory budget of the plans created from now on, e.g. for
+        the rest of a console session.
+        @see #setMemoryBudget
+    */
+    public static void setDefaultMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("The memory budget must be positive.");
+        }
+        defaultMemoryBudget = bytes;
+    }
+
+    public static long getDefaultMemoryBudget() {
+        return defaultMemoryBudget;
+    }
+
+    /** Set the memory the operators of this query may use to buffer
+        tuples, in bytes of tuple data.  The budget is shared evenly by the
+        operators that buffer tuples (see {@link #getOperatorMemory}); an
+        operator whose input does not fit in its share spills to disk or
+        makes more passes over its input.
+    */
+    public void setMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("The memory budget must be positive.");
+        }
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** @return the share of the memory budget of each operator that
+        buffers tuples: the joins, the aggregate and the sort */
+    public long getOperatorMemory() {
+        int operators = joins.size() + (hasAgg ? 1 : 0) + (hasOrderBy ? 1 : 0);
+        return Math.max(1, memoryBudget / Math.max(1, operators));
     }
 
     /** Set the text of the query representing this logical plan.  Does NOT parse the
@@ -178,30 +225,59 @@ public  class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  May be called once per aggregate expression; all
+        the aggregates are computed in a single pass.
         @param op the aggregation operator
-        @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param afield the field to aggregate over, or "*" to count tuples
+        @param gfield a field to group by, or null
+        @see #addGroupBy
     */
     public void addAggregate(String op, String afield, String gfield) {
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+        aggOps.addElement(op);
+        aggFields.addElement(afield);
+        if (gfield != null) {
+            addGroupBy(gfield);
+        }
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a field to group the aggregates of the query by.  The groups
+        are the distinct combinations of values of all the GROUP BY fields.
+        @param gfield the field to group by
+    */
+    public void addGroupBy(String gfield) {
+        if (!groupByFields.contains(gfield)) {
+            groupByFields.addElement(gfield);
+        }
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  If called
+        more than once, the results are ordered by the first field, then by the second, and so on.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
     */
     public void addOrderBy(String field, boolean asc) {
-        oByField = field;
-        oByAsc = asc;
+        oByFields.addElement(field);
+        oByAscs.addElement(asc);
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT clause: only the first limit result tuples are returned.
+        With an ORDER BY, these are the first tuples in sorted order.
+        @param limit the number of result tuples to return
+    */
+    public void setLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("The limit must not be negative.");
+        }
+        this.limit = limit;
+    }
+
+    /** @return the LIMIT of the query, or -1 if it has none */
+    public int getLimit() {
+        return limit;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form table.name.  If the name parameter is already qualified
@@ -256,6 +332,28 @@ public  class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** @return the position of an aggregate among the aggregates of the query */
+    private int aggregateIndex(String op, String field) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.elementAt(i).equals(op) && aggFields.elementAt(i).equals(field)) {
+                return i;
+            }
+        }
+        throw new NoSuchElementException("No aggregate " + op + "(" + field + ")");
+    }
+
+    /** @return the position of a field among the GROUP BY fields, or -1 if
+        it is not one of them */
+    private int groupByIndex(String field) throws ParsingException {
+        String name = disambiguateName(field);
+        for (int i = 0; i < groupByFields.size(); i++) {
+            if (disambiguateName(groupByFields.elementAt(i)).equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned DbIterator will run as a part of
@@ -399,27 +497,29 @@ public  class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                outFields.add(groupByFields.size() + aggregateIndex(si.aggOp, si.fname));
                 TupleDesc td = node.getTupleDesc();
-                int  id;
-                try {
-                    id = td.nameToId(disambiguateName(si.fname));
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                if (!si.fname.equals("*")) {
+                    try {
+                        td.nameToId(disambiguateName(si.fname));
+                    } catch (NoSuchElementException e) {
+                        throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                    }
                 }
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int groupIndex = groupByIndex(si.fname);
+                    if (groupIndex < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(groupIndex);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.nameToId(disambiguateName(groupByField));
+                        id = td.nameToId(disambiguateName(groupByFields.elementAt(groupIndex)));
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  groupByFields.elementAt(groupIndex) + " in GROUP BY statement");
                     }
                     outTypes.add(td.getType(id));
             } else if (si.fname.equals("null.*")) {
@@ -446,10 +546,25 @@ public  class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.nameToId(disambiguateName(aggField)),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.nameToId(disambiguateName(groupByField)),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggFields.size()];
+                for (int i = 0; i < afields.length; i++) {
+                    aops[i] = getAggOp(aggOps.elementAt(i));
+                    if (aggFields.elementAt(i).equals("*")) {
+                        if (aops[i] != Aggregator.Op.COUNT) {
+                            throw new ParsingException("Only COUNT can aggregate over *");
+                        }
+                        // tuples have no nulls, so any field counts them all
+                        afields[i] = 0;
+                    } else {
+                        afields[i] = td.nameToId(disambiguateName(aggFields.elementAt(i)));
+                    }
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++) {
+                    gfields[i] = td.nameToId(disambiguateName(groupByFields.elementAt(i)));
+                }
+                aggNode = new Aggregate(node, afields, aops, gfields, getOperatorMemory());
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -459,7 +574,22 @@ public  class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().nameToId(disambiguateName(oByField)), oByAsc, node);
+            int[] oByIndexes = new int[oByFields.size()];
+            boolean[] oByAsc = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIndexes.length; i++) {
+                oByIndexes[i] = node.getTupleDesc().nameToId(disambiguateName(oByFields.elementAt(i)));
+                oByAsc[i] = oByAscs.elementAt(i);
+            }
+            long tupleSize = node.getTupleDesc().getSize();
+            if (limit >= 0 && limit * tupleSize <= getOperatorMemory()) {
+                // keep only the first tuples rather than sorting them all
+                node = new TopN(oByIndexes, oByAsc, limit, node);
+            } else {
+                node = new OrderBy(oByIndexes, oByAsc, node, getOperatorMemory());
+            }
+        }
+        if (limit >= 0 && !(node instanceof TopN)) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
@@ -0,0 +1,183 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Knows how to compute several aggregates at once, grouped by any number
+ * of fields.  For example, <tt>count(*), sum(amount), max(amount) ...
+ * GROUP BY org, manager</tt> is computed in one pass over its input.
+ * <p>
+ * Like {@link IntAggregator}, groups are numbered by a {@link GroupIndex},
+ * and the state of aggregate a for group g is in position g of the arrays
+ * of aggregate a.  Integer fields support every aggregate; string fields
+ * only COUNT.
+ */
+public class MultiAggregator implements Aggregator {
+
+    private class MultiAggregatorIterator implements DbIterator {
+        private TupleDesc tupleDesc;
+        // the next group to return, or -1 if not open
+        private int position = -1;
+
+        public MultiAggregatorIterator() {
+            this.tupleDesc = this.getTupleDesc();
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            this.position = 0;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (this.position == -1) {
+                return false;
+            }
+
+            return this.position < groups.size();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (this.position == -1) {
+                throw new NoSuchElementException("next() is unsupported on an uninitialized iterator.");
+            }
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            int group = this.position++;
+            Field[] groupByFields = groups.getGroupFields(group);
+            Tuple tuple = new Tuple(this.tupleDesc);
+            for (int i = 0; i < groupByFields.length; i++) {
+                tuple.setField(i, groupByFields[i]);
+            }
+            for (int a = 0; a < aggregationOperators.length; a++) {
+                tuple.setField(groupByFields.length + a, new IntField(getValue(a, group)));
+            }
+            return tuple;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            this.position = 0;
+        }
+
+        public TupleDesc getTupleDesc() {
+            Type[] types = new Type[groupByFields.length + aggregationOperators.length];
+            for (int i = 0; i < types.length; i++) {
+                // the type of all aggregate functions is INT
+                types[i] = i < groupByFields.length ? groupByTypes[i] : Type.INT_TYPE;
+            }
+            return new TupleDesc(types);
+        }
+
+        public void close() {
+            this.position = -1;
+        }
+    }
+
+    private static final int INITIAL_GROUPS = 64;
+
+    private int[] groupByFields;
+    private Type[] groupByTypes;
+    private int[] aggregateFields;
+    private Op[] aggregationOperators;
+
+    private GroupIndex groups;
+    // per aggregate and group: the min or max, and the sum
+    private int[][] values;
+    private long[][] sums;
+    // per group: the number of tuples
+    private int[] counts;
+
+    /**
+     * Aggregate constructor
+     * @param gbfields the 0-based indexes of the group-by fields in the tuple; none if there is no grouping
+     * @param gbfieldtypes the types of the group-by fields
+     * @param afields the 0-based indexes of the fields to aggregate
+     * @param afieldtypes the types of the fields to aggregate
+     * @param what the aggregation operator of each field of afields
+     * @throws IllegalArgumentException if a string field is aggregated by something else than COUNT
+     */
+    public MultiAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields, Type[] afieldtypes, Op[] what) {
+        if (gbfields.length != gbfieldtypes.length || afields.length != what.length
+            || afields.length != afieldtypes.length) {
+            throw new IllegalArgumentException("Expected a type for each field and an operator for each aggregate.");
+        }
+        for (int a = 0; a < afields.length; a++) {
+            if (afieldtypes[a] == Type.STRING_TYPE && what[a] != Op.COUNT) {
+                throw new IllegalArgumentException("Strings only support COUNT, not " + what[a] + ".");
+            }
+        }
+        this.groupByFields = gbfields.clone();
+        this.groupByTypes = gbfieldtypes.clone();
+        this.aggregateFields = afields.clone();
+        this.aggregationOperators = what.clone();
+
+        this.groups = new GroupIndex();
+        this.values = new int[afields.length][INITIAL_GROUPS];
+        this.sums = new long[afields.length][INITIAL_GROUPS];
+        this.counts = new int[INITIAL_GROUPS];
+    }
+
+    /**
+     * Merge a new tuple into the aggregates, grouping as indicated in the constructor
+     * @param tup the Tuple containing the aggregate fields and the group-by fields
+     */
+    public void merge(Tuple tup) {
+        int group = this.groups.groupOf(tup, this.groupByFields);
+        if (group == this.counts.length) {
+            int capacity = 2 * this.counts.length;
+            for (int a = 0; a < this.aggregateFields.length; a++) {
+                this.values[a] = Arrays.copyOf(this.values[a], capacity);
+                this.sums[a] = Arrays.copyOf(this.sums[a], capacity);
+            }
+            this.counts = Arrays.copyOf(this.counts, capacity);
+        }
+
+        boolean first = this.counts[group] == 0;
+        for (int a = 0; a < this.aggregateFields.length; a++) {
+            Op op = this.aggregationOperators[a];
+            if (op == Op.COUNT) {
+                continue;
+            }
+            int value = ((IntField) tup.getField(this.aggregateFields[a])).getValue();
+            if (first) {
+                this.values[a][group] = value;
+            } else if (op == Op.MIN) {
+                this.values[a][group] = Math.min(this.values[a][group], value);
+            } else if (op == Op.MAX) {
+                this.values[a][group] = Math.max(this.values[a][group], value);
+            }
+            this.sums[a][group] += value;
+        }
+        this.counts[group]++;
+    }
+
+    private int getValue(int aggregate, int group) {
+        switch (this.aggregationOperators[aggregate]) {
+            case SUM:
+                return (int) this.sums[aggregate][group];
+            case COUNT:
+                return this.counts[group];
+            case AVG:
+                return (int) (this.sums[aggregate][group] / this.counts[group]);
+            default:
+                return this.values[aggregate][group];
+        }
+    }
+
+    public int numGroups() {
+        return this.groups.size();
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results.
+     *
+     * @return a DbIterator whose tuples are the group-by values followed
+     *   by the value of each aggregate, in the order given to the
+     *   constructor.
+     */
+    public DbIterator iterator() {
+        return new MultiAggregatorIterator();
+    }
+
+}
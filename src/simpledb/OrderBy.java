@@ -3,49 +3,81 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * The tuples are sorted by an {@link ExternalSort}, so a child that does
+ * not fit in the memory budget is sorted in runs on disk, and the sorted
+ * tuples are returned while the runs are merged.
  */
 public class OrderBy extends AbstractDbIterator {
     DbIterator child;
     TupleDesc td;
-    ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    int orderByField;
-    Iterator<Tuple> it;
-    boolean asc;
+    int[] orderByFields;
+    boolean[] asc;
+    ExternalSort sort;
 
     /**
-     * Creates a new OrderBy node over the tuples from the iterator.
+     * Creates a new OrderBy node over the tuples from the iterator, with
+     * the default memory budget.
      *
      * @param orderbyField the field to which the sort is applied.
      * @param asc true if the sort order is ascending.
      * @param child the tuples to sort.
      */
     public OrderBy(int orderbyField,  boolean asc, DbIterator child) {
+        this(orderbyField, asc, child, ExternalSort.DEFAULT_MEMORY_BYTES);
+    }
+
+    /**
+     * Creates a new OrderBy node over the tuples from the iterator.
+     *
+     * @param orderbyField the field to which the sort is applied.
+     * @param asc true if the sort order is ascending.
+     * @param child the tuples to sort.
+     * @param memoryBytes the memory budget of the sort, in bytes of tuple data.
+     */
+    public OrderBy(int orderbyField, boolean asc, DbIterator child, long memoryBytes) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child, memoryBytes);
+    }
+
+    /**
+     * Creates a new OrderBy node over the tuples from the iterator, sorting
+     * on several fields.  Tuples are ordered by the first field, then
+     * tuples with equal first fields by the second one, and so on.
+     *
+     * @param orderbyFields the fields to which the sort is applied.
+     * @param asc for each field, true if its sort order is ascending.
+     * @param child the tuples to sort.
+     * @param memoryBytes the memory budget of the sort, in bytes of tuple data.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child, long memoryBytes) {
         this.child = child;
         td= child.getTupleDesc();
-        this.orderByField = orderbyField;
+        this.orderByFields = orderbyFields;
         this.asc = asc;
+        this.sort = new ExternalSort(child, new TupleComparator(orderbyFields, asc), memoryBytes);
     }
 
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /** @return the number of sorted runs written to disk since created. */
+    public int getRunsWritten() {
+        return sort.getRunsWritten();
+    }
+
     public void open()
         throws DbException, NoSuchElementException, TransactionAbortedException {
-        child.open();
-        //load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple)child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        sort.open();
     }
 
     public void close() {
-        it = null;
+        super.close();
+        sort.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        sort.rewind();
     }
 
     /**
@@ -56,31 +88,6 @@ public class OrderBy extends AbstractDbIterator {
      */
     protected Tuple readNext()
         throws NoSuchElementException, TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
-            return null;
+        return sort.hasNext() ? sort.next() : null;
     }
 }
-
- class TupleComparator implements Comparator<Tuple> {
-     int field;
-     boolean asc;
-
-     public TupleComparator(int field, boolean asc) {
-         this.field = field;
-     this.asc = asc;
-     }
-
-     public int compare(Tuple o1, Tuple o2) {
-         Field t1 = (o1).getField(field);
-         Field t2 = (o2).getField(field);
-         if (t1.compare(Predicate.Op.EQUALS, t2))
-             return 0;
-         if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-             return asc?1:-1;
-         else
-             return asc?-1:1;
-     }
-
-}
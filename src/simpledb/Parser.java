@@ -3,6 +3,8 @@ package simpledb;
 import Zql.*;
 import java.io.*;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -12,6 +14,8 @@ public class Parser {
     static boolean explain = false;
      static HashMap<String, TableStats> statsMap = new HashMap<String,TableStats>();
     private static final int IOCOSTPERPAGE = 1000;
+    // milliseconds between fuzzy checkpoints of the log
+    private static final long CHECKPOINT_INTERVAL = 30 * 1000;
     
     public static void setStatsMap(HashMap<String, TableStats> _statsMap) {
     	statsMap = _statsMap;
@@ -150,20 +154,17 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException("At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (! (gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException("Complex grouping expressions (" + gbe + ") not supported.");
                 }
-                groupByField = ((ZConstant)gbe).getValue();
+                String groupByField = ((ZConstant)gbe).getValue();
                 System.out.println ("GROUP BY FIELD : " + groupByField);
+                groupByFields.addElement(groupByField);
             }
 
         }
@@ -171,8 +172,7 @@ public class Parser {
         // walk the select list, pick out aggregates, and check for query validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAgg = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -180,58 +180,109 @@ public class Parser {
                 throw new simpledb.ParsingException("Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException("Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant)((ZExpression)si.getExpression()).getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggField = ((ZConstant)((ZExpression)si.getExpression()).getOperand(0)).getValue();
+                String aggFun = si.getAggregate();
                 System.out.println ("Aggregate field is " + aggField + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField, null);
+                hasAgg = true;
             } else {
-                if (groupByField != null && ! (groupByField.equals(si.getTable() + "." + si.getColumn()) || groupByField.equals(si.getColumn()))) {
+                if (!groupByFields.isEmpty() && !groupByFields.contains(si.getTable() + "." + si.getColumn())
+                    && !groupByFields.contains(si.getColumn())) {
                     throw new simpledb.ParsingException("Non-aggregate field " + si.getColumn() + " does not appear in GROUP BY list.");
                 }
                 lp.addProjectField(si.getTable() + "." + si.getColumn(), null);
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAgg) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
         
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        for (String groupByField : groupByFields) {
+            lp.addGroupBy(groupByField);
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
                 Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1)  {
-                throw new simpledb.ParsingException("Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException("Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant)oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException("Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant)oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
     }
         
     public static DbIterator parseQuery(TransactionId tid, ZQuery q) throws IOException, Zql.ParseException, simpledb.ParsingException {
-        return parseQueryLogicalPlan(tid, q).physicalPlan(tid, statsMap, explain);
+        return parseQuery(tid, q, -1);
+    }
+
+    /** Parse a query that ends with <tt>LIMIT limit</tt>, or has no LIMIT
+        if limit is negative. */
+    public static DbIterator parseQuery(TransactionId tid, ZQuery q, int limit) throws IOException, Zql.ParseException, simpledb.ParsingException {
+        LogicalPlan lp = parseQueryLogicalPlan(tid, q);
+        if (limit >= 0) {
+            lp.setLimit(limit);
+        }
+        return lp.physicalPlan(tid, statsMap, explain);
+    }
+
+    // Zql does not know LIMIT, so the LIMIT clause at the end of a
+    // statement is removed before Zql parses it
+    private static final Pattern LIMIT_CLAUSE =
+        Pattern.compile("\\s+limit\\s+(\\d+)\\s*(?=;|$)", Pattern.CASE_INSENSITIVE);
+
+    /** @return the LIMIT at the end of the first statement of s, or -1 if
+        there is none */
+    static int parseLimit(String s) throws simpledb.ParsingException {
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find()) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(m.group(1));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT " + m.group(1) + " is too large.");
+        }
+    }
+
+    /** @return s without the LIMIT clause at the end of its first statement */
+    static String stripLimit(String s) {
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        return m.find() ? s.substring(0, m.start()) + s.substring(m.end()) : s;
+    }
+
+    /** Parse the first statement of s, without its LIMIT clause (see
+        {@link #parseLimit}).
+        @throws simpledb.ParsingException if the statement has a LIMIT but
+        is not a SELECT
+    */
+    static ZStatement parseStatement(String s) throws IOException, Zql.ParseException, simpledb.ParsingException {
+        ZqlParser p = new ZqlParser(new ByteArrayInputStream(stripLimit(s).getBytes("UTF-8")));
+        ZStatement stmt = p.readStatement();
+        if (parseLimit(s) >= 0 && !(stmt instanceof ZQuery)) {
+            throw new simpledb.ParsingException("LIMIT is only supported in SELECT statements.");
+        }
+        return stmt;
     }
 
     static Transaction curtrans = null;
 
     public static void handleQueryStatement(ZQuery s) throws TransactionAbortedException, DbException, IOException, simpledb.ParsingException, Zql.ParseException  {
+        handleQueryStatement(s, -1);
+    }
+
+    public static void handleQueryStatement(ZQuery s, int limit) throws TransactionAbortedException, DbException, IOException, simpledb.ParsingException, Zql.ParseException  {
         // and run it
         DbIterator node;
-        node = parseQuery(curtrans.getId(), s);
+        node = parseQuery(curtrans.getId(), s, limit);
 
         Query sdbq = new Query(node, curtrans.getId());
         TupleDesc td = node.getTupleDesc();
@@ -366,12 +417,16 @@ public class Parser {
     }
 
     public static LogicalPlan generateLogicalPlan(TransactionId tid, String s) throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        int limit = parseLimit(s);
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                     LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery)stmt);
+                    if (limit >= 0) {
+                        lp.setLimit(limit);
+                    }
                     return lp;
             }
         }
@@ -404,8 +459,16 @@ public class Parser {
     
     public static void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            // read the statement to find its LIMIT, if any
+            ByteArrayOutputStream statement = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                statement.write(buf, 0, n);
+            }
+            String text = statement.toString("UTF-8");
+            int limit = parseLimit(text);
+            ZStatement s = parseStatement(text);
 
             if (s instanceof ZTransactStmt)
                 handleTransactStatement((ZTransactStmt)s);
@@ -414,7 +477,7 @@ public class Parser {
             else if (s instanceof ZDelete)
                 handleDeleteStatement((ZDelete)s);
             else if (s instanceof ZQuery)
-                handleQueryStatement((ZQuery)s);
+                handleQueryStatement((ZQuery)s, limit);
             else {
                 System.out.println("Can't parse " + s + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
             }
@@ -434,6 +497,138 @@ public class Parser {
         }
     }
 
+    /** A console command, which the prompt handles itself rather than
+        parsing it as SQL. */
+    interface ConsoleCommand {
+        /** Handle the command, given the text after its name, without
+            the trailing ';'. */
+        void handle(String args);
+    }
+
+    // the console commands by name
+    static final Map<String, ConsoleCommand> CONSOLE_COMMANDS = new LinkedHashMap<String, ConsoleCommand>();
+    static {
+        CONSOLE_COMMANDS.put("bufferpool", Parser::handleBufferPoolStatement);
+        CONSOLE_COMMANDS.put("commitmode", Parser::handleCommitModeStatement);
+        CONSOLE_COMMANDS.put("memory", Parser::handleMemoryStatement);
+    }
+
+    /** @return the name of the console command s, or null if s is an SQL
+        statement. */
+    static String consoleCommandOf(String s) {
+        String name = s.trim().split("[\\s;]", 2)[0].toLowerCase();
+        return CONSOLE_COMMANDS.containsKey(name) ? name : null;
+    }
+
+    /** Handle the console command s.
+        @see #consoleCommandOf
+    */
+    static void handleConsoleCommand(String s) {
+        String name = consoleCommandOf(s);
+        String args = s.trim().substring(name.length()).replace(";", "").trim();
+        CONSOLE_COMMANDS.get(name).handle(args);
+    }
+
+    /** Handle the console command
+        <tt>bufferpool [pages | save | load | compressed bytes];</tt>, which
+        shows the buffer pool size, resizes it in place, saves or prefetches
+        its working set, or sizes its compressed second tier (0 disables it).
+    */
+    public static void handleBufferPoolStatement(String args) {
+        BufferPool pool = Database.getBufferPool();
+
+        if (args.equalsIgnoreCase("save")) {
+            try {
+                int saved = pool.saveWorkingSet(Database.getWorkingSetFile());
+                System.out.println("Saved a working set of " + saved + " pages.");
+            } catch (IOException e) {
+                System.out.println("Unable to save the working set: " + e.getMessage());
+            }
+            return;
+        } else if (args.equalsIgnoreCase("load")) {
+            prefetchWorkingSet();
+            return;
+        } else if (args.toLowerCase().startsWith("compressed")) {
+            String size = args.substring("compressed".length()).trim();
+            try {
+                pool.setCompressedCacheSize(Long.parseLong(size));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid compressed cache size: " + size);
+                return;
+            }
+        } else if (args.length() > 0) {
+            int pages;
+            try {
+                pages = Integer.parseInt(args);
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid buffer pool size: " + args);
+                return;
+            }
+            if (pages <= 0) {
+                System.out.println("Buffer pool size must be positive.");
+                return;
+            }
+            int evicted = pool.resize(pages);
+            System.out.println("Buffer pool resized, " + evicted + " pages evicted.");
+        }
+        System.out.println("Buffer pool: " + pool.getNumResidentPages() + " of " + pool.getNumPages() + " pages in use.");
+        CompressedPageCache compressed = pool.getCompressedCache();
+        if (compressed != null) {
+            System.out.println("Compressed cache: " + compressed.getNumPages() + " pages in "
+                + compressed.getUsedBytes() + " of " + compressed.getMaxBytes() + " bytes, "
+                + compressed.getHits() + " hits, " + compressed.getMisses() + " misses.");
+        }
+    }
+
+    /** Handle the console command <tt>commitmode [sync | async];</tt>,
+        which shows or sets the commit mode of the transactions of this
+        session.
+        @see Transaction.CommitMode
+    */
+    public static void handleCommitModeStatement(String args) {
+        if (args.length() > 0) {
+            try {
+                Transaction.setDefaultCommitMode(Transaction.CommitMode.valueOf(args.toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid commit mode: " + args);
+                return;
+            }
+        }
+        System.out.println("Commit mode: " + Transaction.getDefaultCommitMode().toString().toLowerCase() + ".");
+    }
+
+    /** Handle the console command <tt>memory [bytes];</tt>, which shows
+        or sets the memory budget of the queries of this session.
+        @see LogicalPlan#setMemoryBudget
+    */
+    public static void handleMemoryStatement(String args) {
+        if (args.length() > 0) {
+            try {
+                LogicalPlan.setDefaultMemoryBudget(Long.parseLong(args));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid memory budget: " + args);
+                return;
+            }
+        }
+        System.out.println("Memory budget: " + LogicalPlan.getDefaultMemoryBudget() + " bytes per query.");
+    }
+
+    /** Start warming up the buffer pool with the working set saved by the
+        previous run, if there is one. */
+    static void prefetchWorkingSet() {
+        File workingSet = Database.getWorkingSetFile();
+        if (!workingSet.exists()) {
+            System.out.println("No saved working set.");
+            return;
+        }
+        try {
+            Database.getBufferPool().prefetchWorkingSet(workingSet);
+            System.out.println("Prefetching the saved working set in the background.");
+        } catch (IOException e) {
+            System.out.println("Unable to read the working set: " + e.getMessage());
+        }
+    }
+
     // Basic SQL completions
     static final String[] SQL_COMMANDS = {
         "select",
@@ -454,9 +649,9 @@ public class Parser {
 
     public static void main(String argv[]) throws IOException {
 
-        String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+        String usage = "Usage: parser catalogFile [-explain] [-recover] [-f queryFile]";
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 5) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -464,6 +659,15 @@ public class Parser {
         //first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
 
+        // recover before anything reads the tables
+        if (Arrays.asList(argv).contains("-recover")) {
+            LogFile log = Database.getLogFile();
+            log.recover();
+            System.out.println("Recovered " + log.getRecoveryRecords() + " log records and "
+                + log.getRecoveryPages() + " pages in " + log.getRecoveryMillis() + " ms ("
+                + (long) log.getRecoveryThroughput() + " records/s).");
+        }
+
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
 
         System.out.println("Computing table stats.");
@@ -474,6 +678,11 @@ public class Parser {
         }
         System.out.println("Done.");
 
+        if (Database.getWorkingSetFile().exists()) {
+            prefetchWorkingSet();
+        }
+        Database.getLogFile().startCheckpointer(CHECKPOINT_INTERVAL);
+
         boolean interactive = true;
         String queryFile = null;
 
@@ -482,6 +691,8 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-recover")) {
+                    // handled after loading the catalog
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -508,7 +719,10 @@ public class Parser {
             ConsoleReader reader = new ConsoleReader();
 
             // Add really stupid tab completion for simple SQL
-            ArgumentCompletor completor = new ArgumentCompletor(new SimpleCompletor(SQL_COMMANDS));
+            ArrayList<String> completions = new ArrayList<String>(Arrays.asList(SQL_COMMANDS));
+            completions.addAll(CONSOLE_COMMANDS.keySet());
+            ArgumentCompletor completor = new ArgumentCompletor(
+                new SimpleCompletor(completions.toArray(new String[0])));
             completor.setStrict(false);  // match at any position
             reader.addCompletor(completor);
 
@@ -520,6 +734,12 @@ public class Parser {
                 while (line.indexOf(';') >= 0) {
                     int split = line.indexOf(';');
                     buffer.append(line.substring(0, split+1));
+                    if (consoleCommandOf(buffer.toString()) != null) {
+                        handleConsoleCommand(buffer.toString());
+                        line = line.substring(split+1);
+                        buffer = new StringBuilder();
+                        continue;
+                    }
                     byte[] statementBytes = buffer.toString().getBytes("UTF-8");
 
                     //create a transaction for the query
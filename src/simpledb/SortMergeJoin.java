@@ -0,0 +1,274 @@
+package simpledb;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator sorts both children on their join fields,
+ * externally if they do not fit in memory (see {@link ExternalSort}), and
+ * merges them.
+ * <p>
+ * The merge reads each sorted child once, and keeps the right tuples that
+ * match the current left tuple, spilling them to disk beyond the memory
+ * budget.  For an equality predicate, those are the right tuples that
+ * share the current join value.  For a range predicate (<tt>&lt;</tt>,
+ * <tt>&lt;=</tt>, <tt>&gt;</tt>, <tt>&gt;=</tt>), both children are
+ * sorted in the same direction, ascending for <tt>&gt;</tt> and
+ * descending for <tt>&lt;</tt>, so that the right tuples matching a left
+ * tuple are a prefix of the right child that only grows from one left
+ * tuple to the next; for each left tuple, the merge only reads on the
+ * right until the first tuple that does not match.
+ * <p>
+ * Like {@link Join}, SortMergeJoin returns the concatenation of the left
+ * and right tuples; they come out ordered by the left join field, in the
+ * direction the children are sorted in.
+ */
+public class SortMergeJoin extends AbstractDbIterator {
+
+    private JoinPredicate predicate;
+    private DbIterator leftRelationDbIterator;
+    private DbIterator rightRelationDbIterator;
+    private ExternalSort left;
+    private ExternalSort right;
+    private long memoryBytes;
+
+    private Tuple leftTuple;
+    // the join value of the left tuples the matches are for, with an
+    // equality predicate
+    private Field groupKey;
+    // the first right tuple not read into the matches
+    private Tuple nextRight;
+    private boolean merging;
+    // The right tuples that match the current left tuple: with an equality
+    // predicate, those whose join field equals groupKey; with a range
+    // predicate, those that matched so far.  They are in memory up to the
+    // budget and then in a spill file; the iterators tell where the
+    // current left tuple is in them.
+    private ArrayList<Tuple> matches = new ArrayList<Tuple>();
+    private TupleSpillFile spilledMatches;
+    private Iterator<Tuple> matchesIt;
+    private TupleSpillFile.Reader spilledMatchesReader;
+
+    /**
+     * Constructor.  Accepts two children to join and the predicate to
+     * join them on, and sorts with the default memory budget.
+     *
+     * @param p The predicate to use to join the children; one of
+     *   Predicate.Op.EQUALS, LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN or
+     *   GREATER_THAN_OR_EQ
+     * @param child1 Iterator for the left relation to join
+     * @param child2 Iterator for the right relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, ExternalSort.DEFAULT_MEMORY_BYTES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p The predicate to use to join the children
+     * @param child1 Iterator for the left relation to join
+     * @param child2 Iterator for the right relation to join
+     * @param memoryBytes the memory budget for sorting each child
+     * @see #SortMergeJoin(JoinPredicate, DbIterator, DbIterator)
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2, long memoryBytes) {
+        if (!isSupported(p.getOperator())) {
+            throw new IllegalArgumentException("A sort-merge join cannot join on " + p.getOperator() + ".");
+        }
+        this.predicate = p;
+        this.leftRelationDbIterator = child1;
+        this.rightRelationDbIterator = child2;
+        this.memoryBytes = memoryBytes;
+
+        // for l < r and l <= r, the right tuples matching the largest left
+        // tuples match all of them
+        boolean ascending = p.getOperator() != Predicate.Op.LESS_THAN
+            && p.getOperator() != Predicate.Op.LESS_THAN_OR_EQ;
+        this.left = new ExternalSort(child1, new TupleComparator(p.getField1(), ascending), memoryBytes);
+        this.right = new ExternalSort(child2, new TupleComparator(p.getField2(), ascending), memoryBytes);
+    }
+
+    /** @return true if a sort-merge join can join on the specified operator. */
+    public static boolean isSupported(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS
+            || op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ
+            || op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    /**
+     * @see simpledb.TupleDesc#combine(TupleDesc, TupleDesc) for possible implementation logic.
+     */
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.combine(
+            this.leftRelationDbIterator.getTupleDesc(),
+            this.rightRelationDbIterator.getTupleDesc()
+        );
+    }
+
+    public void open()
+        throws DbException, NoSuchElementException, TransactionAbortedException {
+        this.left.open();
+        this.right.open();
+        this.reset();
+    }
+
+    public void close() {
+        super.close();
+        this.left.close();
+        this.right.close();
+        this.reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.left.rewind();
+        this.right.rewind();
+        this.reset();
+    }
+
+    private void reset() {
+        this.leftTuple = null;
+        this.groupKey = null;
+        this.nextRight = null;
+        this.merging = false;
+        this.clearMatches();
+    }
+
+    private void clearMatches() {
+        this.matches.clear();
+        this.matchesIt = null;
+        this.closeSpilledMatchesReader();
+        if (this.spilledMatches != null) {
+            this.spilledMatches.delete();
+            this.spilledMatches = null;
+        }
+    }
+
+    private void closeSpilledMatchesReader() {
+        if (this.spilledMatchesReader != null) {
+            try {
+                this.spilledMatchesReader.close();
+            } catch (IOException e) {
+                // only read from
+            }
+            this.spilledMatchesReader = null;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are
+     * no more tuples.
+     *
+     * @return The next matching tuple.
+     * @see Join#readNext
+     */
+    protected Tuple readNext() throws TransactionAbortedException, DbException {
+        try {
+            if (this.predicate.getOperator() == Predicate.Op.EQUALS) {
+                return this.readNextEquals();
+            }
+            return this.readNextRange();
+        } catch (IOException e) {
+            throw new DbException("Cannot spill the matching tuples: " + e.getMessage());
+        }
+    }
+
+    private Tuple readNextRange() throws TransactionAbortedException, DbException, IOException {
+        if (!this.merging) {
+            this.merging = true;
+            this.nextRight = this.right.hasNext() ? this.right.next() : null;
+        }
+
+        while (true) {
+            Tuple joined = this.nextMatch();
+            if (joined != null) {
+                return joined;
+            }
+            if (!this.left.hasNext()) {
+                return null;
+            }
+
+            // the matches match every later left tuple, so they only grow
+            this.leftTuple = this.left.next();
+            while (this.nextRight != null && this.predicate.filter(this.leftTuple, this.nextRight)) {
+                this.addMatch(this.nextRight);
+                this.nextRight = this.right.hasNext() ? this.right.next() : null;
+            }
+            this.startMatches();
+        }
+    }
+
+    private Tuple readNextEquals() throws TransactionAbortedException, DbException, IOException {
+        if (!this.merging) {
+            this.merging = true;
+            this.nextRight = this.right.hasNext() ? this.right.next() : null;
+        }
+
+        int leftField = this.predicate.getField1();
+        int rightField = this.predicate.getField2();
+        while (true) {
+            Tuple joined = this.nextMatch();
+            if (joined != null) {
+                return joined;
+            }
+            if (!this.left.hasNext()) {
+                return null;
+            }
+
+            this.leftTuple = this.left.next();
+            Field key = this.leftTuple.getField(leftField);
+            if (this.groupKey == null || !this.groupKey.compare(Predicate.Op.EQUALS, key)) {
+                // the left join values only grow, so the old group is done
+                this.clearMatches();
+                this.groupKey = key;
+                while (this.nextRight != null
+                       && this.nextRight.getField(rightField).compare(Predicate.Op.LESS_THAN, key)) {
+                    this.nextRight = this.right.hasNext() ? this.right.next() : null;
+                }
+                while (this.nextRight != null
+                       && this.nextRight.getField(rightField).compare(Predicate.Op.EQUALS, key)) {
+                    this.addMatch(this.nextRight);
+                    this.nextRight = this.right.hasNext() ? this.right.next() : null;
+                }
+            }
+            this.startMatches();
+        }
+    }
+
+    private void addMatch(Tuple t) throws IOException {
+        long tupleSize = Math.max(1, t.getTupleDesc().getSize());
+        if (this.spilledMatches == null && (this.matches.size() + 1) * tupleSize <= this.memoryBytes) {
+            this.matches.add(t);
+            return;
+        }
+        if (this.spilledMatches == null) {
+            this.spilledMatches = new TupleSpillFile(t.getTupleDesc());
+        }
+        this.spilledMatches.add(t);
+    }
+
+    /** Starts joining the current left tuple with the matches. */
+    private void startMatches() throws IOException {
+        this.matchesIt = this.matches.iterator();
+        if (this.spilledMatches != null) {
+            this.spilledMatchesReader = this.spilledMatches.read();
+        }
+    }
+
+    /**
+     * @return the current left tuple joined with its next match, or null
+     *   if it has no more matches
+     */
+    private Tuple nextMatch() throws IOException {
+        if (this.matchesIt != null && this.matchesIt.hasNext()) {
+            return Tuple.combine(this.leftTuple, this.matchesIt.next());
+        }
+        if (this.spilledMatchesReader != null) {
+            Tuple rightTuple = this.spilledMatchesReader.next();
+            if (rightTuple != null) {
+                return Tuple.combine(this.leftTuple, rightTuple);
+            }
+            this.closeSpilledMatchesReader();
+        }
+        return null;
+    }
+}
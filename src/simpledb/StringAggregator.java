@@ -1,64 +1,63 @@
 package simpledb;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
+ * <p>
+ * Like {@link IntAggregator}, groups are numbered by a {@link GroupIndex}
+ * and their counts are kept in an array indexed by group number.
  */
 public class StringAggregator implements Aggregator {
 
     private class StringAggregatorIterator implements DbIterator {
         private StringAggregator stringAggregator;
-        private Iterator<Entry<Field, Integer>> iterator;
+        private TupleDesc tupleDesc;
+        // the next group to return, or -1 if not open
+        private int position = -1;
 
         public StringAggregatorIterator(StringAggregator stringAggregator) {
             this.stringAggregator = stringAggregator;
+            this.tupleDesc = this.getTupleDesc();
         }
 
         public void open() throws DbException, TransactionAbortedException {
-            this.iterator = this.stringAggregator.aggregatedCount.entrySet().iterator();
+            this.position = 0;
         }
 
         public boolean hasNext() throws DbException, TransactionAbortedException {
-            if (this.iterator == null) {
+            if (this.position == -1) {
                 return false;
             }
 
-            return this.iterator.hasNext();
+            return this.position < this.stringAggregator.groups.size();
         }
 
         public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-            if (this.iterator == null) {
+            if (this.position == -1) {
                 throw new NoSuchElementException("next() is unsupported on an uninitialized iterator.");
             }
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
 
-            Entry<Field, Integer> entry = this.iterator.next();
-            Field groupByField = entry.getKey();
-            int count = entry.getValue();
+            int group = this.position++;
+            Field groupByField = this.stringAggregator.groups.getGroup(group);
+            IntField count = new IntField(this.stringAggregator.counts[group]);
 
+            Tuple tuple = new Tuple(this.tupleDesc);
             if (groupByField == null) {
-                Tuple tuple = new Tuple(
-                    new TupleDesc(new Type[]{Type.INT_TYPE})
-                );
-                tuple.setField(0, new IntField(count));
-
-                return tuple;
+                tuple.setField(0, count);
             } else {
-                Tuple tuple = new Tuple(
-                    new TupleDesc(new Type[]{this.stringAggregator.groupByType, Type.INT_TYPE})
-                );
                 tuple.setField(0, groupByField);
-                tuple.setField(1, new IntField(count));
-
-                return tuple;
+                tuple.setField(1, count);
             }
+            return tuple;
         }
 
         public void rewind() throws DbException, TransactionAbortedException {
-            this.iterator = this.stringAggregator.aggregatedCount.entrySet().iterator();
+            this.position = 0;
         }
 
         public TupleDesc getTupleDesc() {
@@ -73,16 +72,20 @@ public class StringAggregator implements Aggregator {
         }
 
         public void close() {
-            this.iterator = null;
+            this.position = -1;
         }
     }
 
+    private static final int INITIAL_GROUPS = 64;
+
     private int groupByField;
     private Type groupByType;
     private int aggregateField;
     private Op aggregationOperator;
 
-    private HashMap<Field, Integer> aggregatedCount;
+    private GroupIndex groups;
+    // the number of values of each group
+    private int[] counts;
 
     /**
      * Aggregate constructor
@@ -99,7 +102,8 @@ public class StringAggregator implements Aggregator {
         this.aggregateField = afield;
         this.aggregationOperator = what;
 
-        this.aggregatedCount = new HashMap<>();
+        this.groups = new GroupIndex();
+        this.counts = new int[INITIAL_GROUPS];
     }
 
     /**
@@ -110,11 +114,16 @@ public class StringAggregator implements Aggregator {
         Field groupByField = this.groupByField == Aggregator.NO_GROUPING
             ? null
             : tup.getField(this.groupByField);
-        
-        this.aggregatedCount.put(
-            groupByField,
-            this.aggregatedCount.getOrDefault(groupByField, 0) + 1
-        );
+
+        int group = this.groups.groupOf(groupByField);
+        if (group == this.counts.length) {
+            this.counts = Arrays.copyOf(this.counts, 2 * this.counts.length);
+        }
+        this.counts[group]++;
+    }
+
+    public int numGroups() {
+        return this.groups.size();
     }
 
     /**
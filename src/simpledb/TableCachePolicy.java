@@ -0,0 +1,101 @@
+package simpledb;
+
+/**
+ * TableCachePolicy describes how much of the shared BufferPool a table may
+ * use, and how eagerly its pages are evicted.  Policies are stored in the
+ * Catalog and enforced by the BufferPool's page replacement.
+ * <p>
+ * A policy consists of
+ * <ul>
+ * <li> a number of reserved pages: while the table has no more than this
+ *      many pages cached, its pages are only evicted if nothing else can be;
+ * <li> a maximum share of the pool: once the table holds that fraction of
+ *      the pool, a new page of the table replaces one of its own pages;
+ * <li> a priority class: among evictable pages, those of lower priority
+ *      tables are evicted first.
+ * </ul>
+ *
+ * @see Catalog#setCachePolicy
+ * @see BufferPool
+ */
+public class TableCachePolicy {
+
+    /** Priority classes, from the first to the last to be evicted. */
+    public enum Priority {
+        LOW, NORMAL, HIGH;
+
+        /**
+         * Parses a priority class name, ignoring case.
+         *
+         * @param s the name of the priority class
+         * @throws IllegalArgumentException if s is not a priority class
+         */
+        public static Priority parse(String s) {
+            return valueOf(s.trim().toUpperCase());
+        }
+    }
+
+    /** The policy of tables that have not been given one. */
+    public static final TableCachePolicy DEFAULT = new TableCachePolicy(0, 1.0, Priority.NORMAL);
+
+    private final int reservedPages;
+    private final double maxShare;
+    private final Priority priority;
+
+    /**
+     * Constructor.
+     *
+     * @param reservedPages the number of pages reserved for the table
+     * @param maxShare the largest fraction of the buffer pool the table may use, in (0, 1]
+     * @param priority the priority class of the table
+     */
+    public TableCachePolicy(int reservedPages, double maxShare, Priority priority) {
+        if (reservedPages < 0) {
+            throw new IllegalArgumentException("The number of reserved pages cannot be negative.");
+        }
+        if (maxShare <= 0 || maxShare > 1) {
+            throw new IllegalArgumentException("The maximum share must be in (0, 1].");
+        }
+        if (priority == null) {
+            throw new IllegalArgumentException("The priority class cannot be null.");
+        }
+
+        this.reservedPages = reservedPages;
+        this.maxShare = maxShare;
+        this.priority = priority;
+    }
+
+    /**
+     * @return the number of pages reserved for the table.
+     */
+    public int getReservedPages() {
+        return this.reservedPages;
+    }
+
+    /**
+     * @return the largest fraction of the buffer pool the table may use.
+     */
+    public double getMaxShare() {
+        return this.maxShare;
+    }
+
+    /**
+     * @param poolPages the capacity of the buffer pool
+     * @return the largest number of pages the table may use in a pool of
+     *   poolPages pages; always at least one.
+     */
+    public int getMaxPages(int poolPages) {
+        return Math.max(1, (int) Math.floor(this.maxShare * poolPages));
+    }
+
+    /**
+     * @return the priority class of the table.
+     */
+    public Priority getPriority() {
+        return this.priority;
+    }
+
+    public String toString() {
+        return "reserve=" + this.reservedPages + " share=" + this.maxShare + " priority=" + this.priority;
+    }
+}
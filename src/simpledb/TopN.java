@@ -0,0 +1,128 @@
+package simpledb;
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY with a LIMIT: it returns
+ * the first n tuples of its child in sorted order.
+ * <p>
+ * Rather than sorting the whole child, TopN keeps the best n tuples seen
+ * so far in a heap whose root is the worst of them, and replaces the root
+ * when a better tuple comes along.  This takes O(n) memory and
+ * O(m log n) comparisons for a child of m tuples.  Like {@link OrderBy},
+ * tuples that compare equal are returned in the order of the child.
+ */
+public class TopN extends AbstractDbIterator {
+
+    private final DbIterator child;
+    private final int limit;
+    private final Comparator<Ranked> order;
+
+    private ArrayList<Tuple> top;
+    private Iterator<Tuple> it;
+
+    // a tuple and its position in the child, to break ties
+    private static class Ranked {
+        private final Tuple tuple;
+        private final long position;
+
+        private Ranked(Tuple tuple, long position) {
+            this.tuple = tuple;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField the field to which the sort is applied.
+     * @param asc true if the sort order is ascending.
+     * @param limit the number of tuples to return.
+     * @param child the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, limit, child);
+    }
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator, sorting
+     * on several fields.
+     *
+     * @param orderbyFields the fields to which the sort is applied.
+     * @param asc for each field, true if its sort order is ascending.
+     * @param limit the number of tuples to return.
+     * @param child the tuples to sort.
+     * @see OrderBy#OrderBy(int[], boolean[], DbIterator, long)
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, DbIterator child) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("The limit must not be negative.");
+        }
+        this.child = child;
+        this.limit = limit;
+        TupleComparator comparator = new TupleComparator(orderbyFields, asc);
+        this.order = (a, b) -> {
+            int c = comparator.compare(a.tuple, b.tuple);
+            return c != 0 ? c : Long.compare(a.position, b.position);
+        };
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.child.getTupleDesc();
+    }
+
+    /** @return the number of tuples this returns at most. */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public void open()
+        throws DbException, NoSuchElementException, TransactionAbortedException {
+        this.child.open();
+        // the worst of the best tuples so far is at the root
+        PriorityQueue<Ranked> heap = new PriorityQueue<Ranked>(Math.max(1, Math.min(this.limit, 1024)),
+                                                               this.order.reversed());
+        long position = 0;
+        while (this.child.hasNext()) {
+            Ranked t = new Ranked(this.child.next(), position++);
+            if (heap.size() < this.limit) {
+                heap.add(t);
+            } else if (this.limit > 0 && this.order.compare(t, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(t);
+            }
+        }
+
+        ArrayList<Ranked> ranked = new ArrayList<Ranked>(heap);
+        Collections.sort(ranked, this.order);
+        this.top = new ArrayList<Tuple>(ranked.size());
+        for (Ranked t : ranked) {
+            this.top.add(t.tuple);
+        }
+        this.it = this.top.iterator();
+    }
+
+    public void close() {
+        super.close();
+        this.child.close();
+        this.top = null;
+        this.it = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.it = this.top.iterator();
+    }
+
+    /**
+     * AbstractDbIterator.readNext implementation.
+     * Returns the first tuples of the child in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more tuples
+     */
+    protected Tuple readNext()
+        throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (this.it != null && this.it.hasNext()) {
+            return this.it.next();
+        }
+        return null;
+    }
+}
@@ -8,39 +8,174 @@ import java.io.*;
  */
 
 public class Transaction {
+
+    /** How a commit makes the transaction durable.
+        <ul>
+        <li> SYNC: the commit returns once its COMMIT record and the
+        transaction's pages are on disk.
+        <li> ASYNC: the commit returns as soon as its log records are
+        appended, without waiting for a log force; they become durable
+        shortly after (see {@link LogFile#setAsyncCommitDelay}).  A crash
+        in between loses the transaction, but never leaves it half
+        applied.
+        </ul>
+    */
+    public enum CommitMode { SYNC, ASYNC }
+
+    // commit mode of transactions that do not choose one
+    private static volatile CommitMode defaultCommitMode = CommitMode.SYNC;
+
     TransactionId tid;
     boolean started = false;
+    boolean readOnly = false;
+    boolean optimistic = false;
+    CommitMode commitMode = null; // null for the default
 
     public Transaction() {
         tid = new TransactionId();
     }
 
+    /** Create a transaction.
+        @param readOnly whether the transaction only reads.  A read-only
+        transaction reads a snapshot of the database as of its start,
+        takes no locks and writes no log records.
+        @see BufferPool#beginSnapshot
+    */
+    public Transaction(boolean readOnly) {
+        this();
+        this.readOnly = readOnly;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /** Choose optimistic concurrency control for this transaction, which
+        suits transactions that rarely touch the same pages as others: it
+        takes no locks, and instead validates at commit that no other
+        transaction wrote the pages it used, aborting otherwise.  Must be
+        called before start().
+        @see BufferPool#beginOptimistic
+    */
+    public void setOptimistic(boolean optimistic) {
+        if (started) {
+            throw new IllegalStateException("The transaction has already started.");
+        }
+        this.optimistic = optimistic;
+    }
+
+    public boolean isOptimistic() {
+        return optimistic;
+    }
+
+    /** Set the commit mode of transactions that do not choose one with
+        setCommitMode(), e.g. for the rest of a console session. */
+    public static void setDefaultCommitMode(CommitMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("The commit mode cannot be null.");
+        }
+        defaultCommitMode = mode;
+    }
+
+    public static CommitMode getDefaultCommitMode() {
+        return defaultCommitMode;
+    }
+
+    /** Choose how this transaction commits; null reverts to the default.
+        @see #setDefaultCommitMode
+    */
+    public void setCommitMode(CommitMode mode) {
+        this.commitMode = mode;
+    }
+
+    public CommitMode getCommitMode() {
+        return commitMode != null ? commitMode : defaultCommitMode;
+    }
+
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (optimistic) {
+            Database.getBufferPool().beginOptimistic(tid);
+        }
     }
 
     public TransactionId getId() {
         return tid;
     }
 
-    /** Finish the transaction */
+    /** Finish the transaction
+        @throws IOException if the transaction is optimistic and fails
+        validation; it is aborted then, and the exception's cause is a
+        TransactionAbortedException
+        @see #commitOptimistic
+    */
     public void commit() throws IOException {
         transactionComplete(false);
     }
 
+    /** Finish the transaction with the specified commit mode
+        @see #setCommitMode
+    */
+    public void commit(CommitMode mode) throws IOException {
+        setCommitMode(mode);
+        commit();
+    }
+
+    /** Finish the transaction like commit(), but report a failed
+        validation of an optimistic transaction as such, so that the
+        caller can retry it.
+        @throws TransactionAbortedException if the transaction is
+        optimistic and fails validation; it is aborted then
+    */
+    public void commitOptimistic() throws IOException, TransactionAbortedException {
+        complete(false);
+    }
+
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
+        try {
+            complete(abort);
+        } catch (TransactionAbortedException e) {
+            throw new IOException("Transaction " + tid.getId() + " failed validation", e);
+        }
+    }
 
-        if (started) {
+    private void complete(boolean abort) throws IOException, TransactionAbortedException {
+        if (started && optimistic && !abort) {
+            try {
+                Database.getBufferPool().installOptimistic(tid);
+            } catch (TransactionAbortedException e) {
+                complete(true);
+                throw e;
+            } catch (DbException e) {
+                complete(true);
+                throw new IOException("Cannot install the pages of transaction " + tid.getId(), e);
+            }
+        }
+
+        if (started && readOnly) {
+            // nothing to write; just let go of the snapshot
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write commit / abort records
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
+            } else if (getCommitMode() == CommitMode.ASYNC) {
+                //log the dirty pages for this transaction, and let the log
+                //and the pages reach the disk in the background
+                Database.getBufferPool().logPages(tid);
+                Database.getLogFile().logCommit(tid, false);
             } else {
                 //write all the dirty pages for this transaction out
                 Database.getBufferPool().flushPages(tid);
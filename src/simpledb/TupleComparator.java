@@ -0,0 +1,183 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TupleComparator orders tuples by one or more fields, each ascending or
+ * descending; ties on a field are broken by the next one.
+ * <p>
+ * Besides comparing two tuples field by field, a TupleComparator can sort
+ * a list of tuples by their <em>normalized keys</em> (see {@link #sort}).
+ * The normalized key of a tuple is a string of bytes encoding its sort
+ * fields, such that comparing the keys of two tuples byte by byte, as
+ * unsigned numbers, orders the tuples the way {@link #compare} does:
+ * <ul>
+ * <li> an integer is stored big-endian with its sign bit flipped;
+ * <li> a string is stored as its characters, two bytes each, padded with
+ *      zeros to the longest string of the field, followed by its length;
+ * <li> the bytes of a descending field are inverted.
+ * </ul>
+ * Each key is computed once per tuple, and its first eight bytes are kept
+ * in a long, so most comparisons are a single primitive comparison.
+ */
+class TupleComparator implements Comparator<Tuple> {
+
+    private final int[] fields;
+    private final boolean[] asc;
+
+    /**
+     * Creates a comparator ordering tuples by one field.
+     *
+     * @param field the field to order by
+     * @param asc true if the order is ascending
+     */
+    public TupleComparator(int field, boolean asc) {
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    /**
+     * Creates a comparator ordering tuples by several fields.
+     *
+     * @param fields the fields to order by, the first one first
+     * @param asc for each field, true if its order is ascending
+     */
+    public TupleComparator(int[] fields, boolean[] asc) {
+        if (fields.length == 0 || fields.length != asc.length) {
+            throw new IllegalArgumentException("Expected an order for each of one or more fields.");
+        }
+        this.fields = fields.clone();
+        this.asc = asc.clone();
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        for (int i = 0; i < this.fields.length; i++) {
+            int c = compareFields(o1.getField(this.fields[i]), o2.getField(this.fields[i]));
+            if (c != 0) {
+                return this.asc[i] ? c : -c;
+            }
+        }
+        return 0;
+    }
+
+    /** @return the order of two fields of the same type, in one comparison
+        for the types SimpleDb has */
+    static int compareFields(Field f1, Field f2) {
+        if (f1 instanceof IntField) {
+            return Integer.compare(((IntField) f1).getValue(), ((IntField) f2).getValue());
+        }
+        if (f1 instanceof StringField) {
+            return ((StringField) f1).getValue().compareTo(((StringField) f2).getValue());
+        }
+        if (f1.compare(Predicate.Op.EQUALS, f2)) {
+            return 0;
+        }
+        return f1.compare(Predicate.Op.GREATER_THAN, f2) ? 1 : -1;
+    }
+
+    /**
+     * Sorts a list of tuples into this order, stably, by their normalized
+     * keys.  The tuples are sorted with {@link Arrays#parallelSort}, which
+     * uses several threads for large lists.
+     */
+    public void sort(List<Tuple> tuples) {
+        if (tuples.size() < 2) {
+            return;
+        }
+        // the longest string of each field, to pad the others to
+        int[] widths = new int[this.fields.length];
+        for (Tuple t : tuples) {
+            for (int i = 0; i < this.fields.length; i++) {
+                Field f = t.getField(this.fields[i]);
+                if (f instanceof StringField) {
+                    widths[i] = Math.max(widths[i], ((StringField) f).getValue().length());
+                } else if (!(f instanceof IntField)) {
+                    // no normalized key for this type
+                    Collections.sort(tuples, this);
+                    return;
+                }
+            }
+        }
+
+        Keyed[] keyed = new Keyed[tuples.size()];
+        int n = 0;
+        for (Tuple t : tuples) {
+            keyed[n++] = new Keyed(t, this.normalizedKey(t, widths));
+        }
+        Arrays.parallelSort(keyed);
+        ListIterator<Tuple> it = tuples.listIterator();
+        for (Keyed k : keyed) {
+            it.next();
+            it.set(k.tuple);
+        }
+    }
+
+    /** @return the normalized key of a tuple whose string fields are no
+        longer than widths */
+    private byte[] normalizedKey(Tuple t, int[] widths) {
+        int length = 0;
+        for (int i = 0; i < this.fields.length; i++) {
+            length += t.getField(this.fields[i]) instanceof IntField ? 4 : 2 * widths[i] + 4;
+        }
+        byte[] key = new byte[length];
+        int pos = 0;
+        for (int i = 0; i < this.fields.length; i++) {
+            int start = pos;
+            Field f = t.getField(this.fields[i]);
+            if (f instanceof IntField) {
+                pos = putInt(key, pos, ((IntField) f).getValue() ^ Integer.MIN_VALUE);
+            } else {
+                String s = ((StringField) f).getValue();
+                for (int c = 0; c < s.length(); c++) {
+                    key[pos++] = (byte) (s.charAt(c) >>> 8);
+                    key[pos++] = (byte) s.charAt(c);
+                }
+                pos += 2 * (widths[i] - s.length());
+                pos = putInt(key, pos, s.length());
+            }
+            if (!this.asc[i]) {
+                for (int b = start; b < pos; b++) {
+                    key[b] = (byte) ~key[b];
+                }
+            }
+        }
+        return key;
+    }
+
+    private static int putInt(byte[] key, int pos, int v) {
+        key[pos++] = (byte) (v >>> 24);
+        key[pos++] = (byte) (v >>> 16);
+        key[pos++] = (byte) (v >>> 8);
+        key[pos++] = (byte) v;
+        return pos;
+    }
+
+    /** A tuple and its normalized key, whose first eight bytes are in prefix. */
+    private static class Keyed implements Comparable<Keyed> {
+        private final Tuple tuple;
+        private final byte[] key;
+        private final long prefix;
+
+        private Keyed(Tuple tuple, byte[] key) {
+            this.tuple = tuple;
+            this.key = key;
+            long p = 0;
+            for (int i = 0; i < 8; i++) {
+                p = (p << 8) | (i < key.length ? key[i] & 0xff : 0);
+            }
+            this.prefix = p;
+        }
+
+        public int compareTo(Keyed o) {
+            int c = Long.compareUnsigned(this.prefix, o.prefix);
+            if (c != 0 || this.key.length <= 8) {
+                return c;
+            }
+            for (int i = 8; i < this.key.length; i++) {
+                if (this.key[i] != o.key[i]) {
+                    return (this.key[i] & 0xff) - (o.key[i] & 0xff);
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+
+/**
+ * TupleSpillFile is a temporary file of tuples, for operators whose state
+ * does not fit in memory.  Tuples are appended, and can then be read back
+ * in the order they were added, any number of times.  Fields are stored
+ * the way heap pages store them.
+ * <p>
+ * The file is only deleted by {@link #delete}: operators delete their
+ * spill files when they are closed, and when spilling fails.
+ */
+public class TupleSpillFile {
+
+    /** Size of the buffers used to write and read the file. */
+    public static final int BUFFER_SIZE = 8192;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int numTuples = 0;
+
+    /**
+     * Creates an empty spill file.
+     *
+     * @param td the schema of the tuples to spill
+     */
+    public TupleSpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".tmp");
+        try {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file), BUFFER_SIZE));
+        } catch (IOException e) {
+            this.file.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates empty spill files, deleting them all if one cannot be
+     * created.
+     *
+     * @param td the schema of the tuples to spill
+     * @param n the number of files
+     */
+    public static TupleSpillFile[] create(TupleDesc td, int n) throws IOException {
+        TupleSpillFile[] files = new TupleSpillFile[n];
+        try {
+            for (int i = 0; i < n; i++) {
+                files[i] = new TupleSpillFile(td);
+            }
+        } catch (IOException e) {
+            deleteAll(files);
+            throw e;
+        }
+        return files;
+    }
+
+    /**
+     * Deletes spill files; null entries and files deleted already are
+     * skipped.
+     */
+    public static void deleteAll(TupleSpillFile[] files) {
+        if (files == null) {
+            return;
+        }
+        for (TupleSpillFile f : files) {
+            if (f != null) {
+                f.delete();
+            }
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    /** @return the number of tuples in the file. */
+    public int size() {
+        return this.numTuples;
+    }
+
+    /** @return the number of bytes the tuples take in the file. */
+    public long getBytes() {
+        return (long) this.numTuples * this.td.getSize();
+    }
+
+    /**
+     * Appends a tuple to the file.
+     */
+    public void add(Tuple t) throws IOException {
+        if (this.out == null) {
+            throw new IllegalStateException("The spill file was deleted.");
+        }
+        for (int i = 0; i < this.td.numFields(); i++) {
+            t.getField(i).serialize(this.out);
+        }
+        this.numTuples++;
+    }
+
+    /**
+     * Starts reading the file from its first tuple.  Tuples added later
+     * are not returned by the reader.
+     */
+    public Reader read() throws IOException {
+        if (this.out == null) {
+            throw new IllegalStateException("The spill file was deleted.");
+        }
+        this.out.flush();
+        return new Reader(this.numTuples);
+    }
+
+    /**
+     * Deletes the file; it cannot be used anymore.
+     */
+    public void delete() {
+        if (this.out != null) {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                // the file is going away anyway
+            }
+            this.out = null;
+        }
+        this.file.delete();
+    }
+
+    /** Reads the tuples of a spill file in the order they were added. */
+    public class Reader implements Closeable {
+        private DataInputStream in;
+        private int remaining;
+
+        private Reader(int numTuples) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            this.remaining = numTuples;
+        }
+
+        /** @return the next tuple, or null if there are no more tuples */
+        public Tuple next() throws IOException {
+            if (this.remaining == 0) {
+                return null;
+            }
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    t.setField(i, td.getType(i).parse(this.in));
+                }
+            } catch (ParseException e) {
+                throw new IOException("Cannot read a tuple from " + file, e);
+            }
+            this.remaining--;
+            return t;
+        }
+
+        public void close() throws IOException {
+            this.in.close();
+        }
+    }
+}
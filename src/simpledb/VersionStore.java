@@ -0,0 +1,186 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * VersionStore keeps the old committed versions of pages that snapshot
+ * transactions may still read, so that read-only transactions see the
+ * database as of the moment they started, without taking locks and
+ * without blocking writers (multi-version snapshot isolation).
+ * <p>
+ * Every commit that writes pages gets the next commit timestamp.  A
+ * snapshot started when the last commit timestamp was s reads, for every
+ * page, the version that was committed at or before s.  When a commit
+ * replaces a page version that an active snapshot may still need, the old
+ * version is kept here, tagged with the timestamp of the commit that
+ * replaced it; a snapshot s reads the oldest kept version replaced after
+ * s, or the current committed version if there is none.  Old versions are
+ * dropped once no active snapshot is older than the commit that replaced
+ * them.
+ * <p>
+ * The current committed version of a page is its before image (see
+ * {@link Page#getBeforeImage}), except for pages that a running
+ * transaction flushed and that were evicted since: their committed
+ * versions are kept here until the transaction completes, as neither the
+ * disk nor a page read back from it holds them anymore.
+ * <p>
+ * VersionStore is not thread-safe; it is guarded by the BufferPool.
+ *
+ * @see BufferPool#beginSnapshot
+ */
+public class VersionStore {
+
+    private static class Version {
+        private final long replacedAt;
+        private final Page page;
+
+        public Version(long replacedAt, Page page) {
+            this.replacedAt = replacedAt;
+            this.page = page;
+        }
+    }
+
+    private long lastCommit = 0;
+    // active snapshots and the commit timestamps they read as of
+    private final HashMap<TransactionId, Long> snapshots = new HashMap<TransactionId, Long>();
+    // replaced versions of each page, oldest first
+    private final HashMap<PageId, ArrayList<Version>> versions = new HashMap<PageId, ArrayList<Version>>();
+    // committed versions of pages evicted after a running transaction
+    // flushed them
+    private final HashMap<PageId, Page> evictedVersions = new HashMap<PageId, Page>();
+    private int numVersions = 0;
+
+    /**
+     * Starts a snapshot as of the last commit.
+     *
+     * @return the commit timestamp the snapshot reads as of
+     */
+    public long beginSnapshot(TransactionId tid) {
+        this.snapshots.put(tid, this.lastCommit);
+        return this.lastCommit;
+    }
+
+    /**
+     * Ends a snapshot, dropping the versions only it could read.
+     */
+    public void endSnapshot(TransactionId tid) {
+        if (this.snapshots.remove(tid) != null) {
+            this.collect();
+        }
+    }
+
+    /**
+     * @return the commit timestamp the specified transaction reads as of,
+     *   or null if it is not a snapshot transaction
+     */
+    public Long getSnapshot(TransactionId tid) {
+        if (tid == null) {
+            return null;
+        }
+        return this.snapshots.get(tid);
+    }
+
+    /** @return the number of active snapshots. */
+    public int getNumSnapshots() {
+        return this.snapshots.size();
+    }
+
+    /** @return the number of old page versions kept. */
+    public int getNumVersions() {
+        return this.numVersions;
+    }
+
+    /**
+     * Returns the version of a page that a snapshot reads, if it is kept
+     * here.
+     *
+     * @param snapshot the commit timestamp of the snapshot
+     * @param pid the page to read
+     * @return the version, or null if the snapshot reads the current
+     *   committed version of the page
+     */
+    public Page getVersion(long snapshot, PageId pid) {
+        ArrayList<Version> pageVersions = this.versions.get(pid);
+        if (pageVersions != null) {
+            for (Version v : pageVersions) {
+                if (v.replacedAt > snapshot) {
+                    return v.page;
+                }
+            }
+        }
+        return this.evictedVersions.get(pid);
+    }
+
+    /**
+     * Called when a page that a running transaction wrote is evicted.  If
+     * the page was flushed since it was last committed, its committed
+     * version is kept until the transaction completes.
+     */
+    public void evicted(Page page) {
+        Page committed = page.getBeforeImage();
+        if (!this.evictedVersions.containsKey(page.getId())
+            && !Arrays.equals(committed.getPageData(), page.getPageData())) {
+            this.evictedVersions.put(page.getId(), committed);
+        }
+    }
+
+    /**
+     * Records the commit of a transaction that wrote pages, keeping the
+     * versions it replaced while active snapshots may read them.
+     *
+     * @param resident the written pages that are still in the BufferPool,
+     *   whose before images are still the versions being replaced
+     * @param written the ids of all the pages the transaction wrote
+     */
+    public void commit(Map<PageId, Page> resident, Iterable<PageId> written) {
+        this.lastCommit++;
+        for (PageId pid : written) {
+            Page replaced = this.evictedVersions.remove(pid);
+            Page current = resident.get(pid);
+            if (replaced == null && current != null) {
+                replaced = current.getBeforeImage();
+                if (Arrays.equals(replaced.getPageData(), current.getPageData())) {
+                    replaced = null;
+                }
+            }
+            if (replaced != null && !this.snapshots.isEmpty()) {
+                this.versions.computeIfAbsent(pid, k -> new ArrayList<Version>())
+                    .add(new Version(this.lastCommit, replaced));
+                this.numVersions++;
+            }
+        }
+    }
+
+    /**
+     * Records the abort of a transaction that wrote pages; rolling back
+     * restores their committed versions on disk.
+     */
+    public void abort(Iterable<PageId> written) {
+        for (PageId pid : written) {
+            this.evictedVersions.remove(pid);
+        }
+    }
+
+    private void collect() {
+        long oldest = Long.MAX_VALUE;
+        for (long snapshot : this.snapshots.values()) {
+            oldest = Math.min(oldest, snapshot);
+        }
+        // a snapshot s needs the versions replaced after s
+        Iterator<ArrayList<Version>> it = this.versions.values().iterator();
+        while (it.hasNext()) {
+            ArrayList<Version> pageVersions = it.next();
+            while (!pageVersions.isEmpty() && pageVersions.get(0).replacedAt <= oldest) {
+                pageVersions.remove(0);
+                this.numVersions--;
+            }
+            if (pageVersions.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+}
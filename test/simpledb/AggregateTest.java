@@ -93,6 +93,22 @@ public class AggregateTest extends SimpleDbTestBase {
     assertEquals(expected, actual);
   }
 
+  /**
+   * Unit test for Aggregate.getTupleDesc() without grouping, and with
+   * several aggregates
+   */
+  @Test public void getTupleDescMultiple() {
+    Aggregate op = new Aggregate(scan2, 1, Aggregator.NO_GROUPING,
+        Aggregator.Op.COUNT);
+    // a count of strings is an integer
+    assertEquals(Utility.getTupleDesc(1), op.getTupleDesc());
+
+    op = new Aggregate(scan1, new int[] { 1, 1, 0 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.MAX, Aggregator.Op.COUNT },
+        new int[] { 0, 1 });
+    assertEquals(Utility.getTupleDesc(5), op.getTupleDesc());
+  }
+
   /**
    * Unit test for Aggregate.rewind()
    */
@@ -176,6 +192,102 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate with more groups than fit in its memory budget
+   */
+  @Test public void spilledAggregate() throws Exception {
+    int groups = 2000;
+    int[] values = new int[2 * 3 * groups];
+    for (int i = 0; i < 3 * groups; i++) {
+      values[2 * i] = i % groups;
+      values[2 * i + 1] = i;
+    }
+    Aggregate inMemory = new Aggregate(TestUtil.createTupleList(width1, values), 1, 0,
+        Aggregator.Op.AVG);
+    // room for about a hundred groups
+    Aggregate spilled = new Aggregate(TestUtil.createTupleList(width1, values), 1, 0,
+        Aggregator.Op.AVG, 100 * 36);
+    inMemory.open();
+    spilled.open();
+    assertEquals(0, inMemory.getPartitionsWritten());
+    assertTrue(spilled.getPartitionsWritten() > 0);
+
+    int count = 0;
+    while (spilled.hasNext()) {
+      spilled.next();
+      count++;
+    }
+    assertEquals(groups, count);
+    TestUtil.matchAllTuples(inMemory, spilled);
+
+    spilled.close();
+    inMemory.close();
+  }
+
+  /**
+   * Unit test for Aggregate.getNext() with several aggregates grouped by
+   *   several fields
+   */
+  @Test public void multipleAggregates() throws Exception {
+    DbIterator child = TestUtil.createTupleList(3,
+        new Object[] { "a", 1, 2,
+                       "a", 1, 4,
+                       "a", 2, 6,
+                       "b", 1, 2,
+                       "a", 1, 9 });
+    Aggregate op = new Aggregate(child, new int[] { 2, 2, 0, 2 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MAX },
+        new int[] { 0, 1 });
+    op.open();
+    DbIterator expected = TestUtil.createTupleList(6,
+        new Object[] { "a", 1, 3, 15, 3, 9,
+                       "a", 2, 1, 6, 1, 6,
+                       "b", 1, 1, 2, 1, 2 });
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+
+    int count = 0;
+    op.rewind();
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(3, count);
+  }
+
+  /**
+   * Unit test for Aggregate with several aggregates and more groups of
+   *   several fields than fit in its memory budget
+   */
+  @Test public void spilledMultipleAggregates() throws Exception {
+    int n = 3000;
+    int[] values = new int[3 * n];
+    for (int i = 0; i < n; i++) {
+      values[3 * i] = i % 40;
+      values[3 * i + 1] = i % 30;
+      values[3 * i + 2] = i;
+    }
+    int[] afields = { 2, 2, 2 };
+    Aggregator.Op[] aops = { Aggregator.Op.MIN, Aggregator.Op.AVG, Aggregator.Op.COUNT };
+    int[] gfields = { 0, 1 };
+    Aggregate inMemory = new Aggregate(TestUtil.createTupleList(3, values), afields, aops, gfields);
+    Aggregate spilled = new Aggregate(TestUtil.createTupleList(3, values), afields, aops, gfields, 2000);
+    inMemory.open();
+    spilled.open();
+    assertTrue(spilled.getPartitionsWritten() > 0);
+
+    int count = 0;
+    while (spilled.hasNext()) {
+      spilled.next();
+      count++;
+    }
+    // the groups are the distinct values of i % 120
+    assertEquals(120, count);
+    TestUtil.matchAllTuples(inMemory, spilled);
+    spilled.close();
+    inMemory.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,212 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+
+    private static final int NUM_PAGES = 10;
+
+    private HeapFile file;
+    private TransactionId tid;
+
+    /**
+     * Creates a table that spans NUM_PAGES pages, with a buffer pool that
+     * can hold all of them.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // 504 two-column tuples fit on a page
+        file = SystemTestUtil.createRandomHeapFile(2, 504 * NUM_PAGES, null, null);
+        Database.resetBufferPool(NUM_PAGES);
+        tid = new TransactionId();
+    }
+
+    private Page getPage(int pageno) throws Exception {
+        return Database.getBufferPool().getPage(tid, new HeapPageId(file.getId(), pageno), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Unit test for BufferPool.resize() when growing the pool
+     */
+    @Test public void growKeepsPages() throws Exception {
+        Page first = getPage(0);
+        Database.resizeBufferPool(2 * NUM_PAGES);
+        assertEquals(2 * NUM_PAGES, Database.getBufferPool().getNumPages());
+        assertSame(first, getPage(0));
+    }
+
+    /**
+     * Unit test for BufferPool.resize() when shrinking the pool: the most
+     * recently used pages survive.
+     */
+    @Test public void shrinkKeepsWarmPages() throws Exception {
+        Page[] pages = new Page[NUM_PAGES];
+        for (int i = 0; i < NUM_PAGES; i++) {
+            pages[i] = getPage(i);
+        }
+        // touch the first three pages again, so they are the warmest
+        for (int i = 0; i < 3; i++) {
+            getPage(i);
+        }
+
+        int evicted = Database.getBufferPool().resize(3);
+        assertEquals(NUM_PAGES - 3, evicted);
+        assertEquals(3, Database.getBufferPool().getNumResidentPages());
+
+        for (int i = 0; i < 3; i++) {
+            assertSame(pages[i], getPage(i));
+        }
+        assertNotSame(pages[NUM_PAGES - 1], getPage(NUM_PAGES - 1));
+        assertEquals(3, Database.getBufferPool().getNumResidentPages());
+    }
+
+    /**
+     * Unit test for eviction honouring a table's reserved pages
+     */
+    @Test public void reservedPagesSurviveScan() throws Exception {
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        Database.getCatalog().setCachePolicy(hot.getId(),
+            new TableCachePolicy(2, 1.0, TableCachePolicy.Priority.NORMAL));
+        BufferPool pool = Database.getBufferPool();
+
+        Page hot0 = pool.getPage(tid, new HeapPageId(hot.getId(), 0), Permissions.READ_ONLY);
+        Page hot1 = pool.getPage(tid, new HeapPageId(hot.getId(), 1), Permissions.READ_ONLY);
+        for (int i = 0; i < NUM_PAGES; i++) {
+            getPage(i);
+        }
+
+        assertEquals(2, pool.numCachedPages(hot.getId()));
+        assertSame(hot0, pool.getPage(tid, new HeapPageId(hot.getId(), 0), Permissions.READ_ONLY));
+        assertSame(hot1, pool.getPage(tid, new HeapPageId(hot.getId(), 1), Permissions.READ_ONLY));
+    }
+
+    /**
+     * Unit test for eviction capping a table at its maximum share
+     */
+    @Test public void maxShareCapsTable() throws Exception {
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        Database.getCatalog().setCachePolicy(file.getId(),
+            new TableCachePolicy(0, 0.5, TableCachePolicy.Priority.LOW));
+        BufferPool pool = Database.getBufferPool();
+
+        pool.getPage(tid, new HeapPageId(other.getId(), 0), Permissions.READ_ONLY);
+        pool.getPage(tid, new HeapPageId(other.getId(), 1), Permissions.READ_ONLY);
+        for (int i = 0; i < NUM_PAGES; i++) {
+            getPage(i);
+        }
+
+        assertEquals(NUM_PAGES / 2, pool.numCachedPages(file.getId()));
+        assertEquals(2, pool.numCachedPages(other.getId()));
+    }
+
+    /**
+     * Unit test for BufferPool.saveWorkingSet() and prefetchWorkingSet()
+     */
+    @Test public void restoreWorkingSet() throws Exception {
+        for (int i = 0; i < NUM_PAGES; i++) {
+            getPage(i);
+        }
+        File saved = File.createTempFile("workingset", ".dat");
+        saved.deleteOnExit();
+        assertEquals(NUM_PAGES, Database.getBufferPool().saveWorkingSet(saved));
+
+        // a smaller, cold pool gets the most recently used pages back
+        BufferPool pool = Database.resetBufferPool(4);
+        pool.prefetchWorkingSet(saved).join();
+        assertEquals(4, pool.getNumResidentPages());
+        Page warm = pool.getPage(tid, new HeapPageId(file.getId(), NUM_PAGES - 1), Permissions.READ_ONLY);
+        assertEquals(4, pool.getNumResidentPages());
+        assertSame(warm, pool.getPage(tid, new HeapPageId(file.getId(), NUM_PAGES - 1), Permissions.READ_ONLY));
+    }
+
+    /**
+     * Unit test for the compressed second tier: evicted pages come back
+     * from it unchanged, without a disk read.
+     */
+    @Test public void compressedCacheHit() throws Exception {
+        BufferPool pool = Database.resetBufferPool(2);
+        pool.setCompressedCacheSize(NUM_PAGES * BufferPool.PAGE_SIZE);
+        CompressedPageCache compressed = pool.getCompressedCache();
+
+        byte[] original = pool.getPage(tid, new HeapPageId(file.getId(), 0), Permissions.READ_ONLY).getPageData();
+        for (int i = 1; i < NUM_PAGES; i++) {
+            pool.getPage(tid, new HeapPageId(file.getId(), i), Permissions.READ_ONLY);
+        }
+        assertEquals(NUM_PAGES - 2, compressed.getNumPages());
+
+        Page page = pool.getPage(tid, new HeapPageId(file.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(1, compressed.getHits());
+        assertArrayEquals(original, page.getPageData());
+
+        // a discarded page must not come back from the second tier
+        pool.getPage(tid, new HeapPageId(file.getId(), 3), Permissions.READ_ONLY);
+        pool.discardPage(new HeapPageId(file.getId(), 1));
+        long misses = compressed.getMisses();
+        pool.getPage(tid, new HeapPageId(file.getId(), 1), Permissions.READ_ONLY);
+        assertEquals(misses + 1, compressed.getMisses());
+    }
+
+    /**
+     * Unit test for the compressed second tier keeping a page whose load
+     * failed because no page could be evicted.
+     */
+    @Test public void compressedCacheKeepsPageOnFailedLoad() throws Exception {
+        BufferPool pool = Database.resetBufferPool(1);
+        pool.setCompressedCacheSize(NUM_PAGES * BufferPool.PAGE_SIZE);
+        CompressedPageCache compressed = pool.getCompressedCache();
+
+        byte[] original = pool.getPage(tid, new HeapPageId(file.getId(), 0), Permissions.READ_ONLY).getPageData();
+        Page dirty = pool.getPage(tid, new HeapPageId(file.getId(), 1), Permissions.READ_WRITE);
+        dirty.markDirty(true, tid);
+        assertEquals(1, compressed.getNumPages());
+
+        try {
+            pool.getPage(tid, new HeapPageId(file.getId(), 0), Permissions.READ_ONLY);
+            fail("Expected the only page of the pool to be unevictable.");
+        } catch (DbException e) {
+            // expected
+        }
+        assertEquals(1, compressed.getNumPages());
+
+        dirty.markDirty(false, null);
+        long hits = compressed.getHits();
+        Page page = pool.getPage(tid, new HeapPageId(file.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(hits + 1, compressed.getHits());
+        assertArrayEquals(original, page.getPageData());
+    }
+
+    /**
+     * Unit test for the compressed second tier staying within its budget
+     */
+    @Test public void compressedCacheBudget() throws Exception {
+        BufferPool pool = Database.resetBufferPool(1);
+        pool.setCompressedCacheSize(BufferPool.PAGE_SIZE);
+        for (int i = 0; i < NUM_PAGES; i++) {
+            pool.getPage(tid, new HeapPageId(file.getId(), i), Permissions.READ_ONLY);
+        }
+        CompressedPageCache compressed = pool.getCompressedCache();
+        assertTrue(compressed.getUsedBytes() <= BufferPool.PAGE_SIZE);
+        assertTrue(compressed.getNumPages() < NUM_PAGES - 1);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
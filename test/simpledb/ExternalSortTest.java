@@ -0,0 +1,127 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExternalSortTest extends SimpleDbTestBase {
+
+  /**
+   * @return the tuples (i * 7919 % n, i) for i in [0, n)
+   */
+  private static DbIterator shuffled(int n) {
+    int[] values = new int[2 * n];
+    for (int i = 0; i < n; i++) {
+      values[2 * i] = (int) ((long) i * 7919 % n);
+      values[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, values);
+  }
+
+  private static void checkSorted(DbIterator it, int n) throws Exception {
+    for (int i = 0; i < n; i++) {
+      assertTrue(it.hasNext());
+      assertEquals(new IntField(i), it.next().getField(0));
+    }
+    assertTrue(TestUtil.checkExhausted(it));
+  }
+
+  /** @return the number of spill files in the temporary directory */
+  private static int numSpillFiles() {
+    String[] names = new File(System.getProperty("java.io.tmpdir")).list();
+    int n = 0;
+    for (String name : names) {
+      if (name.startsWith("spill")) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Unit test for ExternalSort of a child that fits in memory
+   */
+  @Test public void inMemory() throws Exception {
+    ExternalSort sort = new ExternalSort(shuffled(1000), new TupleComparator(0, true));
+    sort.open();
+    checkSorted(sort, 1000);
+    assertEquals(0, sort.getRunsWritten());
+  }
+
+  /**
+   * Unit test for ExternalSort writing and merging sorted runs
+   */
+  @Test public void spilled() throws Exception {
+    int tupleSize = Utility.getTupleDesc(2).getSize();
+    ExternalSort sort = new ExternalSort(shuffled(1000), new TupleComparator(0, true), 100 * tupleSize);
+    int spillFiles = numSpillFiles();
+    sort.open();
+    checkSorted(sort, 1000);
+    // ten runs, and the runs of the passes merging them two at a time
+    assertEquals(10 + 5 + 3 + 2, sort.getRunsWritten());
+
+    sort.rewind();
+    checkSorted(sort, 1000);
+    sort.close();
+    // the runs are deleted on close, not when the JVM exits
+    assertEquals(spillFiles, numSpillFiles());
+  }
+
+  /**
+   * Unit test for ExternalSort with more runs than it can merge at once
+   */
+  @Test public void multiPassMerge() throws Exception {
+    int tupleSize = Utility.getTupleDesc(2).getSize();
+    // a budget of two read buffers merges two runs at a time
+    long memory = 2 * TupleSpillFile.BUFFER_SIZE;
+    int n = (int) (5 * memory / tupleSize);
+    ExternalSort sort = new ExternalSort(shuffled(n), new TupleComparator(0, true), memory);
+    sort.open();
+    checkSorted(sort, n);
+    assertTrue(sort.getRunsWritten() > 5);
+    sort.close();
+  }
+
+  /**
+   * Unit test for the stability of ExternalSort
+   */
+  @Test public void stable() throws Exception {
+    int n = 1000;
+    int[] values = new int[2 * n];
+    for (int i = 0; i < n; i++) {
+      values[2 * i] = i % 3;
+      values[2 * i + 1] = i;
+    }
+    int tupleSize = Utility.getTupleDesc(2).getSize();
+    ExternalSort sort = new ExternalSort(TestUtil.createTupleList(2, values),
+        new TupleComparator(0, true), 64 * tupleSize);
+    sort.open();
+    int lastKey = -1;
+    int lastValue = -1;
+    while (sort.hasNext()) {
+      Tuple t = sort.next();
+      int key = ((IntField) t.getField(0)).getValue();
+      int value = ((IntField) t.getField(1)).getValue();
+      if (key == lastKey) {
+        assertTrue(value > lastValue);
+      }
+      lastKey = key;
+      lastValue = value;
+    }
+    assertEquals(2, lastKey);
+    sort.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExternalSortTest.class);
+  }
+}
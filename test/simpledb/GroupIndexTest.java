@@ -0,0 +1,83 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GroupIndexTest extends SimpleDbTestBase {
+
+  /**
+   * Unit test for GroupIndex numbering integer values, past the initial
+   * size of its table
+   */
+  @Test public void integers() {
+    GroupIndex index = new GroupIndex();
+    int n = 10000;
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < n; i++) {
+        // negative values, and values that collide in the low bits
+        int value = (i % 2 == 0 ? -i : i) << 8;
+        assertEquals(i, index.groupOf(new IntField(value)));
+      }
+    }
+    assertEquals(n, index.size());
+    assertEquals(new IntField(-2 << 8), index.getGroup(2));
+  }
+
+  /**
+   * Unit test for GroupIndex numbering strings
+   */
+  @Test public void strings() {
+    GroupIndex index = new GroupIndex();
+    assertEquals(0, index.groupOf(new StringField("a", Type.STRING_LEN)));
+    assertEquals(1, index.groupOf(new StringField("b", Type.STRING_LEN)));
+    assertEquals(0, index.groupOf(new StringField("a", Type.STRING_LEN)));
+    assertEquals(2, index.size());
+    assertEquals(new StringField("b", Type.STRING_LEN), index.getGroup(1));
+  }
+
+  /**
+   * Unit test for GroupIndex numbering groups of several fields
+   */
+  @Test public void severalFields() throws Exception {
+    DbIterator child = TestUtil.createTupleList(3,
+        new Object[] { "a", 1, 0,
+                       "a", 2, 1,
+                       "b", 1, 2,
+                       "a", 1, 3,
+                       "b", 2, 4 });
+    int[] fields = { 0, 1 };
+    int[] expected = { 0, 1, 2, 0, 3 };
+    GroupIndex index = new GroupIndex();
+    child.open();
+    for (int group : expected) {
+      assertEquals(group, index.groupOf(child.next(), fields));
+    }
+    assertEquals(4, index.size());
+    Field[] values = index.getGroupFields(3);
+    assertEquals(new StringField("b", Type.STRING_LEN), values[0]);
+    assertEquals(new IntField(2), values[1]);
+  }
+
+  /**
+   * Unit test for GroupIndex without grouping
+   */
+  @Test public void noGrouping() {
+    GroupIndex index = new GroupIndex();
+    assertEquals(0, index.groupOf(null));
+    assertEquals(0, index.groupOf(null));
+    assertEquals(1, index.size());
+    assertNull(index.getGroup(0));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(GroupIndexTest.class);
+  }
+}
@@ -0,0 +1,189 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  DbIterator scan1;
+  DbIterator scan2;
+  DbIterator eqJoin;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 4,
+                    5, 6,
+                    7, 8 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 1, 2, 3,
+                    2, 3, 4,
+                    3, 4, 5,
+                    4, 5, 6,
+                    5, 6, 7,
+                    5, 0, 0 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    5, 6, 5, 6, 7,
+                    5, 6, 5, 0, 0 });
+  }
+
+  /**
+   * Unit test for HashJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashJoin op = new HashJoin(pred, scan1, scan2);
+    TupleDesc expected = Utility.getTupleDesc(width1 + width2);
+    TupleDesc actual = op.getTupleDesc();
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * Unit test for HashJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashJoin op = new HashJoin(pred, scan1, scan2);
+    op.open();
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for HashJoin.getNext() hashing the smaller, left child
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashJoin op = new HashJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for HashJoin.getNext() hashing the smaller, right child;
+   * the output still starts with the left tuple
+   */
+  @Test public void eqJoinSmallerRight() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashJoin op = new HashJoin(pred, scan2, scan1);
+    DbIterator expected = TestUtil.createTupleList(width2 + width1,
+        new int[] { 1, 2, 3, 1, 2,
+                    3, 4, 5, 3, 4,
+                    5, 6, 7, 5, 6,
+                    5, 0, 0, 5, 6 });
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
+  /**
+   * Unit test for HashJoin with a predicate other than equality
+   */
+  @Test(expected=IllegalArgumentException.class) public void notEquality() {
+    new HashJoin(new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0), scan1, scan2);
+  }
+
+  /**
+   * @return n tuples (key(i), i) with key(i) = i % keys
+   */
+  private static int[] keyed(int n, int keys) {
+    int[] values = new int[2 * n];
+    for (int i = 0; i < n; i++) {
+      values[2 * i] = i % keys;
+      values[2 * i + 1] = i;
+    }
+    return values;
+  }
+
+  /**
+   * Checks that a join of the tuples in left and right returns all the
+   * pairs with equal keys, in left-right order.
+   */
+  private static void checkJoin(DbIterator op, int[] left, int[] right) throws Exception {
+    long expectedCount = 0;
+    long expectedSum = 0;
+    for (int i = 0; i < left.length; i += 2) {
+      for (int j = 0; j < right.length; j += 2) {
+        if (left[i] == right[j]) {
+          expectedCount++;
+          expectedSum += (long) left[i + 1] * 100003 + right[j + 1];
+        }
+      }
+    }
+    long count = 0;
+    long sum = 0;
+    op.open();
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      count++;
+      sum += (long) ((IntField) t.getField(1)).getValue() * 100003 + ((IntField) t.getField(3)).getValue();
+    }
+    assertEquals(expectedCount, count);
+    assertEquals(expectedSum, sum);
+  }
+
+  /**
+   * Unit test for HashJoin partitioning both children to disk
+   */
+  @Test public void graceJoin() throws Exception {
+    int[] left = keyed(3000, 500);
+    int[] right = keyed(2000, 700);
+    long memory = 100 * Utility.getTupleDesc(2).getSize();
+    HashJoin op = new HashJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        TestUtil.createTupleList(2, left), TestUtil.createTupleList(2, right), memory);
+    checkJoin(op, left, right);
+    assertTrue(op.getPartitionsWritten() > 0);
+
+    // a rewind partitions again
+    op.rewind();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    // keys 0-499 occur six times on the left, three times on the right
+    assertEquals(500 * 6 * 3, count);
+    op.close();
+  }
+
+  /**
+   * Unit test for HashJoin with a skewed partition, which is hashed in
+   * chunks
+   */
+  @Test public void skewedGraceJoin() throws Exception {
+    int[] left = keyed(400, 1);
+    int[] right = keyed(300, 1);
+    long memory = 50 * Utility.getTupleDesc(2).getSize();
+    HashJoin op = new HashJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        TestUtil.createTupleList(2, left), TestUtil.createTupleList(2, right), memory);
+    checkJoin(op, left, right);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashJoinTest.class);
+  }
+}
@@ -6,6 +6,7 @@ import static org.junit.Assert.assertTrue;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -126,6 +127,67 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for the page latch: concurrent writers and readers of one
+     * page neither lose updates nor see a torn page.
+     */
+    @Test public void concurrentAddAndScan() throws Exception {
+        final HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        final int free = page.getNumEmptySlots();
+        final int writers = 4;
+        final int perWriter = free / writers;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread[] threads = new Thread[writers + 2];
+        for (int w = 0; w < writers; w++) {
+            threads[w] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < perWriter; i++) {
+                            Tuple t = Utility.getHeapTuple(i, 2);
+                            page.addTuple(t);
+                            // delete every other tuple again
+                            if (i % 2 == 0) {
+                                page.deleteTuple(t);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+        }
+        for (int r = writers; r < threads.length; r++) {
+            threads[r] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            Iterator<Tuple> it = page.iterator();
+                            while (it.hasNext()) {
+                                assertTrue(it.next() != null);
+                            }
+                            new HeapPage(pid, page.getPageData());
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        if (failure.get() != null) {
+            throw new Exception(failure.get());
+        }
+        assertEquals(free - writers * (perWriter / 2), page.getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
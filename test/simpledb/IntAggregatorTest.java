@@ -174,6 +174,32 @@ public class IntAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntAggregator.merge() with more groups than it first has room for
+   */
+  @Test public void manyGroups() throws Exception {
+    int groups = 1000;
+    int[] values = new int[2 * 3 * groups];
+    int[] expected = new int[2 * groups];
+    for (int i = 0; i < 3 * groups; i++) {
+      values[2 * i] = i % groups - groups / 2;
+      values[2 * i + 1] = i;
+    }
+    for (int g = 0; g < groups; g++) {
+      expected[2 * g] = g - groups / 2;
+      expected[2 * g + 1] = g + (g + groups) + (g + 2 * groups);
+    }
+    DbIterator scan = TestUtil.createTupleList(width1, values);
+    IntAggregator agg = new IntAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    while (scan.hasNext()) {
+      agg.merge(scan.next());
+    }
+    // groups come out in the order they were first seen
+    DbIterator it = agg.iterator();
+    it.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(width1, expected), it);
+  }
+
   /**
    * JUnit suite target
    */
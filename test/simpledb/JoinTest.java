@@ -105,6 +105,39 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for Join.getNext() with blocks smaller than the left child
+   */
+  @Test public void blockJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    // room for three left tuples of two integer fields
+    Join op = new Join(pred, scan1, scan2, 3 * width1 * Type.INT_TYPE.getLen());
+    assertEquals(3, op.getBlockSize());
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(11, count);
+    assertEquals(2, op.getBlocks());
+
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+  }
+
+  /**
+   * Unit test for Join with long runs of outer tuples without matches
+   */
+  @Test public void longRunWithoutMatches() throws Exception {
+    int[] values = new int[2 * 100000];
+    DbIterator outer = TestUtil.createTupleList(width1, values);
+    DbIterator inner = TestUtil.createTupleList(width1, new int[] { 1, 1 });
+    Join op = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0), outer, inner);
+    op.open();
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,63 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LimitTest extends SimpleDbTestBase {
+
+  int testWidth = 3;
+
+  /**
+   * Unit test for Limit.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    Limit op = new Limit(2, new TestUtil.MockScan(0, 10, testWidth));
+    assertEquals(Utility.getTupleDesc(testWidth), op.getTupleDesc());
+  }
+
+  /**
+   * Unit test for Limit.getNext() and Limit.rewind()
+   */
+  @Test public void limit() throws Exception {
+    Limit op = new Limit(3, new TestUtil.MockScan(0, 10, testWidth));
+    op.open();
+    for (int i = 0; i < 3; i++) {
+      assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(i, testWidth), op.next()));
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+
+    op.rewind();
+    assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(0, testWidth), op.next()));
+    op.close();
+  }
+
+  /**
+   * Unit test for Limit with a limit of zero or beyond the child
+   */
+  @Test public void limits() throws Exception {
+    Limit op = new Limit(0, new TestUtil.MockScan(0, 10, testWidth));
+    op.open();
+    assertTrue(TestUtil.checkExhausted(op));
+
+    op = new Limit(100, new TestUtil.MockScan(0, 10, testWidth));
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(10, count);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LimitTest.class);
+  }
+}
@@ -0,0 +1,189 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LockManagerTest {
+
+    private LockManager locks;
+    private PageId p0;
+    private PageId p1;
+    private TransactionId t1;
+    private TransactionId t2;
+
+    @Before public void setUp() {
+        locks = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+    }
+
+    /**
+     * Starts a thread that acquires a lock, and returns it; the thread
+     * records the abort it may get.
+     */
+    private Thread acquireLater(final TransactionId tid, final PageId pid, final boolean exclusive,
+                                final AtomicReference<Throwable> result) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    locks.acquire(tid, pid, exclusive);
+                } catch (Throwable e) {
+                    result.set(e);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    /**
+     * Unit test for compatible and conflicting locks
+     */
+    @Test public void sharedAndExclusive() throws Exception {
+        locks.acquire(t1, p0, false);
+        locks.acquire(t2, p0, false);
+        assertTrue(locks.holdsLock(t1, p0));
+        assertTrue(locks.isLockedByOthers(t1, p0));
+
+        // t2 cannot upgrade while t1 shares the page
+        AtomicReference<Throwable> result = new AtomicReference<Throwable>();
+        Thread upgrade = acquireLater(t2, p0, true, result);
+        upgrade.join(100);
+        assertTrue(upgrade.isAlive());
+
+        locks.releaseAll(t1);
+        upgrade.join(5000);
+        assertFalse(upgrade.isAlive());
+        assertEquals(null, result.get());
+        assertFalse(locks.holdsLock(t1, p0));
+        assertFalse(locks.isLockedByOthers(t2, p0));
+        assertEquals(1, locks.getNumLocks());
+    }
+
+    /**
+     * Unit test for deadlock detection: the request that closes a cycle
+     * aborts.
+     */
+    @Test public void deadlock() throws Exception {
+        locks.acquire(t1, p0, true);
+        locks.acquire(t2, p1, true);
+
+        AtomicReference<Throwable> result = new AtomicReference<Throwable>();
+        Thread waiter = acquireLater(t1, p1, true, result);
+        while (waiter.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        try {
+            locks.acquire(t2, p0, false);
+            throw new Exception("expected a deadlock");
+        } catch (TransactionAbortedException e) {
+            // explicitly ignored
+        }
+        assertEquals(1, locks.getDeadlocks());
+
+        locks.releaseAll(t2);
+        waiter.join(5000);
+        assertEquals(null, result.get());
+        assertTrue(locks.holdsLock(t1, p1));
+    }
+
+    /**
+     * Unit test for LockManager.tryAcquire(): a lock that cannot be
+     * granted at once is refused, and nothing is locked.
+     */
+    @Test public void tryAcquire() throws Exception {
+        locks.acquire(t1, p0, false);
+        assertFalse(locks.tryAcquire(t2, p0, true));
+        assertFalse(locks.holdsLock(t2, p0));
+        assertEquals(null, locks.getTableLock(t2, 1));
+        assertEquals(1, locks.getNumLocks());
+
+        assertTrue(locks.tryAcquire(t2, p1, true));
+        assertTrue(locks.holdsLock(t2, p1));
+        assertTrue(locks.tryAcquire(t1, p0, true));
+
+        locks.lockTable(t1, 2, LockManager.Mode.S);
+        assertFalse(locks.tryAcquire(t2, new HeapPageId(2, 0), true));
+        assertEquals(null, locks.getTableLock(t2, 2));
+    }
+
+    /**
+     * Unit test for intention locks: page locks and table locks conflict
+     * through the intention locks on the table.
+     */
+    @Test public void intentionLocks() throws Exception {
+        locks.acquire(t1, p0, true);
+        assertEquals(LockManager.Mode.IX, locks.getTableLock(t1, 1));
+
+        // a table lock waits for the page lock, but other pages are free
+        AtomicReference<Throwable> result = new AtomicReference<Throwable>();
+        Thread tableLock = new Thread() {
+            public void run() {
+                try {
+                    locks.lockTable(t2, 1, LockManager.Mode.S);
+                } catch (Throwable e) {
+                    result.set(e);
+                }
+            }
+        };
+        tableLock.start();
+        tableLock.join(100);
+        assertTrue(tableLock.isAlive());
+
+        locks.releaseAll(t1);
+        tableLock.join(5000);
+        assertEquals(null, result.get());
+        assertTrue(locks.holdsLock(t2, p1));
+        assertTrue(locks.isLockedByOthers(t1, p1));
+    }
+
+    /**
+     * Unit test for lock escalation: past the threshold, page locks are
+     * replaced by one table lock.
+     */
+    @Test public void escalation() throws Exception {
+        locks.setEscalationThreshold(3);
+        for (int i = 0; i < 4; i++) {
+            locks.acquire(t1, new HeapPageId(1, i), false);
+        }
+        assertEquals(1, locks.getEscalations());
+        assertEquals(0, locks.getNumLocks());
+        assertEquals(LockManager.Mode.S, locks.getTableLock(t1, 1));
+        assertTrue(locks.holdsLock(t1, new HeapPageId(1, 100)));
+
+        // readers still get in; writers have to wait
+        locks.acquire(t2, new HeapPageId(1, 5), false);
+        assertTrue(locks.isLockedByOthers(t2, new HeapPageId(1, 6)));
+
+        // a writer does not escalate while others hold locks on the table
+        TransactionId t3 = new TransactionId();
+        locks.acquire(t3, new HeapPageId(2, 0), true);
+        locks.releaseAll(t1);
+        for (int i = 0; i < 4; i++) {
+            locks.acquire(t1, new HeapPageId(2, i + 1), true);
+        }
+        assertEquals(1, locks.getEscalations());
+        assertEquals(LockManager.Mode.IX, locks.getTableLock(t1, 2));
+
+        locks.releaseAll(t3);
+        locks.acquire(t1, new HeapPageId(2, 5), true);
+        assertEquals(2, locks.getEscalations());
+        assertEquals(LockManager.Mode.X, locks.getTableLock(t1, 2));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,256 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    /**
+     * Unit test for group commit: transactions committing together share
+     * log forces.
+     */
+    @Test public void groupCommit() throws Exception {
+        final int numTransactions = 8;
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(200 * 1000, 1024 * 1024);
+
+        final CyclicBarrier started = new CyclicBarrier(numTransactions);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[numTransactions];
+        for (int i = 0; i < numTransactions; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        Transaction t = new Transaction();
+                        t.start();
+                        started.await();
+                        t.commit();
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        if (failure.get() != null) {
+            throw new Exception(failure.get());
+        }
+        assertEquals(numTransactions, log.getCommitCount());
+        assertTrue(log.getCommitForces() < numTransactions);
+    }
+
+    /**
+     * Unit test for group commit of transactions that write: the forces
+     * of their UPDATE records and of their COMMIT records are shared.
+     */
+    @Test public void groupCommitWithWrites() throws Exception {
+        final int numTransactions = 8;
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(200 * 1000, 1024 * 1024);
+        final BufferPool pool = Database.getBufferPool();
+
+        // a table each, so that the transactions do not wait for locks
+        final HeapFile[] files = new HeapFile[numTransactions];
+        for (int i = 0; i < numTransactions; i++) {
+            files[i] = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        }
+        long forces = log.getForces();
+
+        final CyclicBarrier started = new CyclicBarrier(numTransactions);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[numTransactions];
+        for (int i = 0; i < numTransactions; i++) {
+            final HeapFile f = files[i];
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        Transaction t = new Transaction();
+                        t.start();
+                        pool.insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(1, 2));
+                        started.await();
+                        t.commit();
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        if (failure.get() != null) {
+            throw new Exception(failure.get());
+        }
+        assertEquals(numTransactions, log.getCommitCount());
+        assertTrue(log.getForces() - forces < numTransactions);
+    }
+
+    /**
+     * Unit test for group commit disabled: every commit forces the log.
+     */
+    @Test public void forcePerCommit() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(0, 0);
+        for (int i = 0; i < 3; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            t.commit();
+        }
+        assertEquals(3, log.getCommitForces());
+    }
+
+    /**
+     * Unit test for slot-level logging: only the first change to a page
+     * after a checkpoint logs the whole page.
+     */
+    @Test public void slotUpdates() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        LogFile log = Database.getLogFile();
+        BufferPool pool = Database.getBufferPool();
+
+        Transaction first = new Transaction();
+        first.start();
+        pool.insertTuple(first.getId(), f.getId(), Utility.getHeapTuple(1, 2));
+        long before = log.raf.length();
+        first.commit();
+        long fullRecord = log.raf.length() - before;
+        assertTrue(fullRecord > 2 * BufferPool.PAGE_SIZE);
+
+        Transaction second = new Transaction();
+        second.start();
+        pool.insertTuple(second.getId(), f.getId(), Utility.getHeapTuple(2, 2));
+        before = log.raf.length();
+        second.commit();
+        assertTrue(log.raf.length() - before < 256);
+
+        // a checkpoint makes the next change log the whole page again
+        log.logCheckpoint();
+        Transaction third = new Transaction();
+        third.start();
+        pool.insertTuple(third.getId(), f.getId(), Utility.getHeapTuple(3, 2));
+        before = log.raf.length();
+        third.commit();
+        assertEquals(fullRecord, log.raf.length() - before);
+    }
+
+    /**
+     * Unit test for fuzzy checkpoints: no page is written, and the dirty
+     * page table only keeps pages whose writes are not synced.
+     */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        LogFile log = Database.getLogFile();
+        BufferPool pool = Database.getBufferPool();
+
+        Transaction committed = new Transaction();
+        committed.start();
+        pool.insertTuple(committed.getId(), f.getId(), Utility.getHeapTuple(1, 2));
+        committed.commit();
+        assertEquals(1, log.getNumUnsyncedPages());
+
+        Transaction running = new Transaction();
+        running.start();
+        pool.insertTuple(running.getId(), other.getId(), Utility.getHeapTuple(2, 2));
+        Page dirty = pool.getPage(running.getId(), new HeapPageId(other.getId(), 0), Permissions.READ_ONLY);
+
+        log.logCheckpoint();
+        assertEquals(0, log.getNumUnsyncedPages());
+        assertEquals(running.getId(), dirty.isDirty());
+    }
+
+    /**
+     * Unit test for the background checkpointer
+     */
+    @Test public void backgroundCheckpoints() throws Exception {
+        LogFile log = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        t.commit();
+
+        log.startCheckpointer(10);
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (log.readCheckpointOffset() == LogFile.NO_CHECKPOINT_ID
+                   && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            log.stopCheckpointer();
+        }
+        assertTrue(log.readCheckpointOffset() != LogFile.NO_CHECKPOINT_ID);
+    }
+
+    /**
+     * Unit test for asynchronous commits: the commit returns before the
+     * log force, and the log and the pages reach the disk shortly after.
+     */
+    @Test public void asyncCommit() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        LogFile log = Database.getLogFile();
+        BufferPool pool = Database.getBufferPool();
+        log.setAsyncCommitDelay(200);
+
+        Transaction t = new Transaction();
+        t.setCommitMode(Transaction.CommitMode.ASYNC);
+        t.start();
+        pool.insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(1, 2));
+        t.commit();
+        assertEquals(1, log.getAsyncCommitCount());
+        assertEquals(0, log.getCommitForces());
+        assertEquals(1, pool.getAsyncPages().size());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!(log.isDurable() && pool.getAsyncPages().isEmpty())
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(log.isDurable());
+        assertTrue(pool.getAsyncPages().isEmpty());
+        assertEquals(null, pool.getPage(new TransactionId(), new HeapPageId(f.getId(), 0), Permissions.READ_ONLY).isDirty());
+    }
+
+    /**
+     * Unit test for the default commit mode.
+     */
+    @Test public void defaultCommitMode() throws Exception {
+        LogFile log = Database.getLogFile();
+        Transaction.setDefaultCommitMode(Transaction.CommitMode.ASYNC);
+        try {
+            Transaction t = new Transaction();
+            t.start();
+            assertEquals(Transaction.CommitMode.ASYNC, t.getCommitMode());
+            t.commit();
+            Transaction sync = new Transaction();
+            sync.start();
+            sync.commit(Transaction.CommitMode.SYNC);
+        } finally {
+            Transaction.setDefaultCommitMode(Transaction.CommitMode.SYNC);
+        }
+        assertEquals(1, log.getAsyncCommitCount());
+        assertEquals(2, log.getCommitCount());
+        assertTrue(log.isDurable());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
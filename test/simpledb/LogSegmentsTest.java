@@ -0,0 +1,224 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogSegmentsTest {
+
+    private static final int SEGMENT_SIZE = 64;
+
+    private File dir;
+    private File base;
+
+    @Before public void setUp() throws Exception {
+        dir = Files.createTempDirectory("logsegments").toFile();
+        base = new File(dir, "log");
+    }
+
+    @After public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private File segment(int number) {
+        return new File(dir, "log." + String.format("%08d", number));
+    }
+
+    /**
+     * Unit test for records that span segment boundaries
+     */
+    @Test public void spanSegments() throws Exception {
+        LogSegments log = new LogSegments(base, SEGMENT_SIZE, false);
+        byte[] data = new byte[150];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        log.writeLong(42);
+        log.write(data);
+        log.writeUTF("simpledb.HeapPageId");
+        log.flush();
+        assertEquals(3, dir.list().length);
+
+        log.seek(0);
+        assertEquals(42, log.readLong());
+        byte[] read = new byte[data.length];
+        log.readFully(read);
+        assertArrayEquals(data, read);
+        assertEquals("simpledb.HeapPageId", log.readUTF());
+        log.close();
+
+        // a reopened log finds its segments
+        LogSegments reopened = new LogSegments(base, SEGMENT_SIZE, true);
+        assertEquals(log.length(), reopened.length());
+        reopened.seek(8);
+        reopened.readFully(read);
+        assertArrayEquals(data, read);
+        reopened.close();
+    }
+
+    /**
+     * Unit test for writing and reading back each primitive type
+     */
+    @Test public void primitives() throws Exception {
+        LogSegments log = new LogSegments(base, SEGMENT_SIZE, false);
+        for (int i = 0; i < 4; i++) {
+            log.writeBoolean(true);
+            log.writeByte(-2);
+            log.writeShort(-300);
+            log.writeChar('\u20ac');
+            log.writeInt(0x89abcdef);
+            log.writeLong(0x0123456789abcdefL);
+            log.writeFloat(1.5f);
+            log.writeDouble(-2.25);
+        }
+
+        log.seek(0);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(log.readBoolean());
+            assertEquals(-2, log.readByte());
+            assertEquals(-300, log.readShort());
+            assertEquals('\u20ac', log.readChar());
+            assertEquals(0x89abcdef, log.readInt());
+            assertEquals(0x0123456789abcdefL, log.readLong());
+            assertEquals(1.5f, log.readFloat(), 0);
+            assertEquals(-2.25, log.readDouble(), 0);
+        }
+        log.close();
+    }
+
+    /**
+     * Unit test for LogSegments.truncateBefore(): only whole segments are
+     * deleted, and offsets do not change.
+     */
+    @Test public void truncateKeepsOffsets() throws Exception {
+        LogSegments log = new LogSegments(base, SEGMENT_SIZE, false);
+        for (int i = 0; i < 64; i++) {
+            log.writeInt(i);
+        }
+        assertEquals(2, log.truncateBefore(3 * SEGMENT_SIZE - 1));
+        assertFalse(segment(1).exists());
+        assertTrue(segment(2).exists());
+        assertEquals(2 * SEGMENT_SIZE, log.getStartOffset());
+
+        log.seek(2 * SEGMENT_SIZE);
+        assertEquals(2 * SEGMENT_SIZE / 4, log.readInt());
+        try {
+            log.seek(0);
+            throw new Exception("offset 0 was truncated; expected IOException");
+        } catch (IOException e) {
+            // explicitly ignored
+        }
+        log.close();
+
+        LogSegments reopened = new LogSegments(base, SEGMENT_SIZE, true);
+        assertEquals(2 * SEGMENT_SIZE, reopened.getStartOffset());
+        reopened.close();
+    }
+
+    /**
+     * Unit test for LogSegments.setLength() cutting off a torn tail
+     */
+    @Test(expected=EOFException.class) public void cutTail() throws Exception {
+        LogSegments log = new LogSegments(base, SEGMENT_SIZE, false);
+        for (int i = 0; i < 64; i++) {
+            log.writeInt(i);
+        }
+        log.setLength(SEGMENT_SIZE + 4);
+        assertFalse(segment(2).exists());
+        log.seek(SEGMENT_SIZE);
+        assertEquals(SEGMENT_SIZE / 4, log.readInt());
+        log.readInt();
+    }
+
+    /**
+     * Unit test for the append buffer: appends reach the segment files in
+     * one flush, and reads see them before that.
+     */
+    @Test public void bufferedAppends() throws Exception {
+        LogSegments log = new LogSegments(base, 1024, false, 512);
+        for (int i = 0; i < 64; i++) {
+            log.writeInt(i);
+        }
+        assertFalse(segment(0).exists());
+        assertEquals(0, log.getFlushes());
+
+        log.seek(4);
+        assertEquals(1, log.readInt());
+        assertEquals(1, log.getFlushes());
+        assertEquals(256, segment(0).length());
+
+        // a full buffer is flushed by the writer
+        log.seek(log.length());
+        for (int i = 0; i < 128; i++) {
+            log.writeInt(i);
+        }
+        assertEquals(2, log.getFlushes());
+        assertEquals(256 + 512, segment(0).length());
+        log.close();
+        assertEquals(256 + 512, segment(0).length());
+    }
+
+    /**
+     * Unit test for LogSegments.readLine() with each line terminator, and a
+     * line that spans segments
+     */
+    @Test public void readLines() throws Exception {
+        LogSegments log = new LogSegments(base, SEGMENT_SIZE, false);
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 2 * SEGMENT_SIZE; i++) {
+            longLine.append((char) ('a' + i % 26));
+        }
+        log.writeBytes("first\r\nsecond\rthird\n\n" + longLine + "\nlast");
+
+        log.seek(0);
+        assertEquals("first", log.readLine());
+        assertEquals("second", log.readLine());
+        assertEquals("third", log.readLine());
+        assertEquals("", log.readLine());
+        assertEquals(longLine.toString(), log.readLine());
+        assertEquals("last", log.readLine());
+        assertEquals(null, log.readLine());
+        log.close();
+    }
+
+    /**
+     * Unit test for the background flusher
+     */
+    @Test public void backgroundFlusher() throws Exception {
+        LogSegments log = new LogSegments(base, SEGMENT_SIZE, false);
+        log.startFlusher(5);
+        log.writeLong(42);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (segment(0).length() < 8 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(8, segment(0).length());
+
+        // discarded appends never reach the files
+        log.writeLong(43);
+        log.discard();
+        Thread.sleep(20);
+        assertEquals(8, segment(0).length());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
@@ -0,0 +1,96 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  /**
+   * @return the tuples (i * 7919 % n, i) for i in [0, n)
+   */
+  private static DbIterator shuffled(int n) {
+    int[] values = new int[2 * n];
+    for (int i = 0; i < n; i++) {
+      values[2 * i] = (int) ((long) i * 7919 % n);
+      values[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, values);
+  }
+
+  private static void checkDescending(DbIterator it, int n) throws Exception {
+    for (int i = n - 1; i >= 0; i--) {
+      assertTrue(it.hasNext());
+      assertEquals(new IntField(i), it.next().getField(0));
+    }
+    assertTrue(TestUtil.checkExhausted(it));
+  }
+
+  /**
+   * Unit test for OrderBy.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    OrderBy op = new OrderBy(0, true, shuffled(10));
+    assertEquals(Utility.getTupleDesc(2), op.getTupleDesc());
+  }
+
+  /**
+   * Unit test for OrderBy of a child that fits in memory
+   */
+  @Test public void inMemory() throws Exception {
+    OrderBy op = new OrderBy(0, false, shuffled(1000));
+    op.open();
+    checkDescending(op, 1000);
+    assertEquals(0, op.getRunsWritten());
+
+    op.rewind();
+    checkDescending(op, 1000);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy of a child larger than its memory budget
+   */
+  @Test public void spilled() throws Exception {
+    int tupleSize = Utility.getTupleDesc(2).getSize();
+    OrderBy op = new OrderBy(0, false, shuffled(1000), 100 * tupleSize);
+    op.open();
+    checkDescending(op, 1000);
+    assertTrue(op.getRunsWritten() >= 10);
+
+    op.rewind();
+    checkDescending(op, 1000);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy on several fields
+   */
+  @Test public void multipleFields() throws Exception {
+    DbIterator child = TestUtil.createTupleList(3,
+        new Object[] { "b", 1, 0,
+                       "a", 2, 1,
+                       "b", 3, 2,
+                       "a", 2, 3,
+                       "a", 5, 4 });
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false }, child,
+                             ExternalSort.DEFAULT_MEMORY_BYTES);
+    op.open();
+    int[] expected = { 4, 1, 3, 2, 0 };
+    for (int i : expected) {
+      assertEquals(new IntField(i), op.next().getField(2));
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
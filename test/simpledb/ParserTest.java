@@ -0,0 +1,206 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import Zql.ZQuery;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ParserTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 30;
+
+  private TransactionId tid;
+  private long memoryBudget;
+
+  /**
+   * Creates the table t(org, manager, amount) with the rows
+   * (i % 3, i % 2, i) for i in [0, ROWS), and its statistics.
+   */
+  @Before public void createTable() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < ROWS; i++) {
+      ArrayList<Integer> row = new ArrayList<Integer>();
+      row.add(i % 3);
+      row.add(i % 2);
+      row.add(i);
+      rows.add(row);
+    }
+    File f = File.createTempFile("parser", ".dat");
+    f.deleteOnExit();
+    HeapFileEncoder.convert(rows, f, BufferPool.PAGE_SIZE, 3);
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE },
+                                 new String[] { "org", "manager", "amount" });
+    HeapFile table = new HeapFile(f, td);
+    Database.getCatalog().addTable(table, "t");
+
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("t", new TableStats(table.getId(), 1000));
+    Parser.setStatsMap(stats);
+
+    tid = new TransactionId();
+    memoryBudget = LogicalPlan.getDefaultMemoryBudget();
+  }
+
+  @After public void restoreMemoryBudget() throws Exception {
+    LogicalPlan.setDefaultMemoryBudget(memoryBudget);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * @return the physical plan of a SELECT statement, with its LIMIT
+   */
+  private DbIterator plan(String sql) throws Exception {
+    ZQuery q = (ZQuery) Parser.parseStatement(sql);
+    return Parser.parseQuery(tid, q, Parser.parseLimit(sql));
+  }
+
+  /**
+   * @return the operator below the projection at the root of a plan
+   */
+  private static DbIterator belowProject(DbIterator plan) {
+    return ((Project) plan).child;
+  }
+
+  private static ArrayList<Integer> row(int... values) {
+    ArrayList<Integer> row = new ArrayList<Integer>();
+    for (int v : values) {
+      row.add(v);
+    }
+    return row;
+  }
+
+  /**
+   * Unit test for several aggregates grouped by several fields, one of
+   * which is not selected
+   */
+  @Test public void multipleAggregatesAndGroups() throws Exception {
+    DbIterator plan = plan("SELECT t.org, count(*), sum(t.amount) FROM t GROUP BY t.org, t.manager;");
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (int org = 0; org < 3; org++) {
+      for (int manager = 0; manager < 2; manager++) {
+        int count = 0;
+        int sum = 0;
+        for (int i = 0; i < ROWS; i++) {
+          if (i % 3 == org && i % 2 == manager) {
+            count++;
+            sum += i;
+          }
+        }
+        expected.add(row(org, count, sum));
+      }
+    }
+    SystemTestUtil.matchTuples(plan, expected);
+  }
+
+  /**
+   * Unit test for count(*) without grouping
+   */
+  @Test public void countStar() throws Exception {
+    DbIterator plan = plan("SELECT count(*) FROM t;");
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    expected.add(row(ROWS));
+    SystemTestUtil.matchTuples(plan, expected);
+  }
+
+  /**
+   * Unit test for Parser.parseLimit() and stripLimit()
+   */
+  @Test public void limitClause() throws Exception {
+    assertEquals(3, Parser.parseLimit("SELECT t.org FROM t ORDER BY t.org DESC LIMIT 3;"));
+    assertEquals(5, Parser.parseLimit("select t.org from t limit 5"));
+    assertEquals(-1, Parser.parseLimit("SELECT t.org FROM t;"));
+    assertEquals("SELECT t.org FROM t ORDER BY t.org DESC;",
+                 Parser.stripLimit("SELECT t.org FROM t ORDER BY t.org DESC LIMIT 3;"));
+    assertEquals("SELECT t.org FROM t;", Parser.stripLimit("SELECT t.org FROM t;"));
+    try {
+      Parser.parseLimit("SELECT t.org FROM t LIMIT 99999999999;");
+      fail("Expected a ParsingException.");
+    } catch (ParsingException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Unit test for ORDER BY ... LIMIT, which keeps only the first tuples
+   */
+  @Test public void orderByLimit() throws Exception {
+    DbIterator plan = plan("SELECT t.org, t.amount FROM t ORDER BY t.amount DESC LIMIT 3;");
+    assertTrue(belowProject(plan) instanceof TopN);
+
+    plan.open();
+    for (int amount = ROWS - 1; amount >= ROWS - 3; amount--) {
+      assertTrue(plan.hasNext());
+      Tuple t = plan.next();
+      assertEquals(new IntField(amount % 3), t.getField(0));
+      assertEquals(new IntField(amount), t.getField(1));
+    }
+    assertFalse(plan.hasNext());
+    plan.close();
+  }
+
+  /**
+   * Unit test for LIMIT without ORDER BY
+   */
+  @Test public void limitWithoutOrderBy() throws Exception {
+    DbIterator plan = plan("SELECT t.amount FROM t WHERE t.org = 1 LIMIT 4;");
+    assertTrue(belowProject(plan) instanceof Limit);
+
+    plan.open();
+    int count = 0;
+    while (plan.hasNext()) {
+      assertEquals(1, ((IntField) plan.next().getField(0)).getValue() % 3);
+      count++;
+    }
+    assertEquals(4, count);
+    plan.close();
+  }
+
+  /**
+   * Unit test for ORDER BY ... LIMIT when the first tuples do not fit in
+   * the memory share of the sort: the child is sorted, then limited.
+   */
+  @Test public void limitAboveMemory() throws Exception {
+    // room for two tuples of t
+    LogicalPlan.setDefaultMemoryBudget(2 * 3 * Type.INT_TYPE.getLen());
+    DbIterator plan = plan("SELECT t.org, t.manager, t.amount FROM t ORDER BY t.amount DESC LIMIT 3;");
+    DbIterator limit = belowProject(plan);
+    assertTrue(limit instanceof Limit);
+    assertEquals(3, ((Limit) limit).getLimit());
+
+    plan.open();
+    for (int amount = ROWS - 1; amount >= ROWS - 3; amount--) {
+      assertTrue(plan.hasNext());
+      assertEquals(new IntField(amount), plan.next().getField(2));
+    }
+    assertFalse(plan.hasNext());
+    plan.close();
+  }
+
+  /**
+   * Unit test for LIMIT in a statement other than SELECT
+   */
+  @Test(expected=ParsingException.class) public void limitOnlyInSelect() throws Exception {
+    Parser.parseStatement("DELETE FROM t WHERE t.org = 1 LIMIT 2;");
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParserTest.class);
+  }
+}
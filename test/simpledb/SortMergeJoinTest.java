@@ -0,0 +1,250 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.HashSet;
+import java.util.Vector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  DbIterator scan1;
+  DbIterator scan2;
+  DbIterator eqJoin;
+  DbIterator gtJoin;
+  DbIterator ltJoin;
+
+  /**
+   * Initialize each unit test; the children are not sorted
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 5, 6,
+                    1, 2,
+                    7, 8,
+                    3, 4 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 4, 5, 6,
+                    1, 2, 3,
+                    5, 6, 7,
+                    3, 4, 5,
+                    2, 3, 4,
+                    3, 0, 0 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    3, 4, 3, 0, 0,
+                    5, 6, 5, 6, 7 });
+    this.gtJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] {
+                    3, 4, 1, 2, 3, // 1, 2 < 3
+                    3, 4, 2, 3, 4,
+                    5, 6, 1, 2, 3, // 1, 2, 3, 3, 4 < 5
+                    5, 6, 2, 3, 4,
+                    5, 6, 3, 4, 5,
+                    5, 6, 3, 0, 0,
+                    5, 6, 4, 5, 6,
+                    7, 8, 1, 2, 3, // all < 7
+                    7, 8, 2, 3, 4,
+                    7, 8, 3, 4, 5,
+                    7, 8, 3, 0, 0,
+                    7, 8, 4, 5, 6,
+                    7, 8, 5, 6, 7 });
+    this.ltJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] {
+                    1, 2, 2, 3, 4, // 1 < 2, 3, 3, 4, 5
+                    1, 2, 3, 4, 5,
+                    1, 2, 3, 0, 0,
+                    1, 2, 4, 5, 6,
+                    1, 2, 5, 6, 7,
+                    3, 4, 4, 5, 6, // 3 < 4, 5
+                    3, 4, 5, 6, 7 });
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    TupleDesc expected = Utility.getTupleDesc(width1 + width2);
+    TupleDesc actual = op.getTupleDesc();
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using an = predicate
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using a &gt; predicate
+   */
+  @Test public void gtJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using a &lt; predicate
+   */
+  @Test public void ltJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    ltJoin.open();
+    TestUtil.matchAllTuples(ltJoin, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin sorting its children on disk
+   */
+  @Test public void spilledJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2, 2 * width2 * Type.INT_TYPE.getLen());
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+    int count = 0;
+    op.rewind();
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(13, count);
+    op.close();
+  }
+
+  /**
+   * @return the tuples (i * 37 % modulus, i, ...) of the specified width for i
+   *   in [0, n), so that the join values repeat and are not sorted
+   */
+  private static DbIterator shuffled(int n, int modulus, int width) {
+    int[] values = new int[width * n];
+    for (int i = 0; i < n; i++) {
+      values[width * i] = i * 37 % modulus;
+      for (int j = 1; j < width; j++) {
+        values[width * i + j] = i;
+      }
+    }
+    return TestUtil.createTupleList(width, values);
+  }
+
+  /**
+   * Checks a join of children larger than its memory budget, whose join
+   * values repeat modulo leftModulus and rightModulus: every pair of
+   * tuples that matches is returned once.
+   */
+  private void checkSpilledJoin(Predicate.Op op, int leftModulus, int rightModulus) throws Exception {
+    int leftSize = 200;
+    int rightSize = 300;
+    JoinPredicate pred = new JoinPredicate(0, op, 0);
+    SortMergeJoin join = new SortMergeJoin(pred, shuffled(leftSize, leftModulus, width1),
+        shuffled(rightSize, rightModulus, width2), 10 * width2 * Type.INT_TYPE.getLen());
+
+    int expected = 0;
+    for (int l = 0; l < leftSize; l++) {
+      for (int r = 0; r < rightSize; r++) {
+        if (new IntField(l * 37 % leftModulus).compare(op, new IntField(r * 37 % rightModulus))) {
+          expected++;
+        }
+      }
+    }
+
+    join.open();
+    for (int pass = 0; pass < 2; pass++) {
+      HashSet<Long> pairs = new HashSet<Long>();
+      while (join.hasNext()) {
+        Tuple t = join.next();
+        assertTrue(t.getField(0).compare(op, t.getField(width1)));
+        int l = ((IntField) t.getField(1)).getValue();
+        int r = ((IntField) t.getField(width1 + 1)).getValue();
+        assertTrue(pairs.add((long) l * rightSize + r));
+      }
+      assertEquals(expected, pairs.size());
+      join.rewind();
+    }
+    join.close();
+  }
+
+  /**
+   * Unit test for range SortMergeJoins whose right child and window
+   * spill to disk
+   */
+  @Test public void spilledRangeJoin() throws Exception {
+    checkSpilledJoin(Predicate.Op.GREATER_THAN_OR_EQ, 50, 60);
+    checkSpilledJoin(Predicate.Op.LESS_THAN, 50, 60);
+  }
+
+  /**
+   * Unit test for an equality SortMergeJoin on a skewed key, whose groups
+   * of equal right tuples spill to disk
+   */
+  @Test public void spilledSkewedJoin() throws Exception {
+    checkSpilledJoin(Predicate.Op.EQUALS, 5, 6);
+  }
+
+  /**
+   * Unit test for SortMergeJoin with a predicate it cannot merge on
+   */
+  @Test(expected=IllegalArgumentException.class) public void notMergeable() {
+    new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), scan1, scan2);
+  }
+
+  /**
+   * Unit test for the join operators JoinOptimizer chooses
+   */
+  @Test public void chooseJoinAlgorithm() {
+    JoinOptimizer jo = new JoinOptimizer(null, new Vector<LogicalJoinNode>());
+    LogicalJoinNode eq = new LogicalJoinNode("a", "b", "a.x", "b.x", Predicate.Op.EQUALS);
+    LogicalJoinNode gt = new LogicalJoinNode("a", "b", "a.x", "b.x", Predicate.Op.GREATER_THAN);
+    LogicalJoinNode ne = new LogicalJoinNode("a", "b", "a.x", "b.x", Predicate.Op.NOT_EQUALS);
+    assertEquals(JoinOptimizer.JoinAlgorithm.HASH, jo.chooseJoinAlgorithm(eq, 1000, 1000, 100, 100));
+    assertEquals(JoinOptimizer.JoinAlgorithm.SORT_MERGE, jo.chooseJoinAlgorithm(gt, 1000, 1000, 100, 100));
+    assertEquals(JoinOptimizer.JoinAlgorithm.NESTED_LOOP, jo.chooseJoinAlgorithm(ne, 1000, 1000, 100, 100));
+    assertTrue(jo.estimateJoinCost(gt, 1000, 1000, 100, 100)
+               < jo.estimateJoinCost(gt, JoinOptimizer.JoinAlgorithm.NESTED_LOOP, 1000, 1000, 100, 100));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
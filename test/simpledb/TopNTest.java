@@ -0,0 +1,103 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  /**
+   * @return the tuples (i * 7919 % n, i) for i in [0, n)
+   */
+  private static DbIterator shuffled(int n) {
+    int[] values = new int[2 * n];
+    for (int i = 0; i < n; i++) {
+      values[2 * i] = (int) ((long) i * 7919 % n);
+      values[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, values);
+  }
+
+  /**
+   * Unit test for TopN.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    TopN op = new TopN(0, true, 5, shuffled(10));
+    assertEquals(Utility.getTupleDesc(2), op.getTupleDesc());
+  }
+
+  /**
+   * Unit test for TopN returning the smallest and largest tuples
+   */
+  @Test public void topN() throws Exception {
+    TopN op = new TopN(0, true, 10, shuffled(10000));
+    op.open();
+    for (int i = 0; i < 10; i++) {
+      assertTrue(op.hasNext());
+      assertEquals(new IntField(i), op.next().getField(0));
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+
+    op = new TopN(0, false, 3, shuffled(10000));
+    op.open();
+    for (int i = 9999; i > 9996; i--) {
+      assertEquals(new IntField(i), op.next().getField(0));
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+
+    op.rewind();
+    assertEquals(new IntField(9999), op.next().getField(0));
+    op.close();
+  }
+
+  /**
+   * Unit test for TopN with a limit of zero or beyond the child
+   */
+  @Test public void limits() throws Exception {
+    TopN op = new TopN(0, true, 0, shuffled(100));
+    op.open();
+    assertTrue(TestUtil.checkExhausted(op));
+
+    op = new TopN(0, true, 1000, shuffled(100));
+    op.open();
+    for (int i = 0; i < 100; i++) {
+      assertEquals(new IntField(i), op.next().getField(0));
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * Unit test for TopN keeping the first of the tuples that compare equal
+   */
+  @Test public void stable() throws Exception {
+    DbIterator child = TestUtil.createTupleList(2,
+        new int[] { 2, 0,
+                    1, 1,
+                    1, 2,
+                    2, 3,
+                    1, 4 });
+    TopN op = new TopN(0, true, 4, child);
+    op.open();
+    DbIterator expected = TestUtil.createTupleList(2,
+        new int[] { 1, 1,
+                    1, 2,
+                    1, 4,
+                    2, 0 });
+    expected.open();
+    while (expected.hasNext()) {
+      assertTrue(TestUtil.compareTuples(expected.next(), op.next()));
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
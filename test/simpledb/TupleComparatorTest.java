@@ -0,0 +1,94 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TupleComparatorTest extends SimpleDbTestBase {
+
+  private static ArrayList<Tuple> tuples(DbIterator it) throws Exception {
+    ArrayList<Tuple> result = new ArrayList<Tuple>();
+    while (it.hasNext()) {
+      result.add(it.next());
+    }
+    return result;
+  }
+
+  /**
+   * @return random tuples of a string, an integer and their position, with
+   *   many ties on the first two fields
+   */
+  private static ArrayList<Tuple> randomTuples(int n) throws Exception {
+    String[] strings = { "", "a", "ab", "b", "\u00e9t\u00e9", "a\u0000" };
+    Random random = new Random(42);
+    Object[] values = new Object[3 * n];
+    for (int i = 0; i < n; i++) {
+      values[3 * i] = strings[random.nextInt(strings.length)];
+      values[3 * i + 1] = random.nextInt(7) - 3 + (random.nextInt(3) - 1) * Integer.MAX_VALUE;
+      values[3 * i + 2] = i;
+    }
+    return tuples(TestUtil.createTupleList(3, values));
+  }
+
+  /**
+   * Unit test for TupleComparator.compare on several fields
+   */
+  @Test public void compare() throws Exception {
+    ArrayList<Tuple> t = tuples(TestUtil.createTupleList(2,
+        new Object[] { "a", 1,
+                       "a", 2,
+                       "b", 1 }));
+    TupleComparator c = new TupleComparator(new int[] { 0, 1 }, new boolean[] { true, false });
+    assertTrue(c.compare(t.get(0), t.get(1)) > 0);
+    assertTrue(c.compare(t.get(1), t.get(2)) < 0);
+    assertTrue(c.compare(t.get(0), t.get(2)) < 0);
+    assertEquals(0, c.compare(t.get(0), t.get(0)));
+  }
+
+  /**
+   * Unit test for TupleComparator.sort agreeing with TupleComparator.compare
+   */
+  @Test public void sortByNormalizedKeys() throws Exception {
+    boolean[][] orders = { { true, true }, { true, false }, { false, true }, { false, false } };
+    int[][] fields = { { 0, 1 }, { 1, 0 } };
+    for (int[] f : fields) {
+      for (boolean[] asc : orders) {
+        TupleComparator c = new TupleComparator(f, asc);
+        ArrayList<Tuple> expected = randomTuples(5000);
+        ArrayList<Tuple> actual = new ArrayList<Tuple>(expected);
+        Collections.sort(expected, c);
+        c.sort(actual);
+        for (int i = 0; i < expected.size(); i++) {
+          // stable, so ties keep their positions
+          assertTrue(TestUtil.compareTuples(expected.get(i), actual.get(i)));
+        }
+      }
+    }
+  }
+
+  /**
+   * Unit test for TupleComparator.sort on a single integer field
+   */
+  @Test public void sortIntegers() throws Exception {
+    ArrayList<Tuple> t = tuples(TestUtil.createTupleList(1,
+        new int[] { 3, Integer.MIN_VALUE, -1, Integer.MAX_VALUE, 0, -1 }));
+    new TupleComparator(0, true).sort(t);
+    int[] expected = { Integer.MIN_VALUE, -1, -1, 0, 3, Integer.MAX_VALUE };
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(new IntField(expected[i]), t.get(i).getField(0));
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TupleComparatorTest.class);
+  }
+}
@@ -51,6 +51,18 @@ public class JoinTest extends SimpleDbTestBase {
         SystemTestUtil.matchTuples(joinOp, expectedResults);
 
         joinOp.close();
+
+        // and the hash join's
+        HashJoin hashJoinOp = new HashJoin(p, ss1, ss2);
+        SystemTestUtil.matchTuples(hashJoinOp, expectedResults);
+
+        hashJoinOp.close();
+
+        // and the sort-merge join's
+        SortMergeJoin sortMergeJoinOp = new SortMergeJoin(p, ss1, ss2);
+        SystemTestUtil.matchTuples(sortMergeJoinOp, expectedResults);
+
+        sortMergeJoinOp.close();
         Database.getBufferPool().transactionComplete(tid);
     }
 
@@ -0,0 +1,201 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks optimistic transactions: their writes stay private until they
+ * commit, and conflicting commits abort.
+ */
+public class OptimisticTest extends SimpleDbTestBase {
+
+    private static final int COLUMNS = 2;
+
+    private void insert(Transaction t, HeapFile f, int value) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(value, COLUMNS));
+    }
+
+    private static ArrayList<Integer> row(int value) {
+        return new ArrayList<Integer>(Arrays.asList(value, value));
+    }
+
+    private static Transaction optimistic() {
+        Transaction t = new Transaction();
+        t.setOptimistic(true);
+        t.start();
+        return t;
+    }
+
+    @Test public void testPrivateWrites() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+        ArrayList<ArrayList<Integer>> before = new ArrayList<ArrayList<Integer>>(tuples);
+
+        Transaction t = optimistic();
+        insert(t, table, 1000);
+        tuples.add(row(1000));
+        SystemTestUtil.matchTuples(table, t.getId(), tuples);
+        SystemTestUtil.matchTuples(table, before);
+
+        t.commit();
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    @Test public void testConflictAborts() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+        long aborts = Database.getBufferPool().getOptimisticAborts();
+
+        Transaction first = optimistic();
+        Transaction second = optimistic();
+        insert(first, table, 1000);
+        insert(second, table, 2000);
+        first.commit();
+        try {
+            second.commitOptimistic();
+            fail("expected the second commit to fail validation");
+        } catch (TransactionAbortedException e) {
+            // explicitly ignored
+        }
+        assertEquals(aborts + 1, Database.getBufferPool().getOptimisticAborts());
+
+        tuples.add(row(1000));
+        SystemTestUtil.matchTuples(table, tuples);
+
+        // a retry sees the first commit and succeeds
+        Transaction retry = optimistic();
+        insert(retry, table, 2000);
+        retry.commit();
+        tuples.add(row(2000));
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    @Test public void testDisjointPagesCommit() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, null);
+        HeapFile other = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, null);
+
+        Transaction first = optimistic();
+        Transaction second = optimistic();
+        insert(first, table, 1000);
+        insert(second, other, 2000);
+        first.commit();
+        second.commit();
+    }
+
+    @Test public void testLockedPageAborts() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+        BufferPool pool = Database.getBufferPool();
+        pool.setLocking(true);
+        try {
+            Transaction locker = new Transaction();
+            locker.start();
+            pool.getPage(locker.getId(), new HeapPageId(table.getId(), 0), Permissions.READ_WRITE);
+
+            Transaction t = optimistic();
+            insert(t, table, 1000);
+            try {
+                t.commitOptimistic();
+                fail("expected the commit to fail validation");
+            } catch (TransactionAbortedException e) {
+                // explicitly ignored
+            }
+            // only the locker holds locks
+            assertEquals(1, pool.getLockManager().getNumTableLocks());
+
+            locker.commit();
+            Transaction retry = optimistic();
+            insert(retry, table, 1000);
+            retry.commit();
+            tuples.add(row(1000));
+            SystemTestUtil.matchTuples(table, tuples);
+        } finally {
+            pool.setLocking(false);
+        }
+    }
+
+    /**
+     * Runs locking and optimistic transactions that update the same pages
+     * together; none may wait forever.
+     */
+    @Test public void testMixedWithLocking() throws Exception {
+        final HeapFile table = ConcurrencyBenchmark.createTable(2);
+        final BufferPool pool = Database.getBufferPool();
+        pool.setLocking(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] clients = new Thread[4];
+        try {
+            for (int i = 0; i < clients.length; i++) {
+                final boolean optimistic = i % 2 == 0;
+                final Random random = new Random(i);
+                clients[i] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int j = 0; j < 20; j++) {
+                                while (!update(table, optimistic, random.nextInt(2))) {
+                                    // retry
+                                }
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                };
+                clients[i].setDaemon(true);
+                clients[i].start();
+            }
+            for (Thread client : clients) {
+                client.join(60 * 1000);
+                assertFalse("a transaction hung", client.isAlive());
+            }
+        } finally {
+            pool.setLocking(false);
+        }
+        if (failure.get() != null) {
+            throw new Exception(failure.get());
+        }
+    }
+
+    /** @return true if the transaction committed, false if it aborted */
+    private static boolean update(HeapFile table, boolean optimistic, int pageno) throws Exception {
+        Transaction t = new Transaction();
+        t.setOptimistic(optimistic);
+        t.start();
+        try {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(table.getId(), pageno), Permissions.READ_WRITE);
+            Tuple victim = page.iterator().next();
+            Tuple updated = new Tuple(victim.getTupleDesc());
+            updated.setField(0, victim.getField(0));
+            updated.setField(1, new IntField(((IntField) victim.getField(1)).getValue() + 1));
+            page.deleteTuple(victim);
+            page.addTuple(updated);
+            page.markDirty(true, t.getId());
+            t.commitOptimistic();
+            return true;
+        } catch (TransactionAbortedException e) {
+            t.transactionComplete(true);
+            return false;
+        }
+    }
+
+    @Test public void testBenchmark() throws Exception {
+        HeapFile table = ConcurrencyBenchmark.createTable(4);
+        for (boolean optimistic : new boolean[] {false, true}) {
+            ConcurrencyBenchmark.Result result = ConcurrencyBenchmark.run(optimistic, table, 2, 4, 10);
+            assertEquals(40, result.commits);
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OptimisticTest.class);
+    }
+}
@@ -0,0 +1,200 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Crashes the database after transactions committed, aborted or never
+ * finished, and checks that LogFile.recover() restores exactly the
+ * committed updates.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+
+    private static final int COLUMNS = 2;
+
+    private void insert(Transaction t, HeapFile f, int value) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(value, COLUMNS));
+    }
+
+    private static ArrayList<Integer> row(int value) {
+        return new ArrayList<Integer>(Arrays.asList(value, value));
+    }
+
+    /** Simulates a crash: the in-memory state is lost, and the data files
+        lose every write that was not in the given contents. */
+    private void crash(File[] files, byte[][] contents) throws Exception {
+        Database.reset();
+        for (int i = 0; i < files.length; i++) {
+            Files.write(files[i].toPath(), contents[i]);
+            Database.getCatalog().addTable(new HeapFile(files[i], Utility.getTupleDesc(COLUMNS)),
+                SystemTestUtil.getUUID());
+        }
+    }
+
+    @Test public void testRecover() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+        ArrayList<ArrayList<Integer>> otherTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile other = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, otherTuples);
+        File[] files = {table.getFile(), other.getFile()};
+        byte[][] contents = {Files.readAllBytes(files[0].toPath()), Files.readAllBytes(files[1].toPath())};
+
+        // committed: must be redone
+        Transaction committed = new Transaction();
+        committed.start();
+        insert(committed, table, 1000);
+        committed.commit();
+
+        // aborted: its rollback must be redone
+        Transaction aborted = new Transaction();
+        aborted.start();
+        insert(aborted, other, 2000);
+        Database.getBufferPool().flushPages(aborted.getId());
+        aborted.transactionComplete(true);
+
+        // unfinished, but its page reached the disk: must be undone
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(loser, other, 3000);
+        Database.getBufferPool().flushPages(loser.getId());
+
+        crash(files, contents);
+        LogFile log = Database.getLogFile();
+        log.setRecoveryThreads(2);
+        log.recover();
+
+        tuples.add(row(1000));
+        SystemTestUtil.matchTuples(table, tuples);
+        SystemTestUtil.matchTuples(other, otherTuples);
+        assertEquals(2, log.getRecoveryPages());
+        assertTrue(log.getRecoveryRecords() > 0);
+
+        // recovery is idempotent, and the log stays usable afterwards
+        crash(files, new byte[][] {Files.readAllBytes(files[0].toPath()), Files.readAllBytes(files[1].toPath())});
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(table, tuples);
+        SystemTestUtil.matchTuples(other, otherTuples);
+
+        Transaction next = new Transaction();
+        next.start();
+        insert(next, table, 4000);
+        next.commit();
+        tuples.add(row(4000));
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    @Test public void testRecoverSlotUpdates() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+        File[] files = {table.getFile()};
+        byte[][] contents = {Files.readAllBytes(files[0].toPath())};
+
+        // the first change logs the page, the later ones only slots
+        for (int value = 1000; value < 1003; value++) {
+            Transaction committed = new Transaction();
+            committed.start();
+            insert(committed, table, value);
+            committed.commit();
+            tuples.add(row(value));
+        }
+
+        Transaction aborted = new Transaction();
+        aborted.start();
+        insert(aborted, table, 2000);
+        Database.getBufferPool().flushPages(aborted.getId());
+        aborted.transactionComplete(true);
+
+        // a committed delete after the abort
+        Transaction deleter = new Transaction();
+        deleter.start();
+        SeqScan scan = new SeqScan(deleter.getId(), table.getId(), "");
+        scan.open();
+        Tuple victim = scan.next();
+        scan.close();
+        Database.getBufferPool().deleteTuple(deleter.getId(), victim);
+        deleter.commit();
+        tuples.remove(SystemTestUtil.tupleToList(victim));
+
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(loser, table, 3000);
+        Database.getBufferPool().flushPages(loser.getId());
+        insert(loser, table, 3001);
+        Database.getBufferPool().flushPages(loser.getId());
+
+        crash(files, contents);
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals(1, Database.getLogFile().getRecoveryPages());
+    }
+
+    @Test public void testRecoverAfterFuzzyCheckpoint() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+        ArrayList<ArrayList<Integer>> otherTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile other = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, otherTuples);
+        File[] files = {table.getFile(), other.getFile()};
+
+        Transaction before = new Transaction();
+        before.start();
+        insert(before, table, 1000);
+        before.commit();
+        tuples.add(row(1000));
+
+        // a loser that spans the checkpoint, with its page on disk
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(loser, other, 3000);
+        Database.getBufferPool().flushPages(loser.getId());
+
+        Database.getLogFile().logCheckpoint();
+        byte[][] synced = {Files.readAllBytes(files[0].toPath()), Files.readAllBytes(files[1].toPath())};
+
+        // committed after the checkpoint; its write is lost in the crash
+        Transaction after = new Transaction();
+        after.start();
+        insert(after, table, 2000);
+        after.commit();
+        tuples.add(row(2000));
+
+        crash(files, synced);
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(table, tuples);
+        SystemTestUtil.matchTuples(other, otherTuples);
+    }
+
+    @Test public void testRecoverAsyncCommit() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+        File[] files = {table.getFile()};
+        byte[] original = Files.readAllBytes(files[0].toPath());
+        Database.getLogFile().setAsyncCommitDelay(60 * 1000);
+
+        // logged but not written when the checkpoint runs, so the page
+        // must stay in its dirty page table
+        Transaction committed = new Transaction();
+        committed.start();
+        insert(committed, table, 1000);
+        committed.commit(Transaction.CommitMode.ASYNC);
+        tuples.add(row(1000));
+        SystemTestUtil.matchTuples(table, tuples);
+        Database.getLogFile().logCheckpoint();
+        assertArrayEquals(original, Files.readAllBytes(files[0].toPath()));
+
+        crash(files, new byte[][] {original});
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
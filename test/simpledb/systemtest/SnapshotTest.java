@@ -0,0 +1,104 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks that read-only transactions read a consistent snapshot of the
+ * database while other transactions write and commit.
+ */
+public class SnapshotTest extends SimpleDbTestBase {
+
+    private static final int COLUMNS = 2;
+
+    private void insert(Transaction t, HeapFile f, int value) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(value, COLUMNS));
+    }
+
+    private static ArrayList<Integer> row(int value) {
+        return new ArrayList<Integer>(Arrays.asList(value, value));
+    }
+
+    @Test public void testSnapshotIgnoresLaterCommits() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+        ArrayList<ArrayList<Integer>> before = new ArrayList<ArrayList<Integer>>(tuples);
+        VersionStore versions = Database.getBufferPool().getVersionStore();
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+
+        // uncommitted writes are invisible
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, table, 1000);
+        SystemTestUtil.matchTuples(table, reader.getId(), before);
+
+        // and so are commits after the snapshot started
+        writer.commit();
+        tuples.add(row(1000));
+        SystemTestUtil.matchTuples(table, reader.getId(), before);
+        assertEquals(1, versions.getNumVersions());
+
+        Transaction later = new Transaction(true);
+        later.start();
+        SystemTestUtil.matchTuples(table, later.getId(), tuples);
+
+        reader.commit();
+        assertEquals(0, versions.getNumVersions());
+        later.commit();
+        assertEquals(0, versions.getNumSnapshots());
+
+        // without snapshots, commits keep no versions
+        Transaction another = new Transaction();
+        another.start();
+        insert(another, table, 2000);
+        another.commit();
+        assertEquals(0, versions.getNumVersions());
+    }
+
+    @Test public void testSnapshotOfEvictedPages() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+        ArrayList<ArrayList<Integer>> other = new ArrayList<ArrayList<Integer>>();
+        HeapFile otherTable = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, other);
+        Database.resetBufferPool(1);
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+
+        // the writer's page reaches the disk and leaves the pool before
+        // the writer commits
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, table, 1000);
+        Database.getBufferPool().flushPages(writer.getId());
+        SystemTestUtil.matchTuples(otherTable, reader.getId(), other);
+        SystemTestUtil.matchTuples(table, reader.getId(), tuples);
+
+        writer.commit();
+        SystemTestUtil.matchTuples(otherTable, reader.getId(), other);
+        SystemTestUtil.matchTuples(table, reader.getId(), tuples);
+        reader.commit();
+
+        tuples.add(row(1000));
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    @Test(expected=DbException.class) public void testSnapshotIsReadOnly() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, null);
+        Transaction reader = new Transaction(true);
+        reader.start();
+        insert(reader, table, 1000);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SnapshotTest.class);
+    }
+}